@@ -74,6 +74,7 @@ public class AtlasPlugin
         if (atlasIndex.index().isEmpty()) {
             atlasIndex.update();
         }
+        atlasIndex.startIncrementalUpdate();
         
 //        // JAAS config: no dialog; let LoginPanel create UI
 //        SecurityContext.registerConfiguration( () -> new StandardConfiguration() {
@@ -86,6 +87,7 @@ public class AtlasPlugin
 
 
     public void stop( BundleContext context ) throws Exception {
+        AtlasIndex.instance().stopIncrementalUpdate();
         instance = null;
         super.stop( context );
     }
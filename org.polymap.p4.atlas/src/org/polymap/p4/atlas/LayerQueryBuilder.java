@@ -24,6 +24,9 @@ import org.polymap.core.project.ILayer;
 import org.polymap.core.runtime.config.Concern;
 import org.polymap.core.runtime.config.Config;
 import org.polymap.core.runtime.config.ConfigurationFactory;
+import org.polymap.core.runtime.config.DefaultBoolean;
+import org.polymap.core.runtime.config.DefaultInt;
+import org.polymap.core.runtime.config.Mandatory;
 
 import org.polymap.p4.atlas.index.AtlasIndex;
 import org.polymap.p4.layer.FeatureLayer;
@@ -43,6 +46,20 @@ public class LayerQueryBuilder {
     @Concern( PropertyChangeEvent.Fire.class )
     public Config<ReferencedEnvelope>   mapExtent;
 
+    /**
+     * Evaluate text and {@link #mapExtent} inside the {@link AtlasIndex} if the
+     * layer was indexed with bounds, instead of filtering the extent in the feature
+     * store.
+     */
+    @Mandatory
+    @DefaultBoolean( true )
+    public Config<Boolean>              spatialIndex;
+
+    /** The max number of the top ranked results of a spatial query, or -1. */
+    @Mandatory
+    @DefaultInt( -1 )
+    public Config<Integer>              maxResults;
+
 
     /** Constructs a new instance with no restrictions. */
     protected LayerQueryBuilder() {
@@ -51,6 +68,14 @@ public class LayerQueryBuilder {
 
     
     public Query build( ILayer layer ) throws Exception {
+        // text AND extent inside Lucene
+        AtlasIndex index = AtlasIndex.instance();
+        if (spatialIndex.get() && queryText.isPresent() && mapExtent.isPresent() 
+                && index.hasSpatialIndex( layer )) {
+            Filter filter = index.queryIds( queryText.get(), layer, mapExtent.get(), maxResults.get() ).filter();
+            return new Query( "", filter );
+        }
+        // extent in the feature store
         Filter extentFilter = extentFilter( layer );
         Filter textFilter = fulltextFilter( layer );
         return new Query( "", ff.and( extentFilter, textFilter ) );
@@ -72,9 +97,11 @@ public class LayerQueryBuilder {
 
 
     /**
-     *
+     * The filter of the current {@link #queryText} for the given layer. The ids
+     * of the result are cached by {@link AtlasIndex} until the query or the index
+     * changes; the returned filter is a new instance built from them.
      */
-    protected Filter fulltextFilter( ILayer layer ) throws Exception {
+    public Filter fulltextFilter( ILayer layer ) throws Exception {
         Filter textFilter = Filter.INCLUDE;
         if (queryText.isPresent() && mapExtent.isPresent()) {
             AtlasIndex index = AtlasIndex.instance();
@@ -14,25 +14,100 @@
  */
 package org.polymap.p4.atlas.index;
 
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.json.JSONObject;
 import org.opengis.feature.Feature;
+import org.opengis.geometry.BoundingBox;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import com.vividsolutions.jts.geom.Geometry;
 
 import org.polymap.rhei.fulltext.indexing.Feature2JsonTransformer;
 
 /**
- * 
+ * Transforms a {@link Feature} into the {@link JSONObject} document of the
+ * {@link AtlasIndex}. Geometries are not indexed as text. Instead the bounds of
+ * the feature are stored in {@link DefaultGeographicCRS#WGS84} as the encoded
+ * ordinates {@link #FIELD_MINX}, {@link #FIELD_MINY}, {@link #FIELD_MAXX} and
+ * {@link #FIELD_MAXY}, so that an extent can be part of the Lucene query (see
+ * {@link #extentQuery(ReferencedEnvelope)}).
  *
  * @author Falko Bräutigam
  */
 class AtlasFeatureTransformer
         extends Feature2JsonTransformer {
+
+    private static final Log log = LogFactory.getLog( AtlasFeatureTransformer.class );
+
+    /** The field that holds the local name of the feature type of a document. */
+    public static final String  FIELD_FEATURETYPE = "_featureType_";
+    
+    public static final String  FIELD_MINX = "_minx_";
+    public static final String  FIELD_MINY = "_miny_";
+    public static final String  FIELD_MAXX = "_maxx_";
+    public static final String  FIELD_MAXY = "_maxy_";
+
+    /** Ordinates are shifted by this value in order to be positive. */
+    private static final double ORDINATE_OFFSET = 400;
+
+    /** Ordinate precision: ~1m at the equator. */
+    private static final double ORDINATE_SCALE = 1e5;
+
+    private static final int    ORDINATE_DIGITS = 9;
+    
+    
+    /**
+     * Encodes the given WGS84 ordinate into a fixed length, positive integer string
+     * that sorts lexically in the same order as the numbers. This allows range
+     * queries on the plain text index.
+     */
+    public static String encodeOrdinate( double ordinate ) {
+        long encoded = Math.round( (ordinate + ORDINATE_OFFSET) * ORDINATE_SCALE );
+        return StringUtils.leftPad( String.valueOf( Math.max( 0, encoded ) ), ORDINATE_DIGITS, '0' );
+    }
+    
+    
+    /**
+     * Builds a Lucene query clause that matches documents whose bounds intersect
+     * the given extent.
+     */
+    public static String extentQuery( ReferencedEnvelope extent ) throws Exception {
+        ReferencedEnvelope wgs84 = extent.transform( DefaultGeographicCRS.WGS84, true );
+        String min = StringUtils.repeat( '0', ORDINATE_DIGITS );
+        String max = StringUtils.repeat( '9', ORDINATE_DIGITS );
+        return new StringBuilder( 256 )
+                .append( '+' ).append( FIELD_MINX ).append( ":[" ).append( min ).append( " TO " ).append( encodeOrdinate( wgs84.getMaxX() ) ).append( "] " )
+                .append( '+' ).append( FIELD_MAXX ).append( ":[" ).append( encodeOrdinate( wgs84.getMinX() ) ).append( " TO " ).append( max ).append( "] " )
+                .append( '+' ).append( FIELD_MINY ).append( ":[" ).append( min ).append( " TO " ).append( encodeOrdinate( wgs84.getMaxY() ) ).append( "] " )
+                .append( '+' ).append( FIELD_MAXY ).append( ":[" ).append( encodeOrdinate( wgs84.getMinY() ) ).append( " TO " ).append( max ).append( "]" )
+                .toString();
+    }
+    
+    
+    // instance *******************************************
     
     @Override
     protected void init( JSONObject result, Feature feature ) {
         super.init( result, feature );
-        result.putOnce( "_featureType_", feature.getType().getName().getLocalPart() );
+        result.putOnce( FIELD_FEATURETYPE, feature.getType().getName().getLocalPart() );
+        
+        BoundingBox bounds = feature.getBounds();
+        if (bounds != null && !bounds.isEmpty() && bounds.getCoordinateReferenceSystem() != null) {
+            try {
+                ReferencedEnvelope wgs84 = ReferencedEnvelope.reference( bounds ).transform( DefaultGeographicCRS.WGS84, true );
+                result.put( FIELD_MINX, encodeOrdinate( wgs84.getMinX() ) );
+                result.put( FIELD_MINY, encodeOrdinate( wgs84.getMinY() ) );
+                result.put( FIELD_MAXX, encodeOrdinate( wgs84.getMaxX() ) );
+                result.put( FIELD_MAXY, encodeOrdinate( wgs84.getMaxY() ) );
+            }
+            catch (Exception e) {
+                log.warn( "Unable to transform bounds of: " + feature.getIdentifier(), e );
+            }
+        }
     }
 
     @Override
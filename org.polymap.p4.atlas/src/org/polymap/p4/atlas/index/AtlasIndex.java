@@ -16,30 +16,38 @@ package org.polymap.p4.atlas.index;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 import java.io.File;
 import java.io.IOException;
 
 import org.geotools.data.FeatureSource;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.json.JSONObject;
 import org.opengis.feature.Feature;
 import org.opengis.filter.Filter;
-import org.opengis.filter.identity.FeatureId;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.FluentIterable;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+
 import org.polymap.core.CorePlugin;
-import org.polymap.core.data.DataPlugin;
 import org.polymap.core.project.ILayer;
 import org.polymap.core.runtime.FutureJobAdapter;
 import org.polymap.core.runtime.Lazy;
 import org.polymap.core.runtime.LockedLazyInit;
+import org.polymap.core.runtime.UIJob;
 import org.polymap.core.runtime.session.DefaultSessionContext;
 import org.polymap.core.runtime.session.DefaultSessionContextProvider;
 import org.polymap.core.runtime.session.SessionContext;
@@ -49,6 +57,7 @@ import org.polymap.rhei.fulltext.indexing.FeatureTransformer;
 import org.polymap.rhei.fulltext.indexing.LowerCaseTokenFilter;
 import org.polymap.rhei.fulltext.indexing.ToStringTransformer;
 import org.polymap.rhei.fulltext.store.lucene.LuceneFulltextIndex;
+import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex.Updater;
 
 import org.polymap.p4.atlas.AtlasPlugin;
 
@@ -83,17 +92,45 @@ public class AtlasIndex {
 
     private DefaultSessionContextProvider contextProvider;
     
+    private IndexWatermarks             watermarks;
+    
+    /** Query results, mapped by layer id and query string. */
+    private Cache<String,FeatureIdSet>  queryCache = CacheBuilder.newBuilder()
+            .maximumWeight( 32 * 1024 * 1024 )
+            .weigher( (String key, FeatureIdSet value) -> value.weight() )
+            .expireAfterAccess( 10, TimeUnit.MINUTES )
+            .build();
+    
+    private AtomicLong                  generation = new AtomicLong();
+    
+    private IncrementalIndexer          incrementalIndexer;
+    
+    /** Makes sure that just one job at a time modifies the {@link #index}. */
+    private ISchedulingRule             updateRule = new ISchedulingRule() {
+        @Override
+        public boolean isConflicting( ISchedulingRule rule ) {
+            return rule == this;
+        }
+        @Override
+        public boolean contains( ISchedulingRule rule ) {
+            return rule == this;
+        }
+    };
+    
     
     protected AtlasIndex() {
         // Lucene index
         try {
-            File indexDir = new File( CorePlugin.getDataLocation( AtlasPlugin.instance() ), "index" );
-            index = new LuceneFulltextIndex( indexDir );
+            File dataDir = CorePlugin.getDataLocation( AtlasPlugin.instance() );
+            index = new LuceneFulltextIndex( new File( dataDir, "index" ) );
             index.setTokenizer( new AtlasTokenizer() );
             index.addTokenFilter( new LowerCaseTokenFilter() );
             
             transformers.add( new AtlasFeatureTransformer() );
-            transformers.add( new ToStringTransformer() );            
+            transformers.add( new ToStringTransformer() );
+            
+            watermarks = new IndexWatermarks( new File( dataDir, "watermarks" ) );
+            incrementalIndexer = new IncrementalIndexer( this, watermarks );
         }
         catch (IOException e) {
             throw new RuntimeException( e );
@@ -131,31 +168,118 @@ public class AtlasIndex {
      * @throws Exception 
      */
     public Filter query( String query, ILayer layer ) throws Exception {
-        Filter filter = Filter.INCLUDE;
-        if (!StringUtils.isBlank( query )) {
-            Set<FeatureId> fids = FluentIterable.from( index.search( query, -1 ) )
-                    .transform( json -> DataPlugin.ff.featureId( json.getString( FulltextIndex.FIELD_ID ) ) )
-                    .toSet();
-            filter = !fids.isEmpty() ? DataPlugin.ff.id( fids ) : Filter.EXCLUDE;
+        return !StringUtils.isBlank( query ) ? queryIds( query, layer ).filter() : Filter.INCLUDE;
+    }
+    
+    
+    /**
+     * Query this index. The result is cached until the next update of the index.
+     *
+     * @param query The Lucene query string.
+     * @param layer The layer to query.
+     * @return The ids of the features found.
+     * @throws Exception 
+     */
+    public FeatureIdSet queryIds( String query, ILayer layer ) throws Exception {
+        String layerId = (String)layer.id();
+        String key = cacheKey( layerId, query );
+        long startGeneration = generation();
+        try {
+            FeatureIdSet result = queryCache.get( key, () -> {
+                // restrict to the feature type of the layer inside Lucene
+                Optional<String> typeName = watermarks.typeName( layerId );
+                String layerQuery = typeName.isPresent() ? layerQuery( query, typeName.get() ) : query;
+                return FeatureIdSet.of( FluentIterable.from( index.search( layerQuery, -1 ) )
+                        .transform( json -> json.getString( FulltextIndex.FIELD_ID ) ) );
+            });
+            // index changed while searching: result might be outdated
+            if (generation() != startGeneration) {
+                queryCache.invalidate( key );
+            }
+            return result;
+        }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
         }
-        return filter;
     }
     
     
     /**
-     * 
+     * Query this index for features that match the given query and whose bounds
+     * intersect the given extent. Text and extent are both evaluated inside Lucene,
+     * so just the ids of the final result have to be fetched from the feature
+     * store. The result is not cached as it usually changes with every pan of the
+     * map.
+     * <p/>
+     * This requires that the layer was indexed with bounds, see
+     * {@link #hasSpatialIndex(ILayer)}.
+     *
+     * @param query The Lucene query string.
+     * @param layer The layer to query.
+     * @param extent The extent the results must intersect.
+     * @param maxResults The max number of the top ranked results, or -1.
+     * @return The ids of the features found.
+     * @throws Exception 
+     */
+    public FeatureIdSet queryIds( String query, ILayer layer, ReferencedEnvelope extent, int maxResults ) throws Exception {
+        String layerId = (String)layer.id();
+        String typeName = watermarks.typeName( layerId )
+                .orElseThrow( () -> new IllegalStateException( "Layer is not indexed: " + layer.label.get() ) );
+        String spatialQuery = layerQuery( query, typeName ) + " " + AtlasFeatureTransformer.extentQuery( extent );
+        return FeatureIdSet.of( FluentIterable.from( index.search( spatialQuery, maxResults ) )
+                .transform( json -> json.getString( FulltextIndex.FIELD_ID ) ) );
+    }
+    
+    
+    /**
+     * True if the documents of the given layer contain bounds, so that
+     * {@link #queryIds(String, ILayer, ReferencedEnvelope, int)} can be used.
+     */
+    public boolean hasSpatialIndex( ILayer layer ) {
+        return watermarks.hasBounds( (String)layer.id() );
+    }
+    
+    
+    /**
+     * Builds a Lucene query that restricts the given query to features of the
+     * given type.
+     */
+    protected String layerQuery( String query, String typeName ) {
+        return "+(" + query + ") +" + AtlasFeatureTransformer.FIELD_FEATURETYPE + ":\"" + typeName + "\"";
+    }
+    
+    
+    protected String cacheKey( String layerId, String query ) {
+        return layerId + "::" + query;
+    }
+    
+    
+    /**
+     * Incremented each time the content of the index has changed. Allows clients to
+     * check if results derived from a query are still valid.
+     */
+    public long generation() {
+        return generation.get();
+    }
+    
+    
+    /**
+     * Signals that the content of the index has changed. This is called by update
+     * jobs after the {@link Updater} has been applied.
+     */
+    protected void indexChanged() {
+        generation.incrementAndGet();
+        queryCache.invalidateAll();
+    }
+    
+    
+    /**
+     * Re-indexes the entire root map.
      */
     public Future update() {
         MapIndexer job = mapIndexer.updateAndGet( current -> {
             if (current == null) {
-                try {
-                    sessionProvider.mapContext( updateContext.getSessionKey(), true );
-                    current = new MapIndexer( this );
-                    current.schedule();
-                }
-                finally {
-                    sessionProvider.unmapContext();
-                }
+                current = schedule( () -> new MapIndexer( this ), 0 );
             }
             return current;
         });
@@ -163,6 +287,49 @@ public class AtlasIndex {
     }
     
     
+    /**
+     * Starts incremental indexing of committed features and catches up on what was
+     * committed but not yet indexed before last shutdown. Layers without watermark
+     * are indexed entirely.
+     *
+     * @see IncrementalIndexer
+     */
+    public void startIncrementalUpdate() throws Exception {
+        incrementalIndexer.start();
+        if (mapIndexer.get() == null) {
+            incrementalIndexer.catchUp();
+        }
+    }
+    
+    
+    public void stopIncrementalUpdate() {
+        incrementalIndexer.stop();
+    }
+    
+    
+    /**
+     * Creates and schedules an update job inside the update {@link SessionContext}.
+     * Update jobs are executed one after the other.
+     */
+    protected <T extends UIJob> T schedule( Supplier<T> factory, long delay ) {
+        try {
+            sessionProvider.mapContext( updateContext.getSessionKey(), true );
+            T job = factory.get();
+            job.setRule( updateRule );
+            job.schedule( delay );
+            return job;
+        }
+        finally {
+            sessionProvider.unmapContext();
+        }
+    }
+    
+    
+    IndexWatermarks watermarks() {
+        return watermarks;
+    }
+    
+    
     protected JSONObject transform( Feature feature ) {
         Object result = feature;
         for (FeatureTransformer transformer : transformers) {
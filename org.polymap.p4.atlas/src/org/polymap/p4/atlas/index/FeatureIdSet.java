@@ -0,0 +1,170 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.atlas.index;
+
+import static org.polymap.core.data.DataPlugin.ff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.opengis.filter.Filter;
+import org.opengis.filter.identity.FeatureId;
+
+/**
+ * Immutable, sorted set of feature ids of one query result of the
+ * {@link AtlasIndex}.
+ * <p/>
+ * Feature ids usually consist of a common prefix (the type name) and a numeric
+ * part. If this is true for all ids, just the prefix and a sorted
+ * <code>long[]</code> of the numeric parts are stored, otherwise a sorted
+ * <code>String[]</code>. The {@link Filter} for the feature source is built on
+ * demand and is not kept, so that cached instances stay compact.
+ *
+ * @author Falko Bräutigam
+ */
+public class FeatureIdSet {
+
+    public static final FeatureIdSet    EMPTY = new FeatureIdSet( "", new long[0], null );
+
+    /**
+     * Creates a new instance of the given ids.
+     */
+    public static FeatureIdSet of( Iterable<String> fids ) {
+        List<String> list = new ArrayList( 256 );
+        fids.forEach( fid -> list.add( fid ) );
+        if (list.isEmpty()) {
+            return EMPTY;
+        }
+        // numeric?
+        String prefix = prefixOf( list.get( 0 ) );
+        long[] numbers = new long[list.size()];
+        int i = 0;
+        for (String fid : list) {
+            if (prefix == null || !fid.startsWith( prefix ) || !isNumeric( fid, prefix.length() )) {
+                String[] strings = list.toArray( new String[list.size()] );
+                Arrays.sort( strings );
+                return new FeatureIdSet( null, null, strings );
+            }
+            numbers[i++] = Long.parseLong( fid.substring( prefix.length() ) );
+        }
+        Arrays.sort( numbers );
+        return new FeatureIdSet( prefix, numbers, null );
+    }
+
+
+    /**
+     * The leading non-digit part of the given fid, or null if the fid has no
+     * trailing number.
+     */
+    protected static String prefixOf( String fid ) {
+        int end = fid.length();
+        while (end > 0 && Character.isDigit( fid.charAt( end-1 ) )) {
+            end --;
+        }
+        return end < fid.length() && fid.length() - end < 19 ? fid.substring( 0, end ) : null;
+    }
+
+
+    protected static boolean isNumeric( String fid, int start ) {
+        int length = fid.length() - start;
+        if (length == 0 || length > 18) {
+            return false;
+        }
+        for (int i=start; i<fid.length(); i++) {
+            if (!Character.isDigit( fid.charAt( i ) )) {
+                return false;
+            }
+        }
+        // leading zeros would not survive the round trip
+        return length == 1 || fid.charAt( start ) != '0';
+    }
+
+
+    // instance *******************************************
+
+    private String          prefix;
+
+    private long[]          numbers;
+
+    private String[]        strings;
+
+
+    protected FeatureIdSet( String prefix, long[] numbers, String[] strings ) {
+        this.prefix = prefix;
+        this.numbers = numbers;
+        this.strings = strings;
+    }
+
+
+    public int size() {
+        return numbers != null ? numbers.length : strings.length;
+    }
+
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+
+    public boolean contains( String fid ) {
+        if (numbers != null) {
+            return fid.startsWith( prefix )
+                    && isNumeric( fid, prefix.length() )
+                    && Arrays.binarySearch( numbers, Long.parseLong( fid.substring( prefix.length() ) ) ) >= 0;
+        }
+        else {
+            return Arrays.binarySearch( strings, fid ) >= 0;
+        }
+    }
+
+
+    /**
+     * The fid at the given position in sort order.
+     */
+    public String get( int index ) {
+        return numbers != null ? prefix + numbers[index] : strings[index];
+    }
+
+
+    /**
+     * Rough estimation of the heap size of this set in bytes.
+     */
+    public int weight() {
+        return numbers != null ? numbers.length * 8 : strings.length * 48;
+    }
+
+
+    /**
+     * Creates a new {@link Filter} to apply to the feature source. The filter is
+     * much bigger than this set; it is not kept by this set and should not be
+     * kept by the caller longer than necessary.
+     *
+     * @return {@link Filter#EXCLUDE} if this set is empty.
+     */
+    public Filter filter() {
+        if (isEmpty()) {
+            return Filter.EXCLUDE;
+        }
+        Set<FeatureId> ids = new HashSet( size() * 2 );
+        for (int i=0; i<size(); i++) {
+            ids.add( ff.featureId( get( i ) ) );
+        }
+        return ff.id( ids );
+    }
+
+}
@@ -0,0 +1,414 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.atlas.index;
+
+import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.geotools.data.FeatureEvent;
+import org.geotools.data.FeatureEvent.Type;
+import org.geotools.data.FeatureSource;
+import org.geotools.feature.FeatureIterator;
+import org.json.JSONObject;
+import org.opengis.feature.Feature;
+import org.opengis.filter.Filter;
+import org.opengis.filter.Id;
+import org.opengis.filter.identity.FeatureId;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import org.polymap.core.data.DataPlugin;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.project.IMap;
+import org.polymap.core.project.ProjectNode.ProjectNodeCommittedEvent;
+import org.polymap.core.runtime.UIJob;
+import org.polymap.core.runtime.event.Event;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
+
+import org.polymap.rhei.fulltext.FulltextIndex;
+import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex;
+import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex.Updater;
+
+import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.p4.atlas.AtlasFeatureLayer;
+import org.polymap.p4.layer.FeatureLayer;
+import org.polymap.p4.project.ProjectRepository;
+
+/**
+ * Keeps the {@link AtlasIndex} in sync with the features of the Atlas layers without
+ * re-indexing the entire map.
+ * <p/>
+ * Listens to {@link FeatureEvent}s of type {@link Type#COMMIT} and upserts or
+ * removes just the documents of the touched features. A
+ * {@link ProjectNodeCommittedEvent} of an Atlas {@link ILayer} (resource or style
+ * might have changed) causes just this layer to be re-indexed. A commit of the root
+ * map causes layers added to the map to be indexed and layers removed from it to
+ * be removed from the index. Touched feature ids
+ * are journaled in {@link IndexWatermarks} <b>before</b> they are applied, so that
+ * {@link #catchUp()} can replay what was missed after a restart. Work of a failed
+ * update is kept and retried after {@link #RETRY_DELAY}.
+ *
+ * @author Falko Bräutigam
+ */
+class IncrementalIndexer {
+
+    private static final Log log = LogFactory.getLog( IncrementalIndexer.class );
+
+    /** Delay between first event and apply, in order to collect subsequent commits. */
+    public static final int             UPDATE_DELAY = 1000;
+
+    /** Delay before a failed update is retried. */
+    public static final int             RETRY_DELAY = 30000;
+
+    private AtlasIndex                  atlasIndex;
+
+    private IndexWatermarks             watermarks;
+
+    /** Touched feature ids, mapped by layer id. */
+    private ConcurrentMap<String,Set<String>> touched = new ConcurrentHashMap();
+
+    /** Layers to be re-indexed entirely. */
+    private Set<String>                 reindex = ConcurrentHashMap.newKeySet();
+
+    private FeatureListener             featureListener;
+
+    private ProjectListener             projectListener;
+
+
+    public IncrementalIndexer( AtlasIndex atlasIndex, IndexWatermarks watermarks ) {
+        this.atlasIndex = atlasIndex;
+        this.watermarks = watermarks;
+    }
+
+
+    public void start() {
+        assert featureListener == null : "start() called twice.";
+        featureListener = new FeatureListener();
+        EventManager.instance().subscribe( featureListener, ifType( FeatureEvent.class, ev ->
+                ev.getType() == Type.COMMIT ) );
+
+        projectListener = new ProjectListener();
+        EventManager.instance().subscribe( projectListener, ifType( ProjectNodeCommittedEvent.class, ev ->
+                ev.getEntityId() != null ) );
+    }
+
+
+    public void stop() {
+        EventManager.instance().unsubscribe( featureListener );
+        EventManager.instance().unsubscribe( projectListener );
+        featureListener = null;
+        projectListener = null;
+    }
+
+
+    /**
+     * Replays the journal of feature ids that were committed but not yet applied
+     * before the last shutdown, and syncs the layers of the root map.
+     */
+    public void catchUp() throws Exception {
+        for (Map.Entry<String,Set<String>> entry : watermarks.journaled().entrySet()) {
+            log.info( "Catching up: " + entry.getKey() + " (" + entry.getValue().size() + " features)" );
+            touched.computeIfAbsent( entry.getKey(), k -> ConcurrentHashMap.newKeySet() ).addAll( entry.getValue() );
+        }
+        syncLayers();
+        scheduleUpdate( UPDATE_DELAY );
+    }
+
+
+    /**
+     * Queues the layers of the root map that have no watermark yet for indexing,
+     * and the layers that have a watermark but are no longer part of the root map
+     * for removal.
+     */
+    protected void syncLayers() {
+        Set<String> removed = watermarks.layerIds();
+        try (UnitOfWork uow = ProjectRepository.newUnitOfWork()) {
+            IMap map = uow.entity( IMap.class, ProjectRepository.ROOT_MAP_ID );
+            for (ILayer layer : map.layers) {
+                if (!removed.remove( layer.id() )) {
+                    reindex.add( (String)layer.id() );
+                }
+            }
+        }
+        // the update job removes layers that are not part of the root map
+        reindex.addAll( removed );
+    }
+
+
+    protected void scheduleUpdate( int delay ) {
+        if (!touched.isEmpty() || !reindex.isEmpty()) {
+            atlasIndex.schedule( () -> new UpdateJob(), delay );
+        }
+    }
+
+
+    /**
+     * Collects the feature ids of {@link FeatureEvent}s.
+     */
+    class FeatureListener {
+        @EventHandler( delay=UPDATE_DELAY, scope=Event.Scope.JVM )
+        protected void onCommit( List<FeatureEvent> evs ) throws Exception {
+            for (FeatureEvent ev : evs) {
+                FeatureSource fs = ev.getFeatureSource();
+                String typeName = fs.getSchema().getName().getLocalPart();
+                Optional<String> layerId = watermarks.layerIdOf( typeName );
+                if (!layerId.isPresent()) {
+                    log.debug( "Not an indexed feature type: " + typeName );
+                    continue;
+                }
+                Filter filter = ev.getFilter();
+                if (filter instanceof Id) {
+                    Set<String> fids = new HashSet();
+                    ((Id)filter).getIDs().forEach( id -> fids.add( id.toString() ) );
+                    // journal and touched in sync with the snapshot of UpdateJob
+                    synchronized (touched) {
+                        watermarks.journal( layerId.get(), fids );
+                        touched.computeIfAbsent( layerId.get(), k -> ConcurrentHashMap.newKeySet() ).addAll( fids );
+                    }
+                }
+                else {
+                    log.info( "No Id filter in event, re-indexing layer: " + layerId.get() );
+                    reindex.add( layerId.get() );
+                }
+            }
+            scheduleUpdate( UPDATE_DELAY );
+        }
+    }
+
+
+    /**
+     * Re-indexes layers that have been changed, added to or removed from the
+     * root map.
+     */
+    class ProjectListener {
+        @EventHandler( delay=UPDATE_DELAY, scope=Event.Scope.JVM )
+        protected void onCommit( List<ProjectNodeCommittedEvent> evs ) throws Exception {
+            for (ProjectNodeCommittedEvent ev : evs) {
+                String id = (String)ev.getEntityId();
+                if (ProjectRepository.ROOT_MAP_ID.equals( id )) {
+                    syncLayers();
+                }
+                else if (watermarks.typeName( id ).isPresent()) {
+                    reindex.add( id );
+                }
+            }
+            scheduleUpdate( UPDATE_DELAY );
+        }
+    }
+
+
+    /**
+     * Applies the collected {@link IncrementalIndexer#touched} features and
+     * {@link IncrementalIndexer#reindex} layers to the index.
+     */
+    class UpdateJob
+            extends UIJob {
+
+        public UpdateJob() {
+            super( IncrementalIndexer.class.getSimpleName() );
+        }
+
+        @Override
+        protected void runWithException( IProgressMonitor monitor ) throws Exception {
+            // take a snapshot; events arriving meanwhile are handled by the next job
+            Set<String> reindexLayers = new HashSet( reindex );
+            reindex.removeAll( reindexLayers );
+            Map<String,Set<String>> touchedFids = new HashMap();
+            Map<String,Long> journalMarks = new HashMap();
+            synchronized (touched) {
+                for (String layerId : new ArrayList<>( touched.keySet() )) {
+                    Set<String> fids = touched.remove( layerId );
+                    if (!reindexLayers.contains( layerId )) {
+                        touchedFids.put( layerId, fids );
+                    }
+                }
+                for (String layerId : union( reindexLayers, touchedFids.keySet() )) {
+                    journalMarks.put( layerId, watermarks.journalMark( layerId ) );
+                }
+            }
+            if (reindexLayers.isEmpty() && touchedFids.isEmpty()) {
+                return;
+            }
+            try {
+                apply( reindexLayers, touchedFids, journalMarks, monitor );
+            }
+            catch (Exception e) {
+                // give the snapshot back; the journal is not truncated yet
+                log.warn( "Update failed, retrying in " + RETRY_DELAY + "ms", e );
+                reindex.addAll( reindexLayers );
+                synchronized (touched) {
+                    for (Map.Entry<String,Set<String>> entry : touchedFids.entrySet()) {
+                        touched.computeIfAbsent( entry.getKey(), k -> ConcurrentHashMap.newKeySet() ).addAll( entry.getValue() );
+                    }
+                }
+                scheduleUpdate( RETRY_DELAY );
+                throw e;
+            }
+        }
+
+
+        protected void apply( Set<String> reindexLayers, Map<String,Set<String>> touchedFids, 
+                Map<String,Long> journalMarks, IProgressMonitor monitor ) throws Exception {
+            monitor.beginTask( getName(), reindexLayers.size() + touchedFids.size() );
+
+            long timestamp = System.currentTimeMillis();
+            Map<String,String> typeNames = new HashMap();
+            try (
+                UnitOfWork uow = ProjectRepository.newUnitOfWork();
+                Updater updater = ((UpdateableFulltextIndex)atlasIndex.index()).prepareUpdate();
+            ){
+                for (String layerId : reindexLayers) {
+                    ILayer layer = uow.entity( ILayer.class, layerId );
+                    Optional<String> typeName = isMapLayer( layer ) ? reindexLayer( layer, updater ) : Optional.empty();
+                    if (typeName.isPresent()) {
+                        typeNames.put( layerId, typeName.get() );
+                    }
+                    else {
+                        // layer removed from the map or no longer an Atlas layer
+                        removeLayer( layerId, updater );
+                    }
+                    monitor.worked( 1 );
+                }
+                for (Map.Entry<String,Set<String>> entry : touchedFids.entrySet()) {
+                    ILayer layer = uow.entity( ILayer.class, entry.getKey() );
+                    Optional<String> typeName = isMapLayer( layer ) ? updateFeatures( layer, entry.getValue(), updater ) : Optional.empty();
+                    if (typeName.isPresent()) {
+                        typeNames.put( entry.getKey(), typeName.get() );
+                    }
+                    else {
+                        // layer removed or no longer an Atlas layer; drop its journal too
+                        removeLayer( entry.getKey(), updater );
+                    }
+                    monitor.worked( 1 );
+                }
+                updater.apply();
+                atlasIndex.indexChanged();
+            }
+            for (Map.Entry<String,String> entry : typeNames.entrySet()) {
+                watermarks.applied( entry.getKey(), entry.getValue(), timestamp, journalMarks.get( entry.getKey() ) );
+                if (reindexLayers.contains( entry.getKey() )) {
+                    watermarks.boundsIndexed( entry.getKey() );
+                }
+            }
+            log.info( "Applied: " + reindexLayers.size() + " layers, " + touchedFids.size() + " incremental" );
+            monitor.done();
+        }
+
+
+        /**
+         * Upserts the documents of the given features and removes the documents of
+         * the features that no longer exist.
+         */
+        protected Optional<String> updateFeatures( ILayer layer, Set<String> fids, Updater updater ) throws Exception {
+            if (!AtlasFeatureLayer.of( layer ).get().isPresent()) {
+                return Optional.empty();
+            }
+            FeatureSource fs = FeatureLayer.of( layer ).get().get().featureSource();
+            Set<FeatureId> ids = new HashSet();
+            fids.forEach( fid -> ids.add( DataPlugin.ff.featureId( fid ) ) );
+
+            Set<String> removed = new HashSet( fids );
+            try (FeatureIterator it = fs.getFeatures( DataPlugin.ff.id( ids ) ).features()) {
+                while (it.hasNext()) {
+                    Feature feature = it.next();
+                    updater.store( atlasIndex.transform( feature ), true );
+                    removed.remove( feature.getIdentifier().getID() );
+                }
+            }
+            for (String fid : removed) {
+                updater.remove( fid );
+            }
+            log.info( layer.label.get() + ": updated " + (fids.size()-removed.size()) + ", removed " + removed.size() );
+            return Optional.of( fs.getSchema().getName().getLocalPart() );
+        }
+
+
+        /**
+         * Stores the documents of all features of the given layer and removes the
+         * documents of this type that no longer exist.
+         */
+        protected Optional<String> reindexLayer( ILayer layer, Updater updater ) throws Exception {
+            if (!AtlasFeatureLayer.of( layer ).get().isPresent()) {
+                return Optional.empty();
+            }
+            FeatureSource fs = FeatureLayer.of( layer ).get().get().featureSource();
+            String typeName = fs.getSchema().getName().getLocalPart();
+            Set<String> removed = indexedFids( typeName );
+            try (FeatureIterator it = fs.getFeatures().features()) {
+                while (it.hasNext()) {
+                    Feature feature = it.next();
+                    updater.store( atlasIndex.transform( feature ), true );
+                    removed.remove( feature.getIdentifier().getID() );
+                }
+            }
+            for (String fid : removed) {
+                updater.remove( fid );
+            }
+            log.info( layer.label.get() + ": re-indexed, removed " + removed.size() );
+            return Optional.of( typeName );
+        }
+
+
+        /**
+         * True if the given layer exists and is part of the root map.
+         */
+        protected boolean isMapLayer( ILayer layer ) {
+            return layer != null && layer.parentMap.get() != null
+                    && ProjectRepository.ROOT_MAP_ID.equals( layer.parentMap.get().id() );
+        }
+
+
+        protected Set<String> union( Set<String> s1, Set<String> s2 ) {
+            Set<String> result = new HashSet( s1 );
+            result.addAll( s2 );
+            return result;
+        }
+
+
+        protected void removeLayer( String layerId, Updater updater ) throws Exception {
+            Optional<String> typeName = watermarks.typeName( layerId );
+            if (typeName.isPresent()) {
+                for (String fid : indexedFids( typeName.get() )) {
+                    updater.remove( fid );
+                }
+            }
+            watermarks.remove( layerId );
+        }
+
+
+        protected Set<String> indexedFids( String typeName ) throws Exception {
+            Set<String> result = new HashSet( 1024 );
+            String query = AtlasFeatureTransformer.FIELD_FEATURETYPE + ":\"" + typeName + "\"";
+            for (JSONObject json : atlasIndex.index().search( query, -1 )) {
+                result.add( json.getString( FulltextIndex.FIELD_ID ) );
+            }
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.atlas.index;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Persistent per-layer state of the {@link AtlasIndex}.
+ * <p/>
+ * For every indexed layer this keeps the feature type name and the time of the
+ * last applied update (the <b>watermark</b>). Feature ids that were touched by a
+ * commit but are not yet applied to the index are <b>journaled</b> in a separate
+ * file per layer. After a restart {@link IncrementalIndexer#catchUp()} replays the
+ * journal and re-indexes layers that have no watermark yet, instead of rebuilding
+ * the entire index.
+ *
+ * @author Falko Bräutigam
+ */
+class IndexWatermarks {
+
+    private static final Log log = LogFactory.getLog( IndexWatermarks.class );
+
+    public static final String  WATERMARKS_FILE = "watermarks.properties";
+
+    public static final String  JOURNAL_SUFFIX = ".journal";
+
+    private File                dir;
+
+    private Properties          props = new Properties();
+
+
+    public IndexWatermarks( File dir ) throws IOException {
+        this.dir = dir;
+        dir.mkdirs();
+        File f = new File( dir, WATERMARKS_FILE );
+        if (f.exists()) {
+            try (InputStream in = new FileInputStream( f )) {
+                props.load( in );
+            }
+        }
+        log.info( "Watermarks: " + layerIds().size() + " layers" );
+    }
+
+
+    /**
+     * The time of the last applied update of the given layer.
+     */
+    public synchronized Optional<Long> watermark( String layerId ) {
+        return Optional.ofNullable( props.getProperty( layerId + ".watermark" ) ).map( v -> Long.valueOf( v ) );
+    }
+
+
+    /**
+     * The name of the feature type of the given layer, as found in the
+     * {@link AtlasFeatureTransformer#FIELD_FEATURETYPE} field of the index.
+     */
+    public synchronized Optional<String> typeName( String layerId ) {
+        return Optional.ofNullable( props.getProperty( layerId + ".typeName" ) );
+    }
+
+
+    /**
+     * Finds the layer the given feature type name belongs to.
+     */
+    public synchronized Optional<String> layerIdOf( String typeName ) {
+        return props.stringPropertyNames().stream()
+                .filter( k -> k.endsWith( ".typeName" ) && props.getProperty( k ).equals( typeName ) )
+                .map( k -> StringUtils.removeEnd( k, ".typeName" ) )
+                .findAny();
+    }
+
+
+    /**
+     * The ids of all layers that have a watermark.
+     */
+    public synchronized Set<String> layerIds() {
+        Set<String> result = new HashSet();
+        for (String k : props.stringPropertyNames()) {
+            if (k.endsWith( ".watermark" )) {
+                result.add( StringUtils.removeEnd( k, ".watermark" ) );
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Durably records the given feature ids as touched but not yet applied to the
+     * index.
+     */
+    public synchronized void journal( String layerId, Collection<String> fids ) throws IOException {
+        StringBuilder buf = new StringBuilder( fids.size() * 16 );
+        fids.forEach( fid -> buf.append( fid ).append( '\n' ) );
+        Files.write( journalFile( layerId ).toPath(), buf.toString().getBytes( UTF_8 ),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND );
+    }
+
+
+    /**
+     * All journaled feature ids, mapped by layer id.
+     */
+    public synchronized Map<String,Set<String>> journaled() throws IOException {
+        Map<String,Set<String>> result = new HashMap();
+        File[] files = dir.listFiles( (d, name) -> name.endsWith( JOURNAL_SUFFIX ) );
+        for (File f : files != null ? files : new File[0]) {
+            String layerId = FilenameUtils.removeExtension( f.getName() );
+            result.put( layerId, new HashSet( FileUtils.readLines( f, UTF_8 ) ) );
+        }
+        return result;
+    }
+
+
+    /**
+     * The current end of the journal of the given layer. Entries before this mark
+     * are consumed by an update that starts now; see
+     * {@link #applied(String, String, long, long)}.
+     */
+    public synchronized long journalMark( String layerId ) {
+        return journalFile( layerId ).length();
+    }
+
+
+    /**
+     * Sets the watermark of the given layer and removes the journal entries before
+     * the given mark. Entries journaled after the mark are kept, as they might not
+     * have been seen by the update. Call this after the
+     * {@link org.polymap.rhei.fulltext.update.UpdateableFulltextIndex.Updater}
+     * has been applied.
+     *
+     * @param journalMark The {@link #journalMark(String)} taken when the update started.
+     */
+    public synchronized void applied( String layerId, String typeName, long timestamp, long journalMark ) 
+            throws IOException {
+        props.setProperty( layerId + ".watermark", String.valueOf( timestamp ) );
+        props.setProperty( layerId + ".typeName", typeName );
+        truncateJournal( layerId, journalMark );
+        save();
+    }
+
+
+    /**
+     * Removes the entries before the given mark from the journal of the given layer.
+     */
+    protected void truncateJournal( String layerId, long journalMark ) throws IOException {
+        File f = journalFile( layerId );
+        if (!f.exists() || journalMark <= 0) {
+            return;
+        }
+        if (journalMark >= f.length()) {
+            FileUtils.deleteQuietly( f );
+            return;
+        }
+        File tmp = new File( dir, f.getName() + ".tmp" );
+        try (
+            FileChannel in = FileChannel.open( f.toPath(), StandardOpenOption.READ );
+            FileChannel out = FileChannel.open( tmp.toPath(), StandardOpenOption.CREATE, 
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+        ){
+            for (long pos = journalMark, size = in.size(); pos < size; ) {
+                pos += in.transferTo( pos, size - pos, out );
+            }
+        }
+        Files.move( tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+
+    /**
+     * True if all documents of the given layer have been indexed including their
+     * bounds, so that an extent can be part of a query.
+     *
+     * @see AtlasFeatureTransformer#extentQuery(org.geotools.geometry.jts.ReferencedEnvelope)
+     */
+    public synchronized boolean hasBounds( String layerId ) {
+        return Boolean.parseBoolean( props.getProperty( layerId + ".bounds" ) );
+    }
+
+
+    /**
+     * Marks the given layer as fully indexed including bounds.
+     */
+    public synchronized void boundsIndexed( String layerId ) throws IOException {
+        props.setProperty( layerId + ".bounds", "true" );
+        save();
+    }
+
+
+    /**
+     * Forgets everything about the given layer.
+     */
+    public synchronized void remove( String layerId ) throws IOException {
+        props.remove( layerId + ".watermark" );
+        props.remove( layerId + ".typeName" );
+        props.remove( layerId + ".bounds" );
+        FileUtils.deleteQuietly( journalFile( layerId ) );
+        save();
+    }
+
+
+    protected File journalFile( String layerId ) {
+        return new File( dir, FilenameUtils.normalize( layerId ) + JOURNAL_SUFFIX );
+    }
+
+
+    protected void save() throws IOException {
+        File f = new File( dir, WATERMARKS_FILE );
+        File tmp = new File( dir, WATERMARKS_FILE + ".tmp" );
+        try (OutputStream out = new FileOutputStream( tmp )) {
+            props.store( out, "AtlasIndex watermarks" );
+        }
+        Files.move( tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+}
@@ -1,4 +1,4 @@
-/* 
+/*
  * polymap.org
  * Copyright (C) 2017, the @authors. All rights reserved.
  *
@@ -14,24 +14,51 @@
  */
 package org.polymap.p4.atlas.index;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.geotools.data.FeatureSource;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureIterator;
 import org.json.JSONObject;
+import org.opengis.feature.Feature;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.polymap.core.project.ILayer;
 import org.polymap.core.runtime.UIJob;
+import org.polymap.core.runtime.config.Config;
+import org.polymap.core.runtime.config.ConfigurationFactory;
+import org.polymap.core.runtime.config.DefaultInt;
+import org.polymap.core.runtime.config.Mandatory;
 
 import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex.Updater;
 
 import org.polymap.p4.layer.FeatureLayer;
 
 /**
- * 
+ * Indexes the features of one layer.
+ * <p/>
+ * Indexing is done in a pipeline: the job thread reads the features in chunks of
+ * {@link #batchSize}, the chunks are transformed into {@link JSONObject}s by the
+ * {@link #transformer} pool and the job thread hands the results to the
+ * {@link Updater} in the order they were read. The pool is shared by all layer
+ * jobs, so that indexing many layers at once does not oversubscribe the CPU. At
+ * most {@link #queueSize} features per layer are pending, so a slow
+ * {@link Updater} throttles the reader instead of filling up memory.
+ * <p/>
+ * If the job is canceled it throws {@link OperationCanceledException}; the
+ * documents already stored must not be applied then.
  *
  * @author Falko Bräutigam
  */
@@ -40,51 +67,180 @@ class LayerIndexer
 
     private static final Log log = LogFactory.getLog( LayerIndexer.class );
 
+    /** The number of threads of the {@link #transformer}. */
+    public static final int     TRANSFORM_THREADS = Integer.getInteger( "org.polymap.p4.atlas.indexThreads",
+            Runtime.getRuntime().availableProcessors() );
+
+    private static final AtomicInteger  threadCount = new AtomicInteger();
+
+    /** Transforms the features of all layer jobs. */
+    private static final ExecutorService transformer = Executors.newFixedThreadPool( TRANSFORM_THREADS, r -> {
+        Thread thread = new Thread( r, LayerIndexer.class.getSimpleName() + "-" + threadCount.getAndIncrement() );
+        thread.setDaemon( true );
+        return thread;
+    });
+
+    /** The number of documents handed to the {@link Updater} at once. */
+    @Mandatory
+    @DefaultInt( 500 )
+    public Config<Integer>      batchSize;
+
+    /** The max number of features of this layer read but not yet written. */
+    @Mandatory
+    @DefaultInt( 2000 )
+    public Config<Integer>      queueSize;
+
     private ILayer              layer;
-    
+
     private Updater             updater;
 
     private AtlasIndex          atlasIndex;
-    
-    
+
+    private String              typeName;
+
+    private AtomicInteger       written = new AtomicInteger();
+
+    private volatile boolean    succeeded;
+
+    private volatile boolean    canceled;
+
+
     public LayerIndexer( ILayer layer, Updater updater, AtlasIndex atlasIndex ) {
         super( LayerIndexer.class.getSimpleName() + ": " + layer.label.get() );
+        ConfigurationFactory.inject( this );
         this.updater = updater;
         this.layer = layer;
         this.atlasIndex = atlasIndex;
     }
 
 
-//    @Override
-//    protected IStatus run( IProgressMonitor monitor ) {
-//        try {
-//            runWithException( monitor );
-//            return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
-//        }
-//        catch (Exception e) {
-//            throw new RuntimeException( e );
-//        }
-//    }
-
-    
     @Override
     protected void runWithException( IProgressMonitor monitor ) throws Exception {
         FeatureLayer featureLayer = FeatureLayer.of( layer ).get().get();
         FeatureSource fs = featureLayer.featureSource();
+        typeName = fs.getSchema().getName().getLocalPart();
         FeatureCollection features = fs.getFeatures();
-        monitor.beginTask( layer.label.get(), IProgressMonitor.UNKNOWN /*features.size()*/ );
+        int total = features.size();
+        monitor.beginTask( layer.label.get(), total >= 0 ? total : IProgressMonitor.UNKNOWN );
+
+        int maxPending = Math.max( 1, queueSize.get() / batchSize.get() );
+        Deque<Future<List<JSONObject>>> pending = new ArrayDeque();
+        long start = System.currentTimeMillis();
+        int reported = 0;
+        int count = 0;
         try (
             FeatureIterator it = features.features();
         ){
-            int count = 0;
-            for (;it.hasNext(); count++) {
-                JSONObject json = atlasIndex.transform( it.next() );
-                updater.store( json, true );
-                monitor.worked( 1 );
+            List<Feature> chunk = new ArrayList( batchSize.get() );
+            while (it.hasNext() && !monitor.isCanceled()) {
+                chunk.add( it.next() );
+                count ++;
+                if (chunk.size() >= batchSize.get()) {
+                    pending.add( submit( chunk ) );
+                    chunk = new ArrayList( batchSize.get() );
+                    while (pending.size() >= maxPending) {
+                        write( pending.poll() );
+                    }
+                    reported = reportProgress( monitor, reported, start );
+                }
+            }
+            if (!chunk.isEmpty() && !monitor.isCanceled()) {
+                pending.add( submit( chunk ) );
             }
-            log.info( "indexed: " + count );
+            while (!pending.isEmpty() && !monitor.isCanceled()) {
+                write( pending.poll() );
+                reported = reportProgress( monitor, reported, start );
+            }
+            if (monitor.isCanceled()) {
+                canceled = true;
+                throw new OperationCanceledException( "Indexing canceled: " + layer.label.get() );
+            }
+            log.info( "indexed: " + count + " (" + featuresPerSecond( start ) + "/s)" );
+            succeeded = true;
+        }
+        catch (ExecutionException e) {
+            throw new Exception( "Error while indexing layer: " + layer.label.get(), e.getCause() );
+        }
+        finally {
+            pending.forEach( f -> f.cancel( true ) );
         }
         monitor.done();
     }
-    
+
+
+    /**
+     * Submits the transformation of the given chunk {@link Feature} ->
+     * {@link JSONObject} to the {@link #transformer}.
+     */
+    protected Future<List<JSONObject>> submit( List<Feature> chunk ) {
+        return transformer.submit( () -> {
+            List<JSONObject> result = new ArrayList( chunk.size() );
+            for (Feature feature : chunk) {
+                result.add( atlasIndex.transform( feature ) );
+            }
+            return result;
+        });
+    }
+
+
+    /**
+     * Waits for the given transformed chunk and stores it in the {@link #updater}.
+     */
+    protected void write( Future<List<JSONObject>> chunk ) throws Exception {
+        List<JSONObject> docs = chunk.get();
+        synchronized (updater) {
+            for (JSONObject doc : docs) {
+                updater.store( doc, true );
+            }
+        }
+        written.addAndGet( docs.size() );
+    }
+
+
+    protected int reportProgress( IProgressMonitor monitor, int reported, long start ) {
+        int current = written.get();
+        if (current > reported) {
+            monitor.worked( current - reported );
+            monitor.subTask( current + " (" + featuresPerSecond( start ) + " features/s)" );
+        }
+        return current;
+    }
+
+
+    protected long featuresPerSecond( long start ) {
+        long millis = Math.max( 1, System.currentTimeMillis() - start );
+        return written.get() * 1000L / millis;
+    }
+
+
+    public ILayer layer() {
+        return layer;
+    }
+
+
+    /**
+     * True if all features of the layer have been handed to the {@link Updater}.
+     */
+    public boolean succeeded() {
+        return succeeded;
+    }
+
+
+    /**
+     * True if the job was canceled while indexing; the {@link Updater} contains
+     * just part of the features then.
+     */
+    public boolean canceled() {
+        return canceled;
+    }
+
+
+    /**
+     * The name of the feature type of the indexed layer, or null if the indexer
+     * has not been run yet.
+     */
+    public String typeName() {
+        return typeName;
+    }
+
 }
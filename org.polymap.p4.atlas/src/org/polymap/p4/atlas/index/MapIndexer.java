@@ -15,12 +15,15 @@
 package org.polymap.p4.atlas.index;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.polymap.core.project.ILayer;
 import org.polymap.core.project.IMap;
 import org.polymap.core.runtime.UIJob;
@@ -66,6 +69,9 @@ class MapIndexer
 
     @Override
     protected void runWithException( IProgressMonitor monitor ) throws Exception {
+        long timestamp = System.currentTimeMillis();
+        List<LayerIndexer> layerIndexers = new ArrayList();
+        Map<String,Long> journalMarks = new HashMap();
         try (
             UnitOfWork uow = ProjectRepository.newUnitOfWork();
             Updater updater = ((UpdateableFulltextIndex)atlasIndex.index()).prepareUpdate();
@@ -73,9 +79,10 @@ class MapIndexer
             // start layer jobs
             IMap map = uow.entity( IMap.class, ProjectRepository.ROOT_MAP_ID );
             log.info( "Starting: " + map.label.get() );
-            List<LayerIndexer> layerIndexers = new ArrayList();
             for (ILayer layer : map.layers) {
                 if (AtlasFeatureLayer.of( layer ).get().isPresent()) {
+                    // journaled features committed before are covered by the re-index
+                    journalMarks.put( (String)layer.id(), atlasIndex.watermarks().journalMark( (String)layer.id() ) );
                     LayerIndexer indexer = new LayerIndexer( layer, updater, atlasIndex );
                     indexer.schedule();
                     layerIndexers.add( indexer );
@@ -84,9 +91,27 @@ class MapIndexer
             // wait for layer jobs
             UIJob.joinJobs( layerIndexers );
             
+            // do not apply a partial index; no watermarks, so catchUp() starts over
+            if (monitor.isCanceled() || layerIndexers.stream().anyMatch( indexer -> indexer.canceled() )) {
+                log.info( "Canceled: " + map.label.get() );
+                throw new OperationCanceledException();
+            }
             updater.apply();
+            atlasIndex.indexChanged();
             log.info( "Done: " + map.label.get() );
         }
+        // watermarks allow IncrementalIndexer to catch up after restart;
+        // failed layers have no watermark and are re-indexed by catchUp()
+        for (LayerIndexer indexer : layerIndexers) {
+            String layerId = (String)indexer.layer().id();
+            if (indexer.succeeded()) {
+                atlasIndex.watermarks().applied( layerId, indexer.typeName(), timestamp, journalMarks.get( layerId ) );
+                atlasIndex.watermarks().boundsIndexed( layerId );
+            }
+            else {
+                log.warn( "Not completely indexed: " + indexer.layer().label.get() );
+            }
+        }
     }
 
 }
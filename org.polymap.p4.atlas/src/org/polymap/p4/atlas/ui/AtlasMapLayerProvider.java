@@ -17,15 +17,21 @@ package org.polymap.p4.atlas.ui;
 import java.util.Collections;
 import java.util.Map;
 
+import org.opengis.filter.Filter;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.polymap.core.data.DataPlugin;
 import org.polymap.core.data.feature.FeatureRenderProcessor2;
 import org.polymap.core.data.pipeline.Pipeline;
 import org.polymap.core.data.pipeline.PipelineProcessorSite;
 import org.polymap.core.data.pipeline.ProcessorDescription;
 import org.polymap.core.project.ILayer;
 
+import org.polymap.p4.atlas.AtlasFeatureLayer;
+import org.polymap.p4.atlas.LayerQueryBuilder;
+import org.polymap.p4.layer.FeatureLayer;
 import org.polymap.p4.map.ProjectLayerProvider;
 
 /**
@@ -39,8 +45,8 @@ public class AtlasMapLayerProvider
     private static final Log log = LogFactory.getLog( AtlasMapLayerProvider.class );
 
     @Override
-    protected Pipeline createPipeline( String layerName ) {
-        Pipeline pipeline = super.createPipeline( layerName );
+    protected Pipeline buildPipeline( String layerName ) throws Exception {
+        Pipeline pipeline = super.buildPipeline( layerName );
         
         // add filter processor
         try {
@@ -61,5 +67,24 @@ public class AtlasMapLayerProvider
             throw new RuntimeException( e );
         }
     }
+
+
+    /**
+     * Tiles filtered by the fulltext query of the session must not be cached.
+     */
+    @Override
+    protected boolean isCacheable( ILayer layer ) {
+        LayerQueryBuilder query = AtlasFeatureLayer.query();
+        return !(query.queryText.isPresent() && query.mapExtent.isPresent());
+    }
+
+
+    @Override
+    protected Filter vectorTileFilter( FeatureLayer fl ) throws Exception {
+        Filter filter = super.vectorTileFilter( fl );
+        Filter fulltext = AtlasFeatureLayer.query().fulltextFilter( fl.layer() );
+        return fulltext == Filter.INCLUDE ? filter 
+                : filter == Filter.INCLUDE ? fulltext : DataPlugin.ff.and( filter, fulltext );
+    }
     
 }
@@ -38,6 +38,8 @@ import org.polymap.core.data.pipeline.Produces;
 import org.polymap.core.project.ILayer;
 
 import org.polymap.p4.atlas.AtlasFeatureLayer;
+import org.polymap.p4.atlas.LayerQueryBuilder;
+import org.polymap.p4.atlas.index.AtlasIndex;
 
 /**
  * 
@@ -50,6 +52,11 @@ public class FilterFeatureProcessor
     private static final Log log = LogFactory.getLog( FilterFeatureProcessor.class );
 
     private ILayer          layer;
+    
+    /** The {@link #fulltext} filter is valid for this query and index generation. */
+    private String          fulltextKey;
+    
+    private Filter          fulltext;
 
 
     @Override
@@ -60,11 +67,29 @@ public class FilterFeatureProcessor
     
     protected Query adapt( Query query ) throws Exception {
         Filter orig = query.getFilter();
-        Filter fulltext = AtlasFeatureLayer.of( layer ).get().get().fulltextFilter();
-        query.setFilter( DataPlugin.ff.and( orig, fulltext ) );
+        query.setFilter( DataPlugin.ff.and( orig, fulltextFilter() ) );
         return query;
     }
     
+
+    /**
+     * The fulltext filter of the current session. The same filter is re-used for
+     * size, bounds and features requests of this processor as long as query text
+     * and index have not changed. {@link AtlasIndex} caches just the compact ids of
+     * the result; every processor builds its own filter from them.
+     */
+    protected synchronized Filter fulltextFilter() throws Exception {
+        LayerQueryBuilder query = AtlasFeatureLayer.query();
+        String key = (query.queryText.isPresent() ? query.queryText.get() : "") 
+                + "|" + query.mapExtent.isPresent() 
+                + "|" + AtlasIndex.instance().generation();
+        if (!key.equals( fulltextKey )) {
+            fulltext = query.fulltextFilter( layer );
+            fulltextKey = key;
+        }
+        return fulltext;
+    }
+    
     
     @Override
     public void getFeatureSizeRequest( GetFeaturesSizeRequest request, ProcessorContext context ) throws Exception {
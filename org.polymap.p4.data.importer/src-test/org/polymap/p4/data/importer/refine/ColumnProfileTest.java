@@ -0,0 +1,100 @@
+/*
+ * polymap.org Copyright (C) @year@ individual contributors as indicated by
+ * the @authors tag. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ */
+package org.polymap.p4.data.importer.refine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.Locale;
+
+import org.junit.Test;
+
+public class ColumnProfileTest {
+
+    @Test
+    public void testTypes() {
+        assertEquals( String.class, profile().type() );
+        assertEquals( String.class, profile( null, null ).type() );
+        assertEquals( Long.class, profile( 1L, null, 3L ).type() );
+        assertEquals( Double.class, profile( 1L, 2.5, 3L ).type() );
+        assertEquals( Double.class, profile( 2.5, 1L ).type() );
+        assertEquals( String.class, profile( 1L, "a", 3L ).type() );
+        assertEquals( Boolean.class, profile( true, false ).type() );
+        assertEquals( String.class, profile( true, new Date() ).type() );
+        assertEquals( String.class, profile( 1L, true ).type() );
+    }
+
+
+    @Test
+    public void testStatistics() {
+        ColumnProfile profile = profile( 3L, null, -2.5, 7L, null );
+        assertEquals( 5, profile.count() );
+        assertEquals( 2, profile.nullCount() );
+        assertEquals( -2.5, profile.min(), 0 );
+        assertEquals( 7, profile.max(), 0 );
+        assertTrue( Double.isNaN( profile( "a" ).min() ) );
+    }
+
+
+    @Test
+    public void testDistinctEstimate() {
+        assertEquals( 0, profile( null, null ).distinctEstimate() );
+        assertEquals( 2, profile( "a", "b", "a", "b" ).distinctEstimate() );
+
+        ColumnProfile profile = new ColumnProfile( "test" );
+        for (int i = 0; i < 100000; i++) {
+            profile.accept( (long)(i % 10000) );
+        }
+        long estimate = profile.distinctEstimate();
+        assertTrue( String.valueOf( estimate ), estimate > 8000 && estimate < 12000 );
+    }
+
+
+    @Test
+    public void testCoordinates() {
+        assertTrue( profile( 51.5, -0.1 ).isLatitudePlausible() );
+        assertTrue( profile( 51.5, -0.1 ).isLongitudePlausible() );
+        assertFalse( profile( 120.5, 13.4 ).isLatitudePlausible() );
+        assertTrue( profile( 120.5, 13.4 ).isLongitudePlausible() );
+        assertFalse( profile( 5650000L, 5650100L ).isLongitudePlausible() );
+        assertFalse( profile( "51.5" ).isLatitudePlausible() );
+    }
+
+
+    @Test
+    public void testLocale() {
+        ColumnProfile profile = new ColumnProfile( "test" );
+        profile.acceptLocale( null );
+        assertNull( profile.locale() );
+        profile.acceptLocale( Locale.GERMAN );
+        profile.acceptLocale( null );
+        assertEquals( Locale.GERMAN, profile.locale() );
+        profile.acceptLocale( Locale.ENGLISH );
+        assertNull( profile.locale() );
+        profile.acceptLocale( Locale.GERMAN );
+        assertNull( profile.locale() );
+    }
+
+
+    protected ColumnProfile profile( Object... values ) {
+        ColumnProfile result = new ColumnProfile( "test" );
+        for (Object value : values) {
+            result.accept( value );
+        }
+        return result;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * polymap.org Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 3.0 of the License, or (at your option) any later
+ * version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ */
+package org.polymap.p4.data.importer.wfs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.FeatureStore;
+import org.geotools.data.Query;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+
+/**
+ * Harvests a {@link MemoryDataStore} standing in for a remote WFS.
+ */
+public class WfsHarvesterTest {
+
+    private static final int    COUNT = 2500;
+
+    private SimpleFeatureSource source;
+
+    private FeatureStore        target;
+
+
+    @Before
+    public void setUp() throws Exception {
+        SimpleFeatureTypeBuilder ftb = new SimpleFeatureTypeBuilder();
+        ftb.setName( "points" );
+        ftb.add( "geom", Point.class );
+        ftb.add( "n", Integer.class );
+        SimpleFeatureType schema = ftb.buildFeatureType();
+
+        MemoryDataStore remote = new MemoryDataStore( schema );
+        GeometryFactory gf = JTSFactoryFinder.getGeometryFactory();
+        SimpleFeatureBuilder fb = new SimpleFeatureBuilder( schema );
+        for (int i = 0; i < COUNT; i++) {
+            fb.add( gf.createPoint( new Coordinate( i % 50, i / 50 ) ) );
+            fb.add( i );
+            remote.addFeature( fb.buildFeature( "points." + i ) );
+        }
+        source = remote.getFeatureSource( "points" );
+
+        MemoryDataStore local = new MemoryDataStore();
+        local.createSchema( schema );
+        target = (FeatureStore)local.getFeatureSource( "points" );
+    }
+
+
+    @Test
+    public void paged() throws Exception {
+        WfsHarvester harvester = new WfsHarvester( source, target ).paging.put( true ).pageSize.put( 300 );
+        assertTrue( harvester.harvest( new NullProgressMonitor() ) );
+        assertEquals( COUNT, harvester.count() );
+        assertEquals( COUNT, target.getCount( Query.ALL ) );
+    }
+
+
+    @Test
+    public void foreignTarget() throws Exception {
+        addForeignFeature();
+        // no checkpoint records the target, so it is never cleared
+        WfsHarvester harvester = new WfsHarvester( source, target ).paging.put( true ).pageSize.put( 300 );
+        assertTrue( harvester.harvest( new NullProgressMonitor() ) );
+        assertEquals( COUNT + 1, target.getCount( Query.ALL ) );
+    }
+
+
+    @Test
+    public void ownTarget() throws Exception {
+        addForeignFeature();
+        // checkpoint of a different harvest into the same target
+        File checkpoint = File.createTempFile( "harvest", ".checkpoint" );
+        Files.write( checkpoint.toPath(), Arrays.asList( "points|other", "0" ), UTF_8 );
+        assertEquals( "points", WfsHarvester.target( checkpoint ) );
+
+        WfsHarvester harvester = new WfsHarvester( source, target )
+                .paging.put( true ).pageSize.put( 300 ).checkpoint.put( checkpoint );
+        assertTrue( harvester.harvest( new NullProgressMonitor() ) );
+        assertEquals( COUNT, target.getCount( Query.ALL ) );
+        assertFalse( checkpoint.exists() );
+    }
+
+
+    protected void addForeignFeature() throws Exception {
+        SimpleFeatureBuilder fb = new SimpleFeatureBuilder( (SimpleFeatureType)target.getSchema() );
+        fb.add( JTSFactoryFinder.getGeometryFactory().createPoint( new Coordinate( 0, 0 ) ) );
+        fb.add( -1 );
+        target.addFeatures( DataUtilities.collection( fb.buildFeature( "foreign.1" ) ) );
+    }
+
+
+    @Test
+    public void tiled() throws Exception {
+        WfsHarvester harvester = new WfsHarvester( source, target ).paging.put( false ).tiles.put( 7 );
+        assertTrue( harvester.harvest( new NullProgressMonitor() ) );
+        assertEquals( COUNT, target.getCount( Query.ALL ) );
+    }
+
+
+    @Test
+    public void resume() throws Exception {
+        File checkpoint = File.createTempFile( "harvest", ".checkpoint" );
+        checkpoint.delete();
+
+        NullProgressMonitor cancelAfterFirstPage = new NullProgressMonitor() {
+            @Override
+            public void worked( int work ) {
+                setCanceled( true );
+            }
+        };
+        WfsHarvester harvester = new WfsHarvester( source, target )
+                .paging.put( true ).pageSize.put( 100 ).connections.put( 1 ).checkpoint.put( checkpoint );
+        assertFalse( harvester.harvest( cancelAfterFirstPage ) );
+        assertTrue( checkpoint.exists() );
+        int first = target.getCount( Query.ALL );
+        assertTrue( first > 0 && first < COUNT );
+
+        assertTrue( harvester.harvest( new NullProgressMonitor() ) );
+        assertEquals( COUNT - first, harvester.count() );
+        assertEquals( COUNT, target.getCount( Query.ALL ) );
+        assertFalse( checkpoint.exists() );
+    }
+
+}
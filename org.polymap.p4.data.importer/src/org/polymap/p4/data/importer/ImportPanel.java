@@ -31,6 +31,7 @@ import java.io.OutputStream;
 
 import org.geotools.feature.FeatureCollection;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -159,6 +160,12 @@ public class ImportPanel
     public void dispose() {
         nextContext.set( context.importer() != null ? context : null );
         EventManager.instance().unsubscribe( this );
+        
+        // root panel: the import is done, release all staged files
+        if (context.importer() == null) {
+            context.dispose();
+        }
+        FileUtils.deleteQuietly( tempDir );
     }
 
 
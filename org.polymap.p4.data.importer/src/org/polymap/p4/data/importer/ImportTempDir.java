@@ -14,9 +14,15 @@
  */
 package org.polymap.p4.data.importer;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
@@ -26,6 +32,12 @@ import org.polymap.core.CorePlugin;
 
 /**
  * Provides temp dirs for uploaded files and temp content of {@link Importer}s.  
+ * <p/>
+ * Files can be <b>staged</b> via {@link #stage(File)}: the staged file is a hard
+ * link to the source if possible, so that no content is copied. Staged files and
+ * temp dirs are reference counted via {@link #acquire(File)} and
+ * {@link #release(File)} and are deleted when the last reference is released.
+ * Usually this is done by {@link ImporterContext#dispose()}.
  *
  * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
  */
@@ -35,6 +47,9 @@ public class ImportTempDir {
     
     private static final File   baseTempDir = new File( CorePlugin.getDataLocation( ImporterPlugin.instance() ), "temp" );
 
+    /** Reference counts of staged files and temp dirs. */
+    private static final Map<File,AtomicInteger> refs = new ConcurrentHashMap();
+
     
     static {
         try {
@@ -57,4 +72,73 @@ public class ImportTempDir {
         }
     }
     
+    
+    /**
+     * Stages the given file into a newly created temp dir. The result is a hard
+     * link to the source if possible, otherwise the content is transfered via
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+     * Consumers may delete the result without affecting the source.
+     * <p/>
+     * The result has a reference count of 1.
+     *
+     * @param source The file to stage.
+     * @return The newly created staged file, with the same name as the source.
+     */
+    public static File stage( File source ) throws IOException {
+        File target = new File( create(), source.getName() );
+        try {
+            Files.createLink( target.toPath(), source.toPath() );
+            log.debug( "Linked: " + source + " -> " + target );
+        }
+        catch (UnsupportedOperationException|IOException e) {
+            // other file system or no support for hard links
+            try (
+                FileChannel in = FileChannel.open( source.toPath(), StandardOpenOption.READ );
+                FileChannel out = FileChannel.open( target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE );
+            ){
+                for (long pos = 0, size = in.size(); pos < size; ) {
+                    pos += in.transferTo( pos, size - pos, out );
+                }
+            }
+            log.debug( "Transfered: " + source + " -> " + target );
+        }
+        return acquire( target );
+    }
+
+
+    /**
+     * Increments the reference count of the given staged file or temp dir.
+     *
+     * @return The given file.
+     */
+    public static File acquire( File f ) {
+        refs.computeIfAbsent( f, key -> new AtomicInteger() ).incrementAndGet();
+        return f;
+    }
+
+
+    /**
+     * Decrements the reference count of the given staged file or temp dir. The file
+     * is deleted if it is no longer referenced. An empty temp dir of a staged file is
+     * deleted too.
+     */
+    public static void release( File f ) {
+        AtomicInteger count = refs.get( f );
+        if (count == null) {
+            log.warn( "Not staged: " + f );
+        }
+        else if (count.decrementAndGet() <= 0) {
+            refs.remove( f );
+            FileUtils.deleteQuietly( f );
+            File parent = f.getParentFile();
+            if (parent != null && baseTempDir.equals( parent.getParentFile() )) {
+                String[] children = parent.list();
+                if (children != null && children.length == 0) {
+                    parent.delete();
+                }
+            }
+            log.debug( "Released: " + f );
+        }
+    }
+    
 }
@@ -18,15 +18,19 @@ import static java.util.stream.Collectors.toMap;
 import static org.polymap.core.runtime.UIThreadExecutor.asyncFast;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.EventObject;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Field;
 
 import org.apache.commons.logging.Log;
@@ -39,6 +43,7 @@ import org.eclipse.swt.layout.FillLayout;
 import org.eclipse.swt.widgets.Composite;
 
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.core.runtime.SubProgressMonitor;
 import org.eclipse.core.runtime.jobs.IJobChangeEvent;
 import org.eclipse.core.runtime.jobs.JobChangeAdapter;
@@ -87,6 +92,15 @@ public class ImporterContext
 
     private IPanelToolkit                   resultViewerTk;
 
+    /** The contexts created by the last {@link #findNext(IProgressMonitor)}. */
+    private List<ImporterContext>           children = new ArrayList();
+
+    /** The contexts created ahead by {@link #prepareNext(List)}, keyed by their files. */
+    private Map<List<File>,List<ImporterContext>> prepared = new LinkedHashMap();
+
+    /** Staged files and temp dirs to be released by {@link #dispose()}. */
+    private List<File>                      tempFiles = new ArrayList();
+
 
     /**
      * Creates a starting context without importer and no context set.
@@ -203,6 +217,101 @@ public class ImporterContext
     }
     
     
+    /**
+     * Disposes this context and all contexts created by
+     * {@link #findNext(IProgressMonitor)}. Releases all files staged by
+     * {@link #stage(File)} and all temp dirs created by {@link #createTempDir()}.
+     */
+    public void dispose() {
+        EventManager.instance().unsubscribe( this );
+        if (verifier != null) {
+            verifier.cancel();
+            verifier = null;
+        }
+        disposePrepared();
+        disposeNextContexts();
+        synchronized (tempFiles) {
+            tempFiles.forEach( f -> ImportTempDir.release( f ) );
+            tempFiles.clear();
+        }
+    }
+
+
+    protected void disposeNextContexts() {
+        synchronized (children) {
+            children.forEach( child -> child.dispose() );
+            children.clear();
+        }
+    }
+
+
+    /**
+     * Disposes the contexts created by {@link #prepareNext(List)} that were not
+     * taken by {@link #findNext(IProgressMonitor)}. Called by an importer that
+     * starts a new verification.
+     */
+    public void disposePrepared() {
+        synchronized (prepared) {
+            prepared.values().forEach( contexts -> contexts.forEach( child -> child.dispose() ) );
+            prepared.clear();
+        }
+    }
+
+
+    /**
+     * Creates the contexts of the importers of the given files ahead of
+     * {@link #findNext(IProgressMonitor)}, while the importer of this context is
+     * still verifying. The new contexts start verifying immediately.
+     * {@link #findNext(IProgressMonitor)} takes them if all the files are part of
+     * its {@link ContextOut} list of files. Contexts of files that overlap the given
+     * files are replaced.
+     *
+     * @param files Files that belong together, the files of a shapefile for example.
+     */
+    public void prepareNext( List<File> files ) throws Exception {
+        List<ImporterContext> contexts = createNext( Collections.singletonMap( List.class, files ), new NullProgressMonitor() );
+        synchronized (prepared) {
+            for (Iterator<Map.Entry<List<File>,List<ImporterContext>>> it = prepared.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<List<File>,List<ImporterContext>> entry = it.next();
+                if (!Collections.disjoint( entry.getKey(), files )) {
+                    entry.getValue().forEach( child -> child.dispose() );
+                    it.remove();
+                }
+            }
+            prepared.put( files, contexts );
+        }
+    }
+
+
+    /**
+     * Stages the given file for an importer of this context, without copying its
+     * content if possible. The staged file is released when this context is
+     * disposed.
+     *
+     * @see ImportTempDir#stage(File)
+     */
+    public File stage( File f ) throws IOException {
+        File result = ImportTempDir.stage( f );
+        synchronized (tempFiles) {
+            tempFiles.add( result );
+        }
+        return result;
+    }
+
+
+    /**
+     * Creates a new temp dir for an importer of this context. The dir is deleted
+     * when this context is disposed.
+     */
+    public File createTempDir() {
+        File result = ImportTempDir.acquire( ImportTempDir.create() );
+        synchronized (tempFiles) {
+            tempFiles.add( result );
+        }
+        return result;
+    }
+
+
     public Importer importer() {
         return importer;
     }
@@ -226,12 +335,52 @@ public class ImporterContext
     
     /**
      * List of {@link Importer}s that are able to handle the current context.
+     * Contexts created ahead by {@link #prepareNext(List)} are taken if their
+     * files are still part of the context.
      * 
      * @param monitor 
      * @throws IllegalAccessException 
      * @throws InstantiationException 
      */
     public List<ImporterContext> findNext( IProgressMonitor monitor ) throws Exception {
+        List<ImporterContext> result = new ArrayList();
+        Map<Class,Object> values = contextOut;
+
+        // take the contexts prepared for files that are (still) selected
+        Object files = contextOut.get( List.class );
+        synchronized (prepared) {
+            if (!prepared.isEmpty() && files instanceof List) {
+                List<File> rest = new ArrayList( (List<File>)files );
+                for (Map.Entry<List<File>,List<ImporterContext>> entry : prepared.entrySet()) {
+                    if (rest.containsAll( entry.getKey() )) {
+                        rest.removeAll( entry.getKey() );
+                        result.addAll( entry.getValue() );
+                    }
+                    else {
+                        entry.getValue().forEach( child -> child.dispose() );
+                    }
+                }
+                prepared.clear();
+                values = new HashMap( contextOut );
+                values.put( List.class, rest );
+            }
+        }
+        result.addAll( createNext( values, monitor ) );
+
+        // the previous contexts are replaced in the viewer
+        disposeNextContexts();
+        synchronized (children) {
+            children.addAll( result );
+        }
+        return result;
+    }
+
+
+    /**
+     * Creates the contexts of all importers that are able to handle the given
+     * context values.
+     */
+    protected List<ImporterContext> createNext( Map<Class,Object> values, IProgressMonitor monitor ) throws Exception {
         List<ImporterExtension> exts = ImporterExtension.all();
         monitor.beginTask( "Check importers", exts.size()*10 );
         
@@ -239,7 +388,7 @@ public class ImporterContext
         
         for (ImporterExtension ext : exts) {
             ImporterFactory factory = ext.createFactory();
-            injectContextIn( factory, contextOut );
+            injectContextIn( factory, values );
             SubProgressMonitor submon = new SubProgressMonitor( monitor, 10 );
 
             factory.createImporters( new ImporterBuilder() {
@@ -62,7 +62,12 @@ public abstract class ImporterSite
     public Config2<ImporterPrompt,Boolean>  ok;
     
 
-    abstract ImporterContext context();
+    /**
+     * The context of this importer; used by importers to stage files and to create
+     * temp dirs via {@link ImporterContext#stage(java.io.File)} and
+     * {@link ImporterContext#createTempDir()}.
+     */
+    public abstract ImporterContext context();
 
     public abstract ImporterPrompt newPrompt( String id );
 
@@ -38,7 +38,6 @@ import org.polymap.rhei.batik.toolkit.IPanelToolkit;
 
 import org.polymap.p4.data.importer.ContextIn;
 import org.polymap.p4.data.importer.ContextOut;
-import org.polymap.p4.data.importer.ImportTempDir;
 import org.polymap.p4.data.importer.Importer;
 import org.polymap.p4.data.importer.ImporterPlugin;
 import org.polymap.p4.data.importer.ImporterPrompt;
@@ -132,11 +131,13 @@ public class ArchiveFileImporter
     @Override
     public void verify( IProgressMonitor monitor ) {
         try {
-            monitor.beginTask( "Unpacking archive", IProgressMonitor.UNKNOWN );
-            tempDir = ImportTempDir.create();
+            // start the next importers as soon as their files are extracted
+            site.context().disposePrepared();
+            tempDir = site.context().createTempDir();
             allFiles = new ArchiveReader()
                     .targetDir.put( tempDir )
                     .charset.put( filenameCharset )
+                    .onGroup.put( files -> prepareNext( files ) )
                     .run( file, monitor );
             
             exception = null;
@@ -149,6 +150,17 @@ public class ArchiveFileImporter
     }    
 
     
+    protected void prepareNext( List<File> files ) {
+        try {
+            site.context().prepareNext( files );
+        }
+        catch (Exception e) {
+            // findNext() creates the importers after execute()
+            log.warn( "Unable to prepare importers: " + files, e );
+        }
+    }
+
+    
     @Override
     public void createResultViewer( Composite parent, IPanelToolkit tk ) {
         if (allFiles == null) {
@@ -160,7 +172,8 @@ public class ArchiveFileImporter
             org.eclipse.swt.widgets.List list = tk.createList( parent, SWT.V_SCROLL, SWT.H_SCROLL, SWT.MULTI );
             
             int tempDirLength = tempDir.getAbsolutePath().length() + 1;
-            allFiles.stream().sorted().forEach( f -> list.add( f.getAbsolutePath().substring( tempDirLength ) ) );
+            // sorted by ArchiveReader, indices must match selection indices
+            allFiles.stream().forEach( f -> list.add( f.getAbsolutePath().substring( tempDirLength ) ) );
             
             selectedFiles = new ArrayList<File>( allFiles );
             
@@ -14,26 +14,45 @@
  */
 package org.polymap.p4.data.importer.archive;
 
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,13 +62,27 @@ import org.eclipse.core.runtime.IProgressMonitor;
 import org.polymap.core.runtime.config.Config2;
 import org.polymap.core.runtime.config.Configurable;
 import org.polymap.core.runtime.config.DefaultBoolean;
+import org.polymap.core.runtime.config.DefaultInt;
 import org.polymap.core.runtime.config.Mandatory;
 
-import org.polymap.p4.P4Plugin;
+import org.polymap.p4.data.importer.ImportTempDir;
 
 /**
  * Copy files into a (temporarey) directory. Handles *.zip, *.tar, *.gz. Flattens the
  * file hierarchy.
+ * <p/>
+ * A top level ZIP file is read via its central directory and its entries are
+ * extracted by several {@link #workers} in parallel. Tar and GZip are extracted
+ * sequentially from the stream. Entries that are not completely extracted because
+ * the monitor was canceled are removed and not part of the result.
+ * <p/>
+ * All files with the same base name in one directory (a shapefile and its sidecar
+ * files for example) are handed to {@link #onGroup} as soon as they are extracted,
+ * so that the next importers can start while the rest of the archive is still
+ * being extracted.
+ * <p/>
+ * {@link #maxSize}, {@link #maxEntries} and {@link #maxCompressionRatio} protect
+ * against archive bombs.
  *
  * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
  */
@@ -58,8 +91,11 @@ public class ArchiveReader
 
     private static Log log = LogFactory.getLog( ArchiveReader.class );
     
-    /** Defaults to a automatically created temp dir. */
-    @Mandatory
+    private static final long               TRANSFER_CHUNK = 8 * 1024 * 1024;
+
+    private static final AtomicInteger      threadCount = new AtomicInteger();
+
+    /** Defaults to a automatically created {@link ImportTempDir}. */
     public Config2<ArchiveReader,File>      targetDir;
     
     @Mandatory
@@ -70,19 +106,57 @@ public class ArchiveReader
     @Mandatory
     public Config2<ArchiveReader,Charset>   charset;
     
+    /** The number of threads extracting a ZIP file. 0 means number of available processors. */
+    @Mandatory
+    @DefaultInt( 0 )
+    public Config2<ArchiveReader,Integer>   workers;
+    
+    /** The max number of bytes to extract in total. Defaults to 20GB. */
+    @Mandatory
+    public Config2<ArchiveReader,Long>      maxSize;
+    
+    /** The max number of files to extract. */
+    @Mandatory
+    @DefaultInt( 10000 )
+    public Config2<ArchiveReader,Integer>   maxEntries;
+    
+    /** The max ratio between extracted and compressed size of an entry or the entire archive. */
+    @Mandatory
+    @DefaultInt( 200 )
+    public Config2<ArchiveReader,Integer>   maxCompressionRatio;
+    
+    /** 
+     * Called for all files with the same base name in one directory once they are
+     * extracted. Always called from the thread that called {@link #run(File, IProgressMonitor)}.
+     * For ZIP files the groups are known from the central directory; groups of
+     * streamed archives are handed over at the end. A group is handed over again,
+     * with all its files, if a nested archive adds a file to it.
+     */
+    public Config2<ArchiveReader,Consumer<List<File>>> onGroup;
+    
     private IProgressMonitor                monitor;
     
-    private List<File>                      results = new ArrayList();
+    private List<File>                      results = Collections.synchronizedList( new ArrayList() );
+    
+    /** Files per directory/basename, see {@link #onGroup}. */
+    private Map<String,FileGroup>           groups = new HashMap();
+    
+    /** Complete groups extracted by worker threads, not yet handed to {@link #onGroup}. */
+    private BlockingQueue<List<File>>       completed = new LinkedBlockingQueue();
+    
+    private AtomicLong                      extracted = new AtomicLong();
+    
+    private long                            archiveSize;
+    
+    /** The stream of a top level non-ZIP archive, used for progress. */
+    private CountingInputStream             counting;
+    
+    private int                             worked;
     
     
     public ArchiveReader() {
         charset.set( Charset.forName( "UTF8" ) );
-        try {
-            targetDir.set( Files.createTempDirectory( P4Plugin.ID + "-" ).toFile() );
-        }
-        catch (IOException e) {
-            throw new RuntimeException( e );
-        }
+        maxSize.set( 20L * 1024 * 1024 * 1024 );
     }
     
 
@@ -98,33 +172,66 @@ public class ArchiveReader
     /**
      * 
      *
-     * @return List of read files.
+     * @return List of read files, sorted by path.
      * @throws RuntimeException
      */
     public List<File> run( File f, @SuppressWarnings("hiding") IProgressMonitor monitor ) throws Exception {
         this.monitor = monitor;
-        try (
-            InputStream in = new BufferedInputStream( new FileInputStream( f ) ); 
-        ){
-            handle( targetDir.get(), f.getName(), null, in );
-            return results;
+        this.archiveSize = Math.max( f.length(), 1024 * 1024 );
+        if (!targetDir.isPresent()) {
+            // same file system as uploads, so results can be staged as hard links
+            targetDir.set( ImportTempDir.create() );
+        }
+        try {
+            if (isZip( f.getName(), null )) {
+                handleZipFile( targetDir.get(), f );
+            }
+            else {
+                monitor.beginTask( "Unpacking " + f.getName(), (int)Math.min( Integer.MAX_VALUE, f.length() / 1024 ) );
+                try (
+                    InputStream in = counting = new CountingInputStream( new BufferedInputStream( new FileInputStream( f ) ) ); 
+                ){
+                    handle( targetDir.get(), f.getName(), null, in, -1 );
+                }
+            }
+            flushGroups();
+            List<File> sorted = new ArrayList( results );
+            Collections.sort( sorted );
+            return sorted;
         }
         finally {
             this.monitor = null;
+            this.counting = null;
         }
     }
 
 
-    protected void handle( File dir, String name, String contentType, InputStream in ) throws Exception {
+    protected boolean isZip( String name, String contentType ) {
+        return name.toLowerCase().endsWith( ".zip" ) 
+                || name.toLowerCase().endsWith( ".jar" ) 
+                || name.toLowerCase().endsWith( ".kmz" ) 
+                || "application/zip".equalsIgnoreCase( contentType );
+    }
+    
+    
+    protected boolean isArchive( String name ) {
+        String lower = name.toLowerCase();
+        return isZip( name, null ) || lower.endsWith( ".tar" ) || lower.endsWith( "gz" ) || lower.endsWith( "gzip" );
+    }
+    
+    
+    /**
+     * 
+     *
+     * @param compressedSize The compressed size of the given stream, or -1 if unknown.
+     */
+    protected void handle( File dir, String name, String contentType, InputStream in, long compressedSize ) throws Exception {
         if (monitor.isCanceled()) {
             return;
         }
-        monitor.subTask( name );
+        subTask( name );
         contentType = contentType == null ? "" : contentType;
-        if (name.toLowerCase().endsWith( ".zip" ) 
-                || name.toLowerCase().endsWith( ".jar" ) 
-                || name.toLowerCase().endsWith( ".kmz" ) 
-                || contentType.equalsIgnoreCase( "application/zip" )) {
+        if (isZip( name, contentType )) {
             handleZip( dir, name, in );
         }
         else if (name.toLowerCase().endsWith( ".tar" ) || contentType.equalsIgnoreCase( "application/tar" )) {
@@ -135,9 +242,8 @@ public class ArchiveReader
             handleGzip( dir, name, in );
         }
         else {
-            handleFile( dir, name, in );
+            handleFile( dir, name, in, compressedSize );
         }
-        monitor.worked( 1 );
     }
     
     
@@ -154,24 +260,50 @@ public class ArchiveReader
             else {
                 nextName = name.substring( 0, name.length() - 2 );            
             }
-            handle( dir, nextName, null, gzip );
+            handle( dir, nextName, null, gzip, -1 );
         }
     }
 
 
-    protected void handleFile( File dir, String name, InputStream in ) throws Exception {
+    protected void handleFile( File dir, String name, InputStream in, long compressedSize ) throws Exception {
         log.info( "    FILE: " + dir.getName() + " / "+ name );
         File target = new File( dir, FilenameUtils.getName( name ) );
         
         if (!overwrite.get() && target.exists()) {
             throw new RuntimeException( "File already exists: " + target );
         }
+        if (results.size() >= maxEntries.get()) {
+            throw new IOException( "Archive contains more than " + maxEntries.get() + " files." );
+        }
+        long maxEntrySize = compressedSize > 0 ? compressedSize * maxCompressionRatio.get() : Long.MAX_VALUE;
         try (
-            OutputStream out = new FileOutputStream( target );
+            FileChannel out = FileChannel.open( target.toPath(), CREATE, WRITE, TRUNCATE_EXISTING );
         ){
-            IOUtils.copy( in, out );
+            // let the channel transfer in big chunks instead of copying a small buffer
+            ReadableByteChannel inChannel = Channels.newChannel( in );
+            for (long pos = 0, c = 0; (c = out.transferFrom( inChannel, pos, TRANSFER_CHUNK )) > 0; pos += c) {
+                long total = extracted.addAndGet( c );
+                if (pos + c > maxEntrySize || total > archiveSize * maxCompressionRatio.get()) {
+                    throw new IOException( "Compression ratio of archive exceeds " + maxCompressionRatio.get() + ": " + name );
+                }
+                if (total > maxSize.get()) {
+                    throw new IOException( "Archive content exceeds " + maxSize.get() + " bytes." );
+                }
+                worked();
+                if (monitor.isCanceled()) {
+                    break;
+                }
+            }
+        }
+        catch (IOException e) {
+            target.delete();
+            throw e;
         }
-        results.add( target );
+        if (monitor.isCanceled()) {
+            target.delete();
+            return;
+        }
+        extracted( target );
     }
     
     
@@ -183,26 +315,103 @@ public class ArchiveReader
             File subdir = dir;
             while ((entry = zip.getNextEntry()) != null) {
                 if (entry.isDirectory()) {
-                    subdir = new File( subdir, entry.getName() );
+                    subdir = checkInside( new File( subdir, entry.getName() ) );
                     subdir.mkdirs();
                 }
                 else {
                     String path = FilenameUtils.getPath( entry.getName() );
                     File filedir = subdir;
                     if (!StringUtils.isBlank( path )) {
-                        filedir = new File( subdir, path );
+                        filedir = checkInside( new File( subdir, path ) );
                         filedir.mkdirs();                        
                     }
-                    handle( filedir, FilenameUtils.getName( entry.getName() ), null, zip );
+                    handle( filedir, FilenameUtils.getName( entry.getName() ), null, zip, -1 );
                 }
             }
         }
         catch (Exception e) {
-            if (e instanceof IllegalArgumentException || "MALFORMED".equals( e.getMessage() )) {
-                throw new IOException( "Wrong charset: " + charset.get().displayName(), e );
+            throw wrongCharset( e );
+        }
+    }
+
+
+    /**
+     * Extracts the entries of the given ZIP file in parallel.
+     */
+    protected void handleZipFile( File dir, File f ) throws Exception {
+        log.info( "    ZIP: " + f.getName() + " (parallel)" );
+        try (
+            ZipFile zip = new ZipFile( f, charset.get() );
+        ){
+            List<? extends ZipEntry> entries = null;
+            try {
+                entries = Collections.list( zip.entries() );
             }
-            else {
-                throw e;
+            catch (Exception e) {
+                throw wrongCharset( e );
+            }
+            long total = 0;
+            Map<ZipEntry,File> entryDirs = new HashMap();
+            for (ZipEntry entry : entries) {
+                if (entry.isDirectory()) {
+                    checkInside( new File( dir, entry.getName() ) ).mkdirs();
+                }
+                else {
+                    File filedir = checkInside( new File( dir, FilenameUtils.getPath( entry.getName() ) ) );
+                    filedir.mkdirs();
+                    entryDirs.put( entry, filedir );
+                    String name = FilenameUtils.getName( entry.getName() );
+                    if (!isArchive( name )) {
+                        expected( new File( filedir, name ) );
+                    }
+                    total += Math.max( 0, entry.getSize() );
+                }
+            }
+            if (entryDirs.size() > maxEntries.get()) {
+                throw new IOException( "Archive contains more than " + maxEntries.get() + " files." );
+            }
+            monitor.beginTask( "Unpacking " + f.getName(), (int)Math.min( Integer.MAX_VALUE, total / 1024 ) );
+
+            int workerCount = workers.get() > 0 ? workers.get() : Runtime.getRuntime().availableProcessors();
+            ExecutorService executor = Executors.newFixedThreadPool( workerCount, r -> {
+                Thread thread = new Thread( r, ArchiveReader.class.getSimpleName() + "-" + threadCount.getAndIncrement() );
+                thread.setDaemon( true );
+                return thread;
+            });
+            try {
+                List<Future> futures = new ArrayList();
+                for (Map.Entry<ZipEntry,File> entry : entryDirs.entrySet()) {
+                    futures.add( executor.submit( () -> {
+                        ZipEntry zipEntry = entry.getKey();
+                        try (
+                            InputStream in = zip.getInputStream( zipEntry );
+                        ){
+                            String name = FilenameUtils.getName( zipEntry.getName() );
+                            handle( entry.getValue(), name, null, in, zipEntry.getCompressedSize() );
+                        }
+                        return null;
+                    }));
+                }
+                for (Future future : futures) {
+                    for (boolean done = false; !done; ) {
+                        // hand over complete groups while the workers proceed
+                        handOver();
+                        try {
+                            future.get( 100, TimeUnit.MILLISECONDS );
+                            done = true;
+                        }
+                        catch (TimeoutException e) {
+                            // check groups again
+                        }
+                        catch (ExecutionException e) {
+                            throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+                        }
+                    }
+                }
+                handOver();
+            }
+            finally {
+                executor.shutdownNow();
             }
         }
     }
@@ -218,14 +427,135 @@ public class ArchiveReader
             while ((entry = tar.getNextEntry()) != null) {
                 String entryName = FilenameUtils.getName( entry.getName() );
                 if (entry.isDirectory()) {
-                    subdir = new File( subdir, entryName );
+                    subdir = checkInside( new File( subdir, entryName ) );
                     subdir.mkdir();                    
                 }
                 else {
-                    handle( subdir, entryName, null, tar );
+                    handle( subdir, entryName, null, tar, -1 );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Checks that the given file is inside the {@link #targetDir}. Prevents entry
+     * names with '..' from writing somewhere else.
+     */
+    protected File checkInside( File f ) throws IOException {
+        String root = targetDir.get().getCanonicalPath();
+        String path = f.getCanonicalPath();
+        if (!path.equals( root ) && !path.startsWith( root + File.separator )) {
+            throw new IOException( "Archive entry outside target dir: " + f );
+        }
+        return f;
+    }
+
+
+    protected Exception wrongCharset( Exception e ) {
+        if (e instanceof IllegalArgumentException || "MALFORMED".equals( e.getMessage() )) {
+            return new IOException( "Wrong charset: " + charset.get().displayName(), e );
+        }
+        return e;
+    }
+    
+    
+    protected void subTask( String name ) {
+        synchronized (monitor) {
+            monitor.subTask( name );
+        }
+    }
+    
+    
+    /**
+     * Reports progress: compressed bytes read from a streamed archive, or bytes
+     * extracted from a ZIP file.
+     */
+    protected void worked() {
+        long done = counting != null ? counting.getByteCount() : extracted.get();
+        int kb = (int)Math.min( Integer.MAX_VALUE, done / 1024 );
+        synchronized (monitor) {
+            if (kb > worked) {
+                monitor.worked( kb - worked );
+                worked = kb;
+            }
+        }
+    }
+    
+    
+    // file groups ****************************************
+    
+    /**
+     * All files with the same base name in one directory.
+     */
+    protected static class FileGroup {
+        
+        /** The number of files from the ZIP central directory, or 0 if unknown. */
+        public int          expected;
+        
+        public List<File>   files = new ArrayList();
+        
+        public boolean      handedOver;
+    }
+    
+    
+    protected String groupKey( File f ) {
+        return f.getParent() + File.separator + FilenameUtils.getBaseName( f.getName() );
+    }
+    
+    
+    protected void expected( File f ) {
+        synchronized (groups) {
+            groups.computeIfAbsent( groupKey( f ), key -> new FileGroup() ).expected ++;
+        }
+    }
+    
+    
+    /**
+     * Adds the given file to the results. Queues its group if it is complete now,
+     * or again if it was handed over already. Maybe called from a worker thread.
+     */
+    protected void extracted( File f ) {
+        results.add( f );
+        synchronized (groups) {
+            FileGroup group = groups.computeIfAbsent( groupKey( f ), key -> new FileGroup() );
+            group.files.add( f );
+            // a file of a nested archive might join a group that was handed over already
+            if (group.files.size() == group.expected || group.handedOver) {
+                group.handedOver = true;
+                completed.add( new ArrayList( group.files ) );
+            }
+        }
+    }
+    
+    
+    /**
+     * Hands the queued groups to {@link #onGroup}, called from the thread of
+     * {@link #run(File, IProgressMonitor)}.
+     */
+    protected void handOver() {
+        for (List<File> group = completed.poll(); group != null; group = completed.poll()) {
+            if (onGroup.isPresent() && !monitor.isCanceled()) {
+                onGroup.get().accept( group );
+            }
+        }
+    }
+    
+    
+    /**
+     * Hands over all groups that are not complete according to the ZIP central
+     * directory, and all groups of streamed archives.
+     */
+    protected void flushGroups() {
+        synchronized (groups) {
+            for (FileGroup group : groups.values()) {
+                if (!group.handedOver && !group.files.isEmpty()) {
+                    group.handedOver = true;
+                    completed.add( new ArrayList( group.files ) );
                 }
             }
         }
+        handOver();
     }
 
 }
@@ -13,22 +13,23 @@
  */
 package org.polymap.p4.data.importer.download;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.polymap.core.ui.FormDataFactory.on;
 
 import java.util.regex.Pattern;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.google.common.hash.Hashing;
+
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.ModifyEvent;
 import org.eclipse.swt.events.ModifyListener;
@@ -38,15 +39,12 @@ import org.eclipse.swt.widgets.Text;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 
-import org.polymap.core.runtime.Timer;
-import org.polymap.core.runtime.UIJob;
 import org.polymap.core.runtime.i18n.IMessages;
 import org.polymap.core.ui.FormLayoutFactory;
 import org.polymap.rhei.batik.app.SvgImageRegistryHelper;
 import org.polymap.rhei.batik.toolkit.IPanelToolkit;
 
 import org.polymap.p4.data.importer.ContextOut;
-import org.polymap.p4.data.importer.ImportTempDir;
 import org.polymap.p4.data.importer.Importer;
 import org.polymap.p4.data.importer.ImporterPlugin;
 import org.polymap.p4.data.importer.ImporterPrompt;
@@ -80,7 +78,8 @@ public class DownloadImporter
 
     private URL                    url;
 
-    private UIJob                  downloader;
+    /** The dir to download into, kept across {@link #verify(IProgressMonitor)} calls. */
+    private File                   tempDir;
 
 
     @Override
@@ -148,34 +147,31 @@ public class DownloadImporter
     }
 
 
+    /**
+     * Downloads the file via {@link Downloader}. The download dir is kept across
+     * calls, so a canceled or failed download is resumed, and a complete download
+     * of the same URL is not repeated if another prompt has changed. Every URL gets
+     * its own sub dir, so URLs with the same file name do not share a download. A
+     * checksum can be given as URL fragment: <code>...#sha256=9f86d0...</code>
+     */
     @Override
     public void verify( IProgressMonitor monitor ) {
         exception = null;
         
         if (url != null) {
-            monitor.beginTask( "Downloading", IProgressMonitor.UNKNOWN );
-            File tempDir = ImportTempDir.create();
-            downloaded = new File( tempDir, FilenameUtils.getName( url.getPath() ) );
-            try (
-                OutputStream out = new FileOutputStream( downloaded );
-                InputStream in = url.openStream();
-            ){
-                Timer timer = new Timer();
-                byte[] buf = new byte[4096];
-                long count = 0;
-                for (int c=in.read( buf ); c>-1; c=in.read( buf )) {
-                    out.write( buf, 0, c );
-                    count += c;
-
-                    if (monitor.isCanceled()) {
-                        break;
-                    }
-                    else {
-                        monitor.subTask( FileUtils.byteCountToDisplaySize( count ) );
-                        timer.start();
-                    }
+            if (tempDir == null) {
+                tempDir = site.context().createTempDir();
+            }
+            String location = StringUtils.substringBefore( url.toString(), "#" );
+            File dir = new File( tempDir, Hashing.sha1().hashString( location, UTF_8 ).toString() );
+            dir.mkdirs();
+            downloaded = new File( dir, FilenameUtils.getName( url.getPath() ) );
+            try {
+                Downloader downloader = new Downloader( new URL( location ), downloaded );
+                if (url.getRef() != null && url.getRef().contains( "=" )) {
+                    downloader.checksum.set( url.getRef().replaceFirst( "=", ":" ) );
                 }
-                site.ok.set( true );
+                site.ok.set( downloader.download( monitor ) );
             }
             catch (Exception e) {
                 site.ok.set( false );
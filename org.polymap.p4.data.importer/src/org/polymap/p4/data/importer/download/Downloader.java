@@ -0,0 +1,554 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 3.0 of the License, or (at your option) any later
+ * version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ */
+package org.polymap.p4.data.importer.download;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.config.Config2;
+import org.polymap.core.runtime.config.Configurable;
+import org.polymap.core.runtime.config.DefaultInt;
+import org.polymap.core.runtime.config.Mandatory;
+
+/**
+ * Downloads a URL into a file.
+ * <p/>
+ * The server is probed for the length and range support first. If ranges are
+ * supported, a large file is split into up to {@link #segments} ranges, which are
+ * downloaded concurrently and written via positional {@link FileChannel} writes.
+ * The state of the segments is kept in a <code>*.part</code> file next to the
+ * target, so that a failed or canceled download resumes where it stopped, as
+ * long as the server reports the same length and ETag/Last-Modified.
+ * <p/>
+ * A complete download is marked by a <code>*.done</code> file, which records the
+ * URL, length, validator and verified checksum. The download is not repeated as
+ * long as all of them match the current request and server.
+ * <p/>
+ * A download is canceled by the monitor or by interrupting the calling thread.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class Downloader
+        extends Configurable {
+
+    private static final Log log = LogFactory.getLog( Downloader.class );
+
+    private static final AtomicInteger      threadCount = new AtomicInteger();
+
+    /** The max number of concurrent range requests. */
+    @Mandatory
+    @DefaultInt( 4 )
+    public Config2<Downloader,Integer>      segments;
+
+    /** The min size of one segment in MB. */
+    @Mandatory
+    @DefaultInt( 16 )
+    public Config2<Downloader,Integer>      minSegmentSize;
+
+    /** The number of retries of a failed request, per segment. */
+    @Mandatory
+    @DefaultInt( 3 )
+    public Config2<Downloader,Integer>      retries;
+
+    @Mandatory
+    @DefaultInt( 20000 )
+    public Config2<Downloader,Integer>      timeout;
+
+    /**
+     * The expected checksum of the file: <code>algorithm:hex</code>, for example
+     * <code>sha256:9f86d0...</code>. No check if not set.
+     */
+    public Config2<Downloader,String>       checksum;
+
+    private URL                             url;
+
+    private File                            target;
+
+    private File                            stateFile;
+
+    private File                            doneFile;
+
+    private String                          validator;
+
+    private long                            length = -1;
+
+    private List<Segment>                   parts = new ArrayList();
+
+    /** The persistent state of a download that can be resumed, or null. */
+    private Properties                      state;
+
+
+    public Downloader( URL url, File target ) {
+        this.url = url;
+        this.target = target;
+        this.stateFile = new File( target.getParentFile(), target.getName() + ".part" );
+        this.doneFile = new File( target.getParentFile(), target.getName() + ".done" );
+    }
+
+
+    /**
+     * The marker of a complete download of the same URL, or null.
+     */
+    protected Properties readDone() throws IOException {
+        if (!target.exists() || stateFile.exists() || !doneFile.exists()) {
+            return null;
+        }
+        Properties done = new Properties();
+        try (InputStream in = new FileInputStream( doneFile )) {
+            done.load( in );
+        }
+        return url.toString().equals( done.getProperty( "url" ) ) ? done : null;
+    }
+
+
+    protected void writeDone() throws IOException {
+        Properties done = new Properties();
+        done.setProperty( "url", url.toString() );
+        done.setProperty( "length", String.valueOf( length ) );
+        done.setProperty( "validator", validator );
+        if (checksum.isPresent()) {
+            done.setProperty( "checksum", checksum.get() );
+        }
+        try (OutputStream out = new FileOutputStream( doneFile )) {
+            done.store( out, null );
+        }
+    }
+
+
+    /**
+     * A range of the file, [start, end] inclusive, with the number of bytes
+     * already written.
+     */
+    protected static class Segment {
+
+        public long         start, end;
+
+        public AtomicLong   done = new AtomicLong();
+
+        public Segment( long start, long end, long done ) {
+            this.start = start;
+            this.end = end;
+            this.done.set( done );
+        }
+
+        public boolean isComplete() {
+            return end >= 0 && start + done.get() > end;
+        }
+    }
+
+
+    /**
+     * Downloads or resumes the download of the file.
+     *
+     * @return False if canceled. The state is kept so that the next call resumes.
+     * @throws IOException If the download failed. The state is kept so that the
+     *         next call resumes.
+     */
+    public boolean download( IProgressMonitor monitor ) throws IOException {
+        Timer timer = new Timer();
+        Probe probe = probe();
+        Properties done = readDone();
+        if (done != null) {
+            if (String.valueOf( probe.length ).equals( done.getProperty( "length" ) )
+                    && probe.validator.equals( done.getProperty( "validator" ) )) {
+                if (checksum.isPresent() && !checksum.get().equalsIgnoreCase( done.getProperty( "checksum" ) )) {
+                    verifyChecksum();
+                    length = probe.length;
+                    validator = probe.validator;
+                    writeDone();
+                }
+                log.info( "Complete already: " + target.getName() );
+                return true;
+            }
+            log.info( "Changed on server: " + url );
+        }
+        doneFile.delete();
+        initSegments( probe );
+        long resumed = downloaded();
+        monitor.beginTask( "Downloading", length > 0 ? (int)(length / 1024) : IProgressMonitor.UNKNOWN );
+        monitor.worked( (int)(resumed / 1024) );
+        log.info( url + ": " + length + " bytes, " + parts.size() + " segment(s), resumed at " + resumed );
+
+        ExecutorService executor = Executors.newFixedThreadPool( parts.size(), r -> {
+            Thread thread = new Thread( r, Downloader.class.getSimpleName() + "-" + threadCount.getAndIncrement() );
+            thread.setDaemon( true );
+            return thread;
+        });
+        try (
+            FileChannel channel = FileChannel.open( target.toPath(), CREATE, WRITE );
+        ){
+            List<Future<?>> futures = new ArrayList();
+            for (Segment segment : parts) {
+                if (!segment.isComplete()) {
+                    futures.add( executor.submit( () -> { fetch( segment, channel ); return null; } ) );
+                }
+            }
+            // wait and report progress
+            long reported = resumed;
+            for (Future<?> future : futures) {
+                while (true) {
+                    try {
+                        future.get( 1, TimeUnit.SECONDS );
+                        break;
+                    }
+                    catch (TimeoutException e) {
+                        if (monitor.isCanceled()) {
+                            throw new InterruptedException();
+                        }
+                        reported = progress( monitor, reported, resumed, timer );
+                        writeState();
+                    }
+                }
+            }
+            progress( monitor, reported, resumed, timer );
+        }
+        catch (InterruptedException e) {
+            log.info( "Canceled: " + target.getName() );
+            return false;
+        }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException( e.getCause() );
+        }
+        finally {
+            executor.shutdownNow();
+            awaitQuietly( executor );
+            writeState();
+            monitor.done();
+        }
+
+        verifyChecksum();
+        stateFile.delete();
+        writeDone();
+        log.info( target.getName() + ": " + FileUtils.byteCountToDisplaySize( target.length() )
+                + " in " + timer.elapsedTime() + "ms" );
+        return true;
+    }
+
+
+    /**
+     * What the server reports about the URL.
+     */
+    protected static class Probe {
+
+        /** The length of the file, or -1 if unknown. */
+        public long         length = -1;
+
+        /** The ETag or Last-Modified of the file. */
+        public String       validator;
+
+        /** True if the server accepts range requests. */
+        public boolean      ranges;
+    }
+
+
+    /**
+     * Requests the headers of the URL. Servers that reject HEAD are asked for the
+     * first byte via GET instead, which tells the length and range support too.
+     */
+    protected Probe probe() throws IOException {
+        URLConnection conn = open();
+        Probe result = new Probe();
+        if (conn instanceof HttpURLConnection) {
+            HttpURLConnection http = (HttpURLConnection)conn;
+            http.setRequestMethod( "HEAD" );
+            int status = http.getResponseCode();
+            if (status >= 400) {
+                log.info( "HEAD: HTTP " + status + ", probing via GET: " + url );
+                http.disconnect();
+                http = (HttpURLConnection)open();
+                http.setRequestProperty( "Range", "bytes=0-0" );
+                status = http.getResponseCode();
+            }
+            try {
+                if (status >= 400) {
+                    throw new IOException( "HTTP " + status + ": " + url );
+                }
+                else if (status == HttpURLConnection.HTTP_PARTIAL) {
+                    // Content-Range: bytes 0-0/<length>
+                    String total = StringUtils.substringAfterLast( http.getHeaderField( "Content-Range" ), "/" );
+                    result.length = StringUtils.isNumeric( total ) ? Long.parseLong( total ) : -1;
+                    result.ranges = true;
+                }
+                else {
+                    result.length = http.getContentLengthLong();
+                    result.ranges = "bytes".equalsIgnoreCase( http.getHeaderField( "Accept-Ranges" ) );
+                }
+                result.validator = validator( http );
+            }
+            finally {
+                // don't read the body of a GET that ignored the Range
+                http.disconnect();
+            }
+        }
+        else {
+            result.length = conn.getContentLengthLong();
+            result.validator = validator( conn );
+        }
+        return result;
+    }
+
+
+    protected URLConnection open() throws IOException {
+        URLConnection conn = url.openConnection();
+        conn.setConnectTimeout( timeout.get() );
+        conn.setReadTimeout( timeout.get() );
+        return conn;
+    }
+
+
+    /**
+     * Reads the state of a previous download, or splits the file into new
+     * segments.
+     */
+    protected void initSegments( Probe probe ) throws IOException {
+        length = probe.length;
+        validator = probe.validator;
+        boolean ranges = probe.ranges && length > 0;
+
+        parts.clear();
+        if (ranges && stateFile.exists() && target.exists()) {
+            Properties state = new Properties();
+            try (InputStream in = new FileInputStream( stateFile )) {
+                state.load( in );
+            }
+            if (url.toString().equals( state.getProperty( "url" ) )
+                    && String.valueOf( length ).equals( state.getProperty( "length" ) )
+                    && validator.equals( state.getProperty( "validator" ) )) {
+                for (int i = 0; state.containsKey( "segment." + i ); i++) {
+                    String[] values = StringUtils.split( state.getProperty( "segment." + i ), ',' );
+                    parts.add( new Segment( Long.parseLong( values[0] ), Long.parseLong( values[1] ), Long.parseLong( values[2] ) ) );
+                }
+            }
+        }
+        if (parts.isEmpty()) {
+            target.delete();
+            if (ranges) {
+                long minSize = minSegmentSize.get() * 1024L * 1024L;
+                int count = (int)Math.max( 1, Math.min( segments.get(), length / minSize ) );
+                long size = length / count;
+                for (int i = 0; i < count; i++) {
+                    parts.add( new Segment( i * size, i == count - 1 ? length - 1 : (i + 1) * size - 1, 0 ) );
+                }
+            }
+            else {
+                // no ranges: one segment without resume, end unknown
+                parts.add( new Segment( 0, -1, 0 ) );
+            }
+        }
+        state = null;
+        if (ranges) {
+            state = new Properties();
+            state.setProperty( "url", url.toString() );
+            state.setProperty( "length", String.valueOf( length ) );
+            state.setProperty( "validator", validator );
+        }
+        writeState();
+    }
+
+
+    protected String validator( URLConnection conn ) {
+        return StringUtils.defaultString( conn.getHeaderField( "ETag" ),
+                String.valueOf( conn.getLastModified() ) );
+    }
+
+
+    /**
+     * Saves the state of the segments, if resume is supported.
+     */
+    protected synchronized void writeState() {
+        if (state != null) {
+            for (int i = 0; i < parts.size(); i++) {
+                Segment segment = parts.get( i );
+                state.setProperty( "segment." + i, segment.start + "," + segment.end + "," + segment.done.get() );
+            }
+            try (OutputStream out = new FileOutputStream( stateFile )) {
+                state.store( out, null );
+            }
+            catch (IOException e) {
+                log.warn( "Unable to write state: " + stateFile, e );
+            }
+        }
+        else {
+            // no resume possible, but marks the target incomplete
+            try {
+                stateFile.createNewFile();
+            }
+            catch (IOException e) {
+                log.warn( "Unable to write state: " + stateFile, e );
+            }
+        }
+    }
+
+
+    /**
+     * Downloads the missing part of the given segment, retrying
+     * {@link #retries} times. Called by the worker threads.
+     */
+    protected void fetch( Segment segment, FileChannel channel ) throws IOException {
+        for (int retry = 0; ; retry++) {
+            try {
+                URLConnection conn = open();
+                if (segment.end >= 0) {
+                    conn.setRequestProperty( "Range", "bytes=" + (segment.start + segment.done.get()) + "-" + segment.end );
+                    int status = ((HttpURLConnection)conn).getResponseCode();
+                    if (status != HttpURLConnection.HTTP_PARTIAL) {
+                        throw new IOException( "Range request not supported: HTTP " + status );
+                    }
+                }
+                else {
+                    segment.done.set( 0 );
+                }
+                try (
+                    ReadableByteChannel in = Channels.newChannel( conn.getInputStream() );
+                ){
+                    ByteBuffer buf = ByteBuffer.allocateDirect( 256 * 1024 );
+                    while (in.read( buf ) != -1) {
+                        buf.flip();
+                        while (buf.hasRemaining()) {
+                            segment.done.addAndGet( channel.write( buf, segment.start + segment.done.get() ) );
+                        }
+                        buf.clear();
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
+                    }
+                }
+                if (segment.end >= 0 && !segment.isComplete()) {
+                    throw new IOException( "Connection closed before end of range" );
+                }
+                return;
+            }
+            catch (IOException e) {
+                if (retry >= retries.get() || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                log.warn( "Segment " + segment.start + " failed, retrying: " + e );
+            }
+        }
+    }
+
+
+    protected long downloaded() {
+        return parts.stream().mapToLong( segment -> segment.done.get() ).sum();
+    }
+
+
+    /**
+     * Reports the downloaded bytes, bytes/s and ETA.
+     *
+     * @return The number of bytes reported so far.
+     */
+    protected long progress( IProgressMonitor monitor, long reported, long resumed, Timer timer ) {
+        long done = downloaded();
+        monitor.worked( (int)(done / 1024 - reported / 1024) );
+        long perSecond = (done - resumed) * 1000 / Math.max( 1, timer.elapsedTime() );
+        StringBuilder msg = new StringBuilder( 64 ).append( FileUtils.byteCountToDisplaySize( done ) );
+        if (length > 0) {
+            msg.append( " of " ).append( FileUtils.byteCountToDisplaySize( length ) );
+        }
+        msg.append( " - " ).append( FileUtils.byteCountToDisplaySize( perSecond ) ).append( "/s" );
+        if (length > 0 && perSecond > 0) {
+            long eta = (length - done) / perSecond;
+            msg.append( String.format( " - %d:%02d min left", eta / 60, eta % 60 ) );
+        }
+        monitor.subTask( msg.toString() );
+        return done;
+    }
+
+
+    /**
+     * Checks the {@link #checksum} of the downloaded file. If the check fails,
+     * the file is deleted, so that the next download starts over.
+     */
+    protected void verifyChecksum() throws IOException {
+        if (!checksum.isPresent()) {
+            return;
+        }
+        String algorithm = StringUtils.substringBefore( checksum.get(), ":" );
+        String expected = StringUtils.substringAfter( checksum.get(), ":" ).trim();
+        try {
+            // sha256 -> SHA-256
+            MessageDigest digest = MessageDigest.getInstance( algorithm.toUpperCase().replaceFirst( "^SHA(\\d)", "SHA-$1" ) );
+            try (FileChannel channel = FileChannel.open( target.toPath(), READ )) {
+                ByteBuffer buf = ByteBuffer.allocateDirect( 1024 * 1024 );
+                while (channel.read( buf ) != -1) {
+                    buf.flip();
+                    digest.update( buf );
+                    buf.clear();
+                }
+            }
+            StringBuilder actual = new StringBuilder( 64 );
+            for (byte b : digest.digest()) {
+                actual.append( String.format( "%02x", b ) );
+            }
+            if (!actual.toString().equalsIgnoreCase( expected )) {
+                target.delete();
+                stateFile.delete();
+                doneFile.delete();
+                throw new IOException( "Checksum mismatch: expected " + expected + " but was " + actual );
+            }
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException( "Unknown checksum algorithm: " + algorithm, e );
+        }
+    }
+
+
+    protected void awaitQuietly( ExecutorService executor ) {
+        try {
+            executor.awaitTermination( 10, TimeUnit.SECONDS );
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
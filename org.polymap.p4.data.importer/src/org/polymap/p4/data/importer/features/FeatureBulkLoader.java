@@ -0,0 +1,209 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data.importer.features;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import java.io.IOException;
+
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.FeatureStore;
+import org.geotools.data.Transaction;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.identity.FeatureId;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.config.Config2;
+import org.polymap.core.runtime.config.Configurable;
+import org.polymap.core.runtime.config.DefaultBoolean;
+import org.polymap.core.runtime.config.DefaultInt;
+import org.polymap.core.runtime.config.Mandatory;
+
+/**
+ * Loads a {@link FeatureCollection} into a {@link FeatureStore} in batches of
+ * {@link #batchSize} features. Reports progress (features/s and percentage) to the
+ * given monitor and stops if it is canceled.
+ * <p/>
+ * If {@link #commitPerBatch} is set, then every batch is committed in its own
+ * transaction, which keeps the transaction state of the store small. Otherwise one
+ * transaction spans the entire load. In both cases a failed or canceled load is
+ * rolled back: features of already committed batches are removed again, by the
+ * ids the store has returned for them. Other features of the store are never
+ * touched.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class FeatureBulkLoader
+        extends Configurable {
+
+    private static final Log log = LogFactory.getLog( FeatureBulkLoader.class );
+
+    private static final FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+
+    /** The number of features handed to the store at once. */
+    @Mandatory
+    @DefaultInt( 5000 )
+    public Config2<FeatureBulkLoader,Integer>   batchSize;
+
+    /** Commit every batch, or one commit at the end. */
+    @Mandatory
+    @DefaultBoolean( true )
+    public Config2<FeatureBulkLoader,Boolean>   commitPerBatch;
+
+    private FeatureStore            fs;
+
+    private int                     count;
+
+    /** The ids of the features of the batches committed so far. */
+    private Set<FeatureId>          committed = new HashSet();
+
+
+    public FeatureBulkLoader( FeatureStore fs ) {
+        this.fs = fs;
+    }
+
+
+    /**
+     * The number of features loaded by the last {@link #load(FeatureCollection, IProgressMonitor)}.
+     */
+    public int count() {
+        return count;
+    }
+
+
+    /**
+     * Loads the given features.
+     *
+     * @return False if the monitor was canceled and the load was rolled back.
+     * @throws IOException If the load failed; the load was rolled back.
+     */
+    public boolean load( FeatureCollection features, IProgressMonitor monitor ) throws IOException {
+        int total = size( features );
+        monitor.beginTask( "Import features", total > 0 ? total : IProgressMonitor.UNKNOWN );
+
+        SimpleFeatureType schema = (SimpleFeatureType)fs.getSchema();
+        Timer timer = new Timer();
+        count = 0;
+        committed.clear();
+        Transaction tx = new DefaultTransaction( "bulk-load" );
+        fs.setTransaction( tx );
+        try (
+            FeatureIterator it = features.features();
+        ){
+            List<SimpleFeature> batch = new ArrayList( batchSize.get() );
+            while (it.hasNext()) {
+                if (monitor.isCanceled()) {
+                    rollback( tx );
+                    return false;
+                }
+                batch.add( (SimpleFeature)it.next() );
+                if (batch.size() >= batchSize.get()) {
+                    flush( tx, schema, batch );
+                    progress( monitor, batch.size(), total, timer );
+                    batch.clear();
+                }
+            }
+            flush( tx, schema, batch );
+            progress( monitor, batch.size(), total, timer );
+            tx.commit();
+            log.info( "loaded: " + count + " in " + timer.elapsedTime() + "ms (" + perSecond( timer ) + "/s)" );
+            return true;
+        }
+        catch (Exception e) {
+            rollback( tx );
+            throw e instanceof IOException ? (IOException)e : new IOException( e );
+        }
+        finally {
+            fs.setTransaction( Transaction.AUTO_COMMIT );
+            tx.close();
+            monitor.done();
+        }
+    }
+
+
+    protected void flush( Transaction tx, SimpleFeatureType schema, List<SimpleFeature> batch ) throws IOException {
+        if (!batch.isEmpty()) {
+            List<FeatureId> ids = fs.addFeatures( new ListFeatureCollection( schema, batch ) );
+            count += batch.size();
+            if (commitPerBatch.get()) {
+                tx.commit();
+                committed.addAll( ids );
+            }
+        }
+    }
+
+
+    /**
+     * Rolls back the current transaction and removes the features of batches that
+     * were committed already.
+     */
+    protected void rollback( Transaction tx ) {
+        log.info( "rollback: " + count + " features loaded so far" );
+        try {
+            tx.rollback();
+            if (!committed.isEmpty()) {
+                fs.removeFeatures( ff.id( committed ) );
+                tx.commit();
+                committed.clear();
+            }
+        }
+        catch (IOException e) {
+            log.warn( "Unable to rollback bulk load.", e );
+        }
+        count = 0;
+    }
+
+
+    protected void progress( IProgressMonitor monitor, int worked, int total, Timer timer ) {
+        monitor.worked( worked );
+        monitor.subTask( total > 0
+                ? String.format( "%d of %d (%d%%) - %d/s", count, total, count * 100L / total, perSecond( timer ) )
+                : String.format( "%d - %d/s", count, perSecond( timer ) ) );
+    }
+
+
+    protected long perSecond( Timer timer ) {
+        return count * 1000L / Math.max( 1, timer.elapsedTime() );
+    }
+
+
+    /**
+     * The size of the given features, or -1 if not known. Streamed collections
+     * do not support {@link FeatureCollection#size()}.
+     */
+    protected int size( FeatureCollection features ) {
+        try {
+            return features.size();
+        }
+        catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+}
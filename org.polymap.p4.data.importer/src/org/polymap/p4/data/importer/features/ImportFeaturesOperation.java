@@ -18,6 +18,7 @@ import org.geotools.data.DataAccess;
 import org.geotools.data.FeatureStore;
 import org.geotools.feature.FeatureCollection;
 import org.opengis.feature.type.FeatureType;
+import org.opengis.feature.type.Name;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -82,8 +83,6 @@ public class ImportFeaturesOperation
     
     @Override
     protected IStatus doExecute( IProgressMonitor monitor, IAdaptable info ) throws Exception {
-        monitor.beginTask( getLabel(), 100 );
-        
         FeatureType schema = features.getSchema();
 
         // XXX check namespace, remove when fixed
@@ -96,26 +95,30 @@ public class ImportFeaturesOperation
         // XXX transaction that spans createSchema() and addFeatures()!?
         ds.createSchema( schema );
         
-        fs = (FeatureStore)ds.getFeatureSource( schema.getName() );
-        fs.addFeatures( features );
-        monitor.done();
-
-//        DefaultTransaction tx = new DefaultTransaction();
-//        try {
-//            fs.setTransaction( tx );
-//            int chunkSize = Math.max( 1, featuresSize / 10 );
-//            for (int featuresCount=0; featuresCount<featuresSize; ) {
-//                for (int i=0; i<chunkSize; i++) {
-//                    
-//                }
-//            }
-//            fs.addFeatures( features );
-//        }
-//        finally {
-//            tx.close();
-//        }
-        
-        return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+        boolean loaded = false;
+        try {
+            fs = (FeatureStore)ds.getFeatureSource( schema.getName() );
+            FeatureBulkLoader loader = new FeatureBulkLoader( fs );
+            loaded = loader.load( features, monitor );
+            return loaded ? Status.OK_STATUS : Status.CANCEL_STATUS;
+        }
+        finally {
+            if (!loaded) {
+                // the loader has removed its features, don't leave an empty type behind
+                removeSchema( ds, schema.getName() );
+            }
+        }
+    }
+
+
+    protected void removeSchema( DataAccess ds, Name name ) {
+        try {
+            ds.removeSchema( name );
+            fs = null;
+        }
+        catch (Exception e) {
+            log.warn( "Unable to remove schema: " + name, e );
+        }
     }
     
 }
@@ -14,34 +14,67 @@
  */
 package org.polymap.p4.data.importer.geojson;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
 
 import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.simple.SimpleFeatureImpl;
 import org.geotools.geojson.GeoJSONUtil;
+import org.geotools.geojson.IContentHandler;
+import org.geotools.geojson.feature.CRSHandler;
 import org.geotools.geojson.feature.FeatureJSON;
+import org.geotools.util.Converters;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import org.json.simple.parser.ParseException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import org.eclipse.core.runtime.IProgressMonitor;
 
 /**
+ * Streams the features of a GeoJSON file.
+ * <p/>
+ * The schema is discovered from the first {@link #DEFAULT_SAMPLE_SIZE} features
+ * only (see {@link LaxFeatureTypeHandler}), unless a full widening pass is
+ * requested. Attribute values of later features that do not fit the discovered
+ * schema are promoted: converted to the binding of the attribute if possible, or
+ * set to null otherwise. Properties that are not part of the discovered schema
+ * cannot be imported. Both are logged once per attribute and counted, see
+ * {@link #failures()} and {@link #dropped()}; a full widening pass avoids this.
+ * 
  * @author Steffen Stundzig
  */
 public class GeoJSONFeatureIterator
         implements FeatureIterator<SimpleFeature>, Iterator<SimpleFeature> {
 
+    private static final Log log = LogFactory.getLog( GeoJSONFeatureIterator.class );
+
+    /** The default number of features used to discover the schema. */
+    public static final int                DEFAULT_SAMPLE_SIZE = 1000;
+
+    /** Size of the read buffer. */
+    public static final int                BUFFER_SIZE = 1024 * 1024;
+
     private FeatureIterator<SimpleFeature> underlying = null;
 
-    private InputStreamReader              isr        = null;
+    private Reader                         isr        = null;
 
     private final SimpleFeatureType        schema;
 
@@ -51,19 +84,39 @@ public class GeoJSONFeatureIterator
 
     private final Charset                  encoding;
 
+    private int                            promotions;
+
+    /** Values that could not be converted, by attribute name. */
+    private Map<String,Integer>            failures = new TreeMap();
+
+    /** Properties not part of the schema, by property name. */
+    private Map<String,Integer>            dropped = new TreeMap();
+
 
     public GeoJSONFeatureIterator( File file, Charset encoding, String schemaName, CoordinateReferenceSystem crs,
             IProgressMonitor monitor ) {
+        this( file, encoding, schemaName, crs, DEFAULT_SAMPLE_SIZE, monitor );
+    }
+
+
+    /**
+     * 
+     * @param sampleSize The number of features used to discover the schema, or -1
+     *        for a full widening pass over all features.
+     */
+    public GeoJSONFeatureIterator( File file, Charset encoding, String schemaName, CoordinateReferenceSystem crs,
+            int sampleSize, IProgressMonitor monitor ) {
         this.jsonFile = file;
         this.encoding = encoding;
         try {
             featureJSON = new FeatureJSON();
             featureJSON.setEncodeFeatureCRS( false );
             featureJSON.setEncodeNullValues( true );
-            isr = new InputStreamReader( new FileInputStream( file ), encoding );
-            schema = GeoJSONUtil.parse( new LaxFeatureTypeHandler( schemaName, crs ), isr, false );
-            isr.close();
-            featureJSON.setFeatureType( schema );
+            try (Reader reader = reader( file, encoding )) {
+                schema = GeoJSONUtil.parse( new LaxFeatureTypeHandler( schemaName, crs, sampleSize ), reader, false );
+            }
+            // no fixed type: features keep all their properties, so that next()
+            // can tell values and properties that do not fit the schema
 
             reset();
         }
@@ -73,11 +126,116 @@ public class GeoJSONFeatureIterator
     }
 
 
+    /**
+     * Reads the top level CRS of the given file. Parsing stops as soon as the CRS
+     * is found or the <code>features</code> member starts, so just the head of the
+     * file is read. A CRS given after the features is not found.
+     *
+     * @return The CRS of the file, or null.
+     */
+    public static CoordinateReferenceSystem readCRS( File file, Charset encoding ) throws IOException {
+        try (Reader reader = reader( file, encoding )) {
+            return GeoJSONUtil.parse( new TopLevelCRSHandler(), reader, false );
+        }
+    }
+
+
+    /**
+     * Finds the <code>crs</code> member of the top level object before the
+     * <code>features</code> member. Everything else is just tokenized.
+     */
+    static class TopLevelCRSHandler
+            implements IContentHandler<CoordinateReferenceSystem> {
+
+        /** The nesting of objects and arrays. */
+        private int                         depth;
+
+        private CRSHandler                  crsHandler;
+
+        private CoordinateReferenceSystem   crs;
+
+        @Override
+        public CoordinateReferenceSystem getValue() {
+            return crs;
+        }
+
+        @Override
+        public void startJSON() throws ParseException, IOException {
+        }
+
+        @Override
+        public void endJSON() throws ParseException, IOException {
+        }
+
+        @Override
+        public boolean startObject() throws ParseException, IOException {
+            depth ++;
+            return crsHandler != null ? crsHandler.startObject() : true;
+        }
+
+        @Override
+        public boolean endObject() throws ParseException, IOException {
+            depth --;
+            return crsHandler != null ? crsHandler.endObject() : true;
+        }
+
+        @Override
+        public boolean startArray() throws ParseException, IOException {
+            depth ++;
+            return crsHandler != null ? crsHandler.startArray() : true;
+        }
+
+        @Override
+        public boolean endArray() throws ParseException, IOException {
+            depth --;
+            return crsHandler != null ? crsHandler.endArray() : true;
+        }
+
+        @Override
+        public boolean startObjectEntry( String key ) throws ParseException, IOException {
+            if (crsHandler != null) {
+                return crsHandler.startObjectEntry( key );
+            }
+            if (depth == 1 && "crs".equals( key )) {
+                crsHandler = new CRSHandler();
+            }
+            // no CRS in the head of the file, don't scan the features
+            return !(depth == 1 && "features".equals( key ));
+        }
+
+        @Override
+        public boolean endObjectEntry() throws ParseException, IOException {
+            if (crsHandler != null) {
+                if (depth > 1) {
+                    return crsHandler.endObjectEntry();
+                }
+                crs = crsHandler.getValue();
+                crsHandler = null;
+                // found, stop parsing
+                return crs == null;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean primitive( Object value ) throws ParseException, IOException {
+            return crsHandler != null ? crsHandler.primitive( value ) : true;
+        }
+    }
+
+
+    protected static Reader reader( File file, Charset encoding ) throws IOException {
+        return new BufferedReader( new InputStreamReader( new FileInputStream( file ), encoding ), BUFFER_SIZE );
+    }
+
+
     public void reset() throws IOException {
         if (isr != null) {
             isr.close();
         }
-        isr = new InputStreamReader( new FileInputStream( jsonFile ), encoding );
+        isr = reader( jsonFile, encoding );
+        failures.clear();
+        dropped.clear();
         underlying = featureJSON.streamFeatureCollection( isr );
     }
 
@@ -87,6 +245,32 @@ public class GeoJSONFeatureIterator
     }
 
 
+    /**
+     * The number of values that did not fit the discovered schema so far.
+     */
+    public int promotions() {
+        return promotions;
+    }
+
+
+    /**
+     * The number of values that could not be converted to the discovered schema
+     * and were set to null so far, by attribute name.
+     */
+    public Map<String,Integer> failures() {
+        return failures;
+    }
+
+
+    /**
+     * The number of values of properties that are not part of the discovered
+     * schema and were dropped so far, by property name.
+     */
+    public Map<String,Integer> dropped() {
+        return dropped;
+    }
+
+
     @Override
     public void close() {
         if (isr != null) {
@@ -100,6 +284,8 @@ public class GeoJSONFeatureIterator
         if (underlying != null) {
             underlying.close();
         }
+        failures.forEach( (name,count) -> log.warn( name + ": " + count + " value(s) set to null." ) );
+        dropped.forEach( (name,count) -> log.warn( name + ": " + count + " value(s) dropped, not in the sampled schema." ) );
     }
 
 
@@ -112,6 +298,38 @@ public class GeoJSONFeatureIterator
     @Override
     public SimpleFeature next() throws NoSuchElementException {
         final SimpleFeature next = underlying.next();
-        return new SimpleFeatureImpl( next.getAttributes(), schema, null );
+        List<AttributeDescriptor> descriptors = schema.getAttributeDescriptors();
+        List<Object> attributes = new ArrayList( descriptors.size() );
+        for (AttributeDescriptor descriptor : descriptors) {
+            Object value = next.getAttribute( descriptor.getLocalName() );
+            Class<?> binding = descriptor.getType().getBinding();
+            if (value != null && !binding.isInstance( value )) {
+                value = promote( value, binding, descriptor );
+            }
+            attributes.add( value );
+        }
+        for (AttributeDescriptor descriptor : next.getFeatureType().getAttributeDescriptors()) {
+            String name = descriptor.getLocalName();
+            if (schema.getDescriptor( name ) == null && next.getAttribute( name ) != null
+                    && dropped.merge( name, 1, Integer::sum ) == 1) {
+                log.warn( "Property " + name + " is not part of the sampled schema, values are dropped." );
+            }
+        }
+        return new SimpleFeatureImpl( attributes, schema, null );
+    }
+
+
+    protected Object promote( Object value, Class<?> binding, AttributeDescriptor descriptor ) {
+        Object result = binding.equals( String.class ) ? value.toString() : Converters.convert( value, binding );
+        if (result == null) {
+            if (failures.merge( descriptor.getLocalName(), 1, Integer::sum ) == 1) {
+                log.warn( "Value of " + descriptor.getLocalName() + " cannot be converted to " 
+                        + binding.getSimpleName() + ", set to null: " + value );
+            }
+        }
+        else if (promotions++ < 10) {
+            log.info( "Value of " + descriptor.getLocalName() + " does not fit sampled schema: " + value + " -> " + result );
+        }
+        return result;
     }
-}
\ No newline at end of file
+}
@@ -17,16 +17,12 @@ package org.polymap.p4.data.importer.geojson;
 import java.util.Iterator;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 
 import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.collection.AbstractFeatureCollection;
-import org.geotools.geojson.feature.FeatureJSON;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.opengis.feature.simple.SimpleFeature;
@@ -114,27 +110,18 @@ public class GeoJSONImporter
     }
 
 
+    /**
+     * The CRS of the file, or EPSG:4326 if not specified. Just the head of the
+     * file is parsed.
+     */
     protected CoordinateReferenceSystem predefinedCRS() {
         CoordinateReferenceSystem predefinedCRS = null;
-        InputStreamReader isr = null;
         try {
-            isr = new InputStreamReader( new FileInputStream( geojsonFile ), CharsetPrompt.DEFAULT );
-            FeatureJSON featureJSON = new FeatureJSON();
-            predefinedCRS = featureJSON.readCRS( isr );
+            predefinedCRS = GeoJSONFeatureIterator.readCRS( geojsonFile, CharsetPrompt.DEFAULT );
         }
         catch (Exception ioe) {
             exception = ioe;
         }
-        finally {
-            if (isr != null) {
-                try {
-                    isr.close();
-                }
-                catch (IOException e) {
-                    // do nothing
-                }
-            }
-        }
         if (predefinedCRS == null) {
             try {
                 predefinedCRS = CRS.decode( "EPSG:4326" );
@@ -12,12 +12,13 @@
  */
 package org.polymap.p4.data.importer.geojson;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.Stack;
 
 import java.io.IOException;
 
@@ -38,7 +39,12 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 /**
  * Based on {@link FeatureTypeHandler}, but with a more stable primitive
- * implementation. Here a type change from Long to Double is supported.
+ * implementation. Here a type change from Long to Double is supported, other
+ * conflicting types are widened to String.
+ * <p/>
+ * Parsing stops after {@link #sampleSize} features, so the type is discovered from
+ * a prefix of the file. Values of later features that do not fit the discovered
+ * type are converted by {@link GeoJSONFeatureIterator}.
  *
  * @author Steffen Stundzig
  */
@@ -46,7 +52,7 @@ public class LaxFeatureTypeHandler
         extends DelegatingHandler<SimpleFeatureType>
         implements IContentHandler<SimpleFeatureType> {
 
-    private Stack<String>             path          = new Stack<String>();
+    private Deque<String>             path          = new ArrayDeque<String>( 16 );
 
     SimpleFeatureType                 featureType;
 
@@ -68,11 +74,27 @@ public class LaxFeatureTypeHandler
 
     private FeatureHandler            featureHandler;
 
+    private final int                 sampleSize;
+
+    private int                       featureCount;
+
 
     public LaxFeatureTypeHandler( final String schemaName, CoordinateReferenceSystem coordinateReferenceSystem ) {
+        this( schemaName, coordinateReferenceSystem, -1 );
+    }
+
+
+    /**
+     * 
+     * @param sampleSize The max number of features to inspect, or -1 to inspect
+     *        all features of the file.
+     */
+    public LaxFeatureTypeHandler( final String schemaName, CoordinateReferenceSystem coordinateReferenceSystem,
+            int sampleSize ) {
         this.schemaName = schemaName;
         this.nullValuesEncoded = false;
         this.crs = coordinateReferenceSystem;
+        this.sampleSize = sampleSize;
     }
 
 
@@ -161,6 +183,11 @@ public class LaxFeatureTypeHandler
                     buildType();
                     return false;
                 }
+                // sample is complete, stop parsing
+                if (sampleSize > 0 && ++featureCount >= sampleSize && geom != null) {
+                    buildType();
+                    return false;
+                }
             }
             // create a new builder
             featureHandler = new FeatureHandler( null, new DefaultAttributeIO() );
@@ -195,10 +222,9 @@ public class LaxFeatureTypeHandler
                 else if (knownType == Double.class && newType == Long.class) {
                     // do nothing
                 }
-                else if (knownType != newType) {
-                    throw new IllegalStateException( "Found conflicting types "
-                            + knownType.getSimpleName() + " and " + newType.getSimpleName()
-                            + " for property " + currentProp );
+                else if (knownType != newType && knownType != String.class) {
+                    // conflicting types, widen to String
+                    propertyTypes.put( currentProp, String.class );
                 }
             }
         }
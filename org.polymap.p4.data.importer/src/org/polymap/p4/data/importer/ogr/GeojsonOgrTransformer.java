@@ -58,11 +58,11 @@ class GeojsonOgrTransformer
      * @throws IOException 
      */
     public static File translate( File f, IProgressMonitor monitor ) throws IOException {
-        monitor.beginTask( "transforming format", IProgressMonitor.UNKNOWN );
+        monitor.beginTask( "transforming format", 100 );
         File tempDir = ImportTempDir.create();
         File temp = new File( tempDir, f.getName() + ".json" );
 
-        String[] command = {"ogr2ogr", "-preserve_fid", "-f", "GeoJSON", temp.getAbsolutePath(), f.getAbsolutePath()};
+        String[] command = {"ogr2ogr", "-progress", "-preserve_fid", "-f", "GeoJSON", temp.getAbsolutePath(), f.getAbsolutePath()};
         return execute( command, monitor, (exitCode, out, err) -> {
             monitor.done();
             if (exitCode == 0 && !err.contains( "ERROR" )) {
@@ -58,11 +58,11 @@ class SqliteOgrTransformer
      * @throws IOException 
      */
     public static File translate( File f, IProgressMonitor monitor ) throws IOException {
-        monitor.beginTask( "transforming format", IProgressMonitor.UNKNOWN );
+        monitor.beginTask( "transforming format", 100 );
         File tempDir = ImportTempDir.create();
         File temp = new File( tempDir, f.getName() + ".sqlite" );
 
-        String[] command = {"ogr2ogr", "-dsco", "spatialite=yes", "-preserve_fid", "-f", "SQLite", 
+        String[] command = {"ogr2ogr", "-progress", "-dsco", "spatialite=yes", "-preserve_fid", "-f", "SQLite", 
                 temp.getAbsolutePath(), f.getAbsolutePath()};
         
         return execute( command, monitor, (exitCode, out, err) -> {
@@ -1,4 +1,4 @@
-/* 
+/*
  * polymap.org
  * Copyright (C) 2017, the @authors. All rights reserved.
  *
@@ -14,10 +14,19 @@
  */
 package org.polymap.p4.data.importer.raster;
 
-import java.io.BufferedInputStream;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -25,9 +34,20 @@ import com.google.common.base.Throwables;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 
+import org.polymap.core.runtime.Timer;
+
 /**
  * Executes an external program (gdal/ogr), catches output, checks error and
  * checks/feeds progress monitor.
+ * <p/>
+ * Standard output and error are drained by two reader threads into
+ * {@link BoundedBuffer}s. The GDAL/OGR progress output ("0...10...20...")
+ * is parsed into work units of the monitor: the caller should begin the task
+ * with 100 units. The calling thread just waits for the process; if the monitor
+ * is canceled or the thread is interrupted, the process is destroyed.
+ * <p/>
+ * At most {@link #MAX_PROCESSES} programs are running at the same time, further
+ * calls wait for a running program to finish.
  *
  * @author Falko Bräutigam
  */
@@ -35,6 +55,28 @@ public abstract class ExternalProgram {
 
     private static final Log log = LogFactory.getLog( ExternalProgram.class );
 
+    /**
+     * The max number of concurrently running programs. Set via system property
+     * <code>org.polymap.p4.data.importer.maxProcesses</code>, defaults to half
+     * of the available processors.
+     */
+    public static final int         MAX_PROCESSES = Integer.getInteger( "org.polymap.p4.data.importer.maxProcesses",
+            Math.max( 2, Runtime.getRuntime().availableProcessors() / 2 ) );
+
+    /** The max number of chars kept from standard output and error. */
+    public static final int         MAX_OUTPUT = 128 * 1024;
+
+    /** Millis to wait for the output readers after the process has exited. */
+    public static final long        READER_TIMEOUT = 10000;
+
+    private static final Semaphore  permits = new Semaphore( MAX_PROCESSES, true );
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    /** GDAL/OGR progress: "0...10...20...30...40...50...60...70...80...90...100 - done." */
+    private static final Pattern    PROGRESS = Pattern.compile( "(\\d{1,3})(\\.\\.\\.| - done)" );
+
+
     @FunctionalInterface
     public interface ResultHandler<R, E extends Exception> {
         /**
@@ -46,70 +88,209 @@ public abstract class ExternalProgram {
          */
         public R handle( int exitCode, String out, String err ) throws E;
     }
-    
+
     /**
      * Executes the given command.
-     * 
+     *
      * @param command Command to execute and arguments.
      * @throws IOException If the command could not be executed. The message of the
      *         exception contains the error output of the command.
      * @throws RuntimeException If canceled by monitor.
      */
-    public static <R, E extends Exception> 
-            R execute( String[] command, IProgressMonitor monitor, ResultHandler<R,E> handler ) 
+    public static <R, E extends Exception>
+            R execute( String[] command, IProgressMonitor monitor, ResultHandler<R,E> handler )
             throws IOException {
-        
-        Process process = new ProcessBuilder( command ).start();
 
-        InputStream in = new BufferedInputStream( process.getInputStream() );
-        StringBuilder output = new StringBuilder( 4096 );
-        InputStream err = new BufferedInputStream( process.getErrorStream() );
-        StringBuilder error = new StringBuilder( 4096 );
+        acquire( monitor );
+        Timer timer = new Timer();
+        Process process = null;
+        try {
+            process = new ProcessBuilder( command ).start();
+            process.getOutputStream().close();
 
-        do {
-            if (monitor.isCanceled()) {
-                throw new RuntimeException( "Canceled" );                    
+            AtomicInteger reported = new AtomicInteger();
+            StreamReader out = new StreamReader( process.getInputStream(), percent -> {
+                int previous = reported.getAndAccumulate( percent, Math::max );
+                if (percent > previous) {
+                    monitor.worked( percent - previous );
+                }
+            });
+            StreamReader err = new StreamReader( process.getErrorStream(), null );
+            out.start();
+            err.start();
+
+            while (!process.waitFor( 200, TimeUnit.MILLISECONDS )) {
+                if (monitor.isCanceled()) {
+                    throw new RuntimeException( "Canceled" );
+                }
+            }
+            // the streams might be kept open by a (grand)child process
+            out.join( READER_TIMEOUT );
+            err.join( READER_TIMEOUT );
+            if (out.isAlive() || err.isAlive()) {
+                log.warn( command[0] + ": output not closed after exit, output might be incomplete" );
             }
-            if (read( err, error ) > 0) {
-                //checkError( error );
+            log.info( command[0] + ": exit=" + process.exitValue() + " (" + timer.elapsedTime() + "ms)" );
+
+            return handler.handle( process.exitValue(), out.buffer.toString(), err.buffer.toString() );
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Canceled" );
+        }
+        catch (Exception e) {
+            Throwables.propagateIfInstanceOf( e, IOException.class );
+            throw Throwables.propagate( e );
+        }
+        finally {
+            if (process != null) {
+                destroy( process );
             }
-            if (read( in, output ) > 0) {
-                monitor.worked( 1 );
+            permits.release();
+        }
+    }
+
+
+    /**
+     * Waits for a free slot, checking the monitor for cancelation.
+     */
+    protected static void acquire( IProgressMonitor monitor ) {
+        try {
+            while (!permits.tryAcquire( 500, TimeUnit.MILLISECONDS )) {
+                monitor.subTask( "waiting for other processes" );
+                if (monitor.isCanceled()) {
+                    throw new RuntimeException( "Canceled" );
+                }
             }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Canceled" );
+        }
+    }
+
+
+    /**
+     * Destroys the given process if it is still running. Java 8 cannot reach the
+     * children of a process, but gdal/ogr tools do not start any.
+     */
+    protected static void destroy( Process process ) {
+        if (process.isAlive()) {
+            log.info( "Destroying process..." );
+            process.destroy();
             try {
-                Thread.sleep( 100 );
+                if (!process.waitFor( 5, TimeUnit.SECONDS )) {
+                    process.destroyForcibly();
+                }
             }
             catch (InterruptedException e) {
-                // continue
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
             }
-        } while (isRunning( process ));
-        
-        try {
-            return handler.handle( process.exitValue(), output.toString(), error.toString() );
-        }
-        catch (Exception e) {
-            Throwables.propagateIfInstanceOf( e, IOException.class );
-            throw Throwables.propagate( e );
         }
     }
-    
-    
-    protected static int read( InputStream in, StringBuilder out ) throws IOException {
-        byte[] bytes = new byte[ in.available() ];
-        int result = in.read( bytes );
-        out.append( new String( bytes ) );
-        return result;
+
+
+    /**
+     * Drains a stream of the process into a {@link BoundedBuffer} and optionally
+     * parses GDAL progress from it.
+     */
+    protected static class StreamReader
+            extends Thread {
+
+        public BoundedBuffer    buffer = new BoundedBuffer( MAX_OUTPUT );
+
+        private InputStream     in;
+
+        private IntConsumer     progress;
+
+        /** The end of the previous chunk, progress output may be split between chunks. */
+        private String          carry = "";
+
+        public StreamReader( InputStream in, IntConsumer progress ) {
+            super( ExternalProgram.class.getSimpleName() + "-" + threadCount.getAndIncrement() );
+            setDaemon( true );
+            this.in = in;
+            this.progress = progress;
+        }
+
+        @Override
+        public void run() {
+            try (
+                Reader reader = new InputStreamReader( in );
+            ){
+                char[] chunk = new char[8192];
+                for (int c = reader.read( chunk ); c > -1; c = reader.read( chunk )) {
+                    buffer.append( chunk, c );
+                    if (progress != null) {
+                        parseProgress( new String( chunk, 0, c ) );
+                    }
+                }
+            }
+            catch (IOException e) {
+                // stream closed by destroy()
+                log.debug( "", e );
+            }
+        }
+
+        protected void parseProgress( String s ) {
+            String text = carry + s;
+            Matcher matcher = PROGRESS.matcher( text );
+            while (matcher.find()) {
+                int percent = Integer.parseInt( matcher.group( 1 ) );
+                if (percent <= 100) {
+                    progress.accept( percent );
+                }
+            }
+            carry = StringUtils.right( text, 8 );
+        }
     }
-    
-    
-    protected static boolean isRunning( Process process ) {
-        try {
-            process.exitValue();
-            return false;
+
+
+    /**
+     * Keeps the first and the last chars of a text of unknown length. Most error
+     * messages are found at the start or at the end of the output.
+     */
+    protected static class BoundedBuffer {
+
+        private StringBuilder   head;
+
+        private char[]          tail;
+
+        private int             tailPos;
+
+        private long            tailCount;
+
+        public BoundedBuffer( int capacity ) {
+            head = new StringBuilder( 1024 );
+            tail = new char[capacity / 2];
         }
-        catch (IllegalThreadStateException e) {
-            return true;
+
+        public synchronized void append( char[] chars, int length ) {
+            int i = 0;
+            for (; i < length && head.length() < tail.length; i++) {
+                head.append( chars[i] );
+            }
+            for (; i < length; i++) {
+                tail[tailPos] = chars[i];
+                tailPos = (tailPos + 1) % tail.length;
+                tailCount ++;
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder result = new StringBuilder( head );
+            if (tailCount > tail.length) {
+                result.append( "\n[...]\n" )
+                        .append( tail, tailPos, tail.length - tailPos )
+                        .append( tail, 0, tailPos );
+            }
+            else {
+                result.append( tail, 0, (int)tailCount );
+            }
+            return result.toString();
         }
     }
-    
+
 }
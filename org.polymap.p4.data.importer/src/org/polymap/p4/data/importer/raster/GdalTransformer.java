@@ -17,6 +17,12 @@ package org.polymap.p4.data.importer.raster;
 import static org.apache.commons.io.FilenameUtils.getBaseName;
 import static org.apache.commons.lang3.StringUtils.substringAfterLast;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import java.io.File;
 import java.io.IOException;
 
@@ -37,6 +43,11 @@ class GdalTransformer
         extends ExternalProgram {
 
     private static final Log log = LogFactory.getLog( GdalTransformer.class );
+
+    /** The block size of the tiles and the min size of the smallest overview. */
+    public static final int     TILE_SIZE = 256;
+
+    private static final Pattern SIZE = Pattern.compile( "Size is (\\d+), (\\d+)" );
     
     /**
      * 
@@ -61,7 +72,7 @@ class GdalTransformer
      * @throws IOException 
      */
     public static File translate( File f, IProgressMonitor monitor ) throws IOException {
-        monitor.beginTask( "translate to GeoTiff", IProgressMonitor.UNKNOWN );
+        monitor.beginTask( "translate to GeoTiff", 100 );
         File tempDir = ImportTempDir.create();
         File temp = new File( tempDir, f.getName() + ".tif" );
 
@@ -79,7 +90,7 @@ class GdalTransformer
     
     
     public static File warp( File f, String epsg, IProgressMonitor monitor ) throws IOException {
-        monitor.beginTask( "warp to " + epsg, IProgressMonitor.UNKNOWN );
+        monitor.beginTask( "warp to " + epsg, 100 );
         File tempDir = ImportTempDir.create();
         File temp = new File( tempDir, getBaseName( f.getName() ) + "." + substringAfterLast( epsg, ":" ) + ".tif" );
 
@@ -96,6 +107,78 @@ class GdalTransformer
     }
 
 
+    /**
+     * Translates the given file into an internally tiled, compressed GeoTIFF with
+     * internal overviews, down to {@link #TILE_SIZE}. Files that are tiled and
+     * have overviews already are returned as is.
+     *
+     * @return A newly created File, or the given file.
+     * @throws IOException 
+     */
+    public static File optimize( File f, IProgressMonitor monitor ) throws IOException {
+        monitor.beginTask( "optimize", 200 );
+        String info = execute( new String[] {"gdalinfo", f.getAbsolutePath()}, monitor, (exitCode, out, err) -> {
+            if (exitCode == 0 && !err.contains( "ERROR" )) {
+                return out;
+            }
+            throw new IOException( err );
+        });
+        if (info.contains( "Block=" + TILE_SIZE + "x" + TILE_SIZE ) && info.contains( "Overviews:" )) {
+            log.info( "Optimized already: " + f.getName() );
+            monitor.done();
+            return f;
+        }
+        Matcher size = SIZE.matcher( info );
+        if (!size.find()) {
+            throw new IOException( "No raster size found: " + f.getName() );
+        }
+        
+        // tiled, compressed copy
+        File tempDir = ImportTempDir.create();
+        File temp = new File( tempDir, getBaseName( f.getName() ) + ".tif" );
+        String[] translate = {"gdal_translate", "-of", "GTiff", 
+                "-co", "TILED=YES", "-co", "BLOCKXSIZE=" + TILE_SIZE, "-co", "BLOCKYSIZE=" + TILE_SIZE,
+                "-co", "COMPRESS=DEFLATE", "-co", "BIGTIFF=IF_SAFER",
+                f.getAbsolutePath(), temp.getAbsolutePath()};
+        execute( translate, monitor, (exitCode, out, err) -> {
+            if (exitCode == 0 && !err.contains( "ERROR" )) {
+                return temp;
+            }
+            throw new IOException( err );
+        });
+
+        // overviews; averaging color table indexes would give random colors
+        int[] levels = overviewLevels( Integer.parseInt( size.group( 1 ) ), Integer.parseInt( size.group( 2 ) ) );
+        if (levels.length > 0) {
+            List<String> addo = new ArrayList( Arrays.asList( "gdaladdo", 
+                    "-r", info.contains( "Color Table" ) ? "nearest" : "average",
+                    "--config", "COMPRESS_OVERVIEW", "DEFLATE", temp.getAbsolutePath() ) );
+            Arrays.stream( levels ).forEach( level -> addo.add( String.valueOf( level ) ) );
+            execute( addo.toArray( new String[addo.size()] ), monitor, (exitCode, out, err) -> {
+                if (exitCode == 0 && !err.contains( "ERROR" )) {
+                    return temp;
+                }
+                throw new IOException( err );
+            });
+        }
+        monitor.done();
+        return temp;
+    }
+    
+    
+    /**
+     * The overview factors (2, 4, 8, ...) until the larger side of the raster fits
+     * in one tile.
+     */
+    public static int[] overviewLevels( int width, int height ) {
+        List<Integer> result = new ArrayList();
+        for (int factor = 2; Math.max( width, height ) / (factor / 2) > TILE_SIZE; factor *= 2) {
+            result.add( factor );
+        }
+        return result.stream().mapToInt( Integer::intValue ).toArray();
+    }
+
+
     // Test ***********************************************
     
     public static final void main( String[] args ) {
@@ -14,10 +14,18 @@
  */
 package org.polymap.p4.data.importer.raster;
 
+import java.util.Properties;
+
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import org.geotools.coverage.grid.io.GridCoverage2DReader;
 import org.geotools.data.ServiceInfo;
+import org.geotools.referencing.CRS;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
@@ -35,6 +43,7 @@ import org.eclipse.core.runtime.Status;
 
 import org.polymap.core.catalog.IUpdateableMetadataCatalog.Updater;
 import org.polymap.core.catalog.resolve.IResolvableInfo;
+import org.polymap.core.data.raster.GridCoverageReaderFactory;
 import org.polymap.core.data.raster.catalog.GridServiceInfo;
 import org.polymap.core.data.raster.catalog.GridServiceResolver;
 import org.polymap.core.operation.DefaultOperation;
@@ -59,10 +68,17 @@ public class ImportRasterOperation
     
     private File                        f;
     
+    /** The reader of the imported file, see {@link #ImportRasterOperation(File)}. */
     @Mandatory
     @Immutable
     public Config<GridCoverage2DReader> gridReader;
     
+    /**
+     * Move the file instead of copying its entire directory. For files created by
+     * the importer, without sidecar files.
+     */
+    private boolean                     moveFile;
+    
     /** The newly created service. */
     @Mandatory
     @Immutable
@@ -77,13 +93,34 @@ public class ImportRasterOperation
     }
 
     
+    /**
+     * Imports a file created by the importer, without sidecar files. The file is
+     * moved instead of copying its entire directory, and {@link #gridReader} is
+     * opened on the moved file.
+     */
+    public ImportRasterOperation( File f ) {
+        super( "Import raster" );
+        ConfigurationFactory.inject( this );
+        this.f = f;
+        this.moveFile = true;
+    }
+
+    
     @Override
     protected IStatus doExecute( IProgressMonitor monitor, IAdaptable info ) throws Exception {
         // copy data files
         monitor.beginTask( "Copying files", IProgressMonitor.UNKNOWN );
         File targetDir = new File( P4Plugin.gridStoreDir(), FilenameUtils.getBaseName( f.getName() ) );
-        FileUtils.copyDirectory( f.getParentFile(), targetDir );
         File target = new File( targetDir, f.getName() );
+        if (moveFile) {
+            targetDir.mkdirs();
+            Files.move( f.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING );
+            gridReader.set( GridCoverageReaderFactory.openGeoTiff( target ) );
+        }
+        else {
+            FileUtils.copyDirectory( f.getParentFile(), targetDir );
+        }
+        writeDescriptor( target );
         
         // create catalog entry
         try (
@@ -120,4 +157,34 @@ public class ImportRasterOperation
         return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
     }
 
+
+    /**
+     * Writes a <code>*.properties</code> sidecar file that describes the layout of
+     * the imported data: size, tiling and overviews.
+     */
+    protected void writeDescriptor( File target ) {
+        GridCoverage2DReader reader = gridReader.get();
+        Properties descriptor = new Properties();
+        descriptor.setProperty( "file", target.getName() );
+        descriptor.setProperty( "format", reader.getFormat().getName() );
+        descriptor.setProperty( "size", String.valueOf( target.length() ) );
+        descriptor.setProperty( "crs", String.valueOf( CRS.toSRS( reader.getCoordinateReferenceSystem() ) ) );
+        descriptor.setProperty( "envelope", String.valueOf( reader.getOriginalEnvelope() ) );
+        descriptor.setProperty( "gridRange", String.valueOf( reader.getOriginalGridRange() ) );
+        descriptor.setProperty( "optimized", String.valueOf( moveFile ) );
+        try {
+            descriptor.setProperty( "overviews", String.valueOf( reader.getResolutionLevels().length - 1 ) );
+        }
+        catch (IOException e) {
+            log.warn( "", e );
+        }
+        File f = new File( target.getParentFile(), FilenameUtils.getBaseName( target.getName() ) + ".properties" );
+        try (OutputStream out = new FileOutputStream( f )) {
+            descriptor.store( out, "Imported raster" );
+        }
+        catch (IOException e) {
+            log.warn( "Unable to write descriptor: " + f, e );
+        }
+    }
+
 }
@@ -100,6 +100,7 @@ public class RasterImporter
 
     @Override
     public void verify( IProgressMonitor monitor ) {
+        disposeGrid();
         try {
             log.info( "File size: " + FileUtils.sizeOf( main ) );
 
@@ -193,10 +194,40 @@ public class RasterImporter
     }
 
 
+    /**
+     * Imports an internally tiled GeoTIFF with overviews (see
+     * {@link GdalTransformer#optimize(File, IProgressMonitor)}), so that rendering
+     * at small scales reads the overview tiles only. If GDAL is not available,
+     * then the file is imported as is.
+     */
     @Override
     public void execute( IProgressMonitor monitor ) throws Exception {
-        ImportRasterOperation op = new ImportRasterOperation( main, grid );
+        File optimized = main;
+        try {
+            optimized = GdalTransformer.optimize( main, monitor );
+        }
+        catch (IOException e) {
+            log.warn( "Unable to optimize, importing as is: " + e.getMessage() );
+        }
+        
+        ImportRasterOperation op = null;
+        if (optimized != main) {
+            // the reader is opened on the moved file
+            op = new ImportRasterOperation( optimized );
+            disposeGrid();
+        }
+        else {
+            op = new ImportRasterOperation( main, grid );
+        }
         OperationSupport.instance().execute( op, false, false );
     }
 
+
+    protected void disposeGrid() {
+        if (grid != null) {
+            grid.dispose();
+            grid = null;
+        }
+    }
+
 }
@@ -13,20 +13,22 @@
  */
 package org.polymap.p4.data.importer.refine;
 
-import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
 import java.io.File;
 
-import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.DataUtilities;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.NameImpl;
+import org.geotools.feature.collection.AbstractFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureImpl;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.osgi.framework.ServiceReference;
@@ -38,7 +40,6 @@ import org.apache.commons.logging.LogFactory;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
-import com.google.common.io.Files;
 import com.google.refine.importing.ImportingJob;
 import com.google.refine.model.Cell;
 import com.google.refine.model.Column;
@@ -188,6 +189,12 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
     }
     
     
+    /**
+     * Creates a lazily iterated {@link SimpleFeatureCollection} of the rows of the
+     * current {@link #typedContent()}. Rows are converted into features while
+     * iterating, so no copy of the content is held on the heap and the features can
+     * be streamed into the target store.
+     */
     private SimpleFeatureCollection createFeatures() {
         TypedContent content = typedContent();
         
@@ -203,61 +210,82 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
             latitudeColumnIndex = -1;
             longitudeColumnIndex = -1;
         }
-        boolean containsGeom = latitudeColumnIndex != -1 && longitudeColumnIndex != -1;
+        final int latIndex = latitudeColumnIndex;
+        final int lonIndex = longitudeColumnIndex;
+        final boolean containsGeom = latitudeColumnIndex != -1 && longitudeColumnIndex != -1;
         
         final SimpleFeatureType TYPE = buildFeatureType( containsGeom, content.columns() );
-        final SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder( TYPE );
-        ListFeatureCollection currentFeatures = new ListFeatureCollection( TYPE );
         // TODO FeatureTable shows always latest created on top, therefore reverse
-        // the order
-        List<RefineRow> rows = content.rows();
-        Collections.reverse( rows );
-
-        int count = 0;
-        for (RefineRow row : rows) {
-            if (containsGeom) {
-                // construct the coordinate
-                try {
-                    Number latitude = null;
-                    try {
-                        latitude = (Number)row.cells().get( latitudeColumnIndex ).guessedValue();
-                    }
-                    catch (IndexOutOfBoundsException ioobe) {
-                        // ignore, seems to be an emtpy line
-                    }
-                    Number longitude = null;
-                    try {
-                        longitude = (Number)row.cells().get( longitudeColumnIndex ).guessedValue();
+        // the order; Lists.reverse() is just a view, nothing is copied
+        final List<RefineRow> rows = Lists.reverse( content.rows() );
+
+        return new AbstractFeatureCollection( TYPE ) {
+            @Override
+            protected Iterator<SimpleFeature> openIterator() {
+                final SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder( TYPE );
+                final Iterator<RefineRow> it = rows.iterator();
+                return new Iterator<SimpleFeature>() {
+                    private int     count;
+                    
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
                     }
-                    catch (IndexOutOfBoundsException ioobe) {
-                        // ignore, seems to be an emtpy line
+                    @Override
+                    public SimpleFeature next() {
+                        if (++count % 10000 == 0) {
+                            log.info( "created " + count );
+                        }
+                        return buildFeature( it.next(), featureBuilder, containsGeom, latIndex, lonIndex );
                     }
-                    Point point = (latitude != null && longitude != null) ? GEOMETRYFACTORY
-                            .createPoint( new Coordinate( longitude.doubleValue(), latitude.doubleValue() ) ) : null;
-                    featureBuilder.add( point );
+                };
+            }
+            @Override
+            public int size() {
+                return rows.size();
+            }
+            @Override
+            public ReferencedEnvelope getBounds() {
+                return DataUtilities.bounds( this );
+            }
+        };
+    }
+
+
+    private SimpleFeature buildFeature( RefineRow row, SimpleFeatureBuilder featureBuilder, boolean containsGeom,
+            int latitudeColumnIndex, int longitudeColumnIndex ) {
+        if (containsGeom) {
+            // construct the coordinate
+            try {
+                Number latitude = null;
+                try {
+                    latitude = (Number)row.cells().get( latitudeColumnIndex ).guessedValue();
                 }
-                catch (Exception e) {
-                    log.error( String.format( "exception in creating point for imported file" ), e );
-                    featureBuilder.add( null );
+                catch (IndexOutOfBoundsException ioobe) {
+                    // ignore, seems to be an emtpy line
                 }
+                Number longitude = null;
+                try {
+                    longitude = (Number)row.cells().get( longitudeColumnIndex ).guessedValue();
+                }
+                catch (IndexOutOfBoundsException ioobe) {
+                    // ignore, seems to be an emtpy line
+                }
+                Point point = (latitude != null && longitude != null) ? GEOMETRYFACTORY
+                        .createPoint( new Coordinate( longitude.doubleValue(), latitude.doubleValue() ) ) : null;
+                featureBuilder.add( point );
             }
-//            else {
-//                featureBuilder.add( null );
-//            }
-            for (RefineCell cell : row.cells()) {
-                // log.info( "cell with type " + (cell != null && cell.value !=
-                // null ? cell.value.getClass() : "null"));
-                featureBuilder.add( cell == null ? null : cell.guessedValue() );
-            }
-            // features are build with a default id, thats wrong here
-            SimpleFeature simpleFeature = featureBuilder.buildFeature( null );
-            currentFeatures.add( new SimpleFeatureImpl( simpleFeature.getAttributes(), TYPE, null ) );
-            if (count % 10000 == 0) {
-                log.info( "created " + count );
+            catch (Exception e) {
+                log.error( String.format( "exception in creating point for imported file" ), e );
+                featureBuilder.add( null );
             }
-            count++;
         }
-        return currentFeatures;
+        for (RefineCell cell : row.cells()) {
+            featureBuilder.add( cell == null ? null : cell.guessedValue() );
+        }
+        // features are build with a default id, thats wrong here
+        SimpleFeature simpleFeature = featureBuilder.buildFeature( null );
+        return new SimpleFeatureImpl( simpleFeature.getAttributes(), featureBuilder.getFeatureType(), null );
     }
 
 
@@ -284,11 +312,10 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
 
 
     protected void prepare( IProgressMonitor monitor ) throws Exception {
-        // ImportService removes the original file, so create a copy here
-        File copyOfOriginalFile = new File( Files.createTempDir(), FilenameUtils.getName( file.getName() ) );
-        Files.copy( file, copyOfOriginalFile );
+        // ImportService removes the original file, so stage a link/copy here
+        File stagedFile = site.context().stage( file );
 
-        ImportResponse<T> response = service.importFile( copyOfOriginalFile, defaultOptions(), monitor );
+        ImportResponse<T> response = service.importFile( stagedFile, defaultOptions(), monitor );
         importJob = response.job();
         formatAndOptions = response.options();
     }
@@ -335,21 +362,21 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
 
     protected synchronized TypedContent typedContent() {
         if (typedContent == null) {
-            typedContent = new TypedContent( columnsWithTypes(), rows() );
+            List<TypedColumn> columns = columnsWithTypes();
+            typedContent = new TypedContent( columns, Lists.transform( originalRows(), row -> typedRow( row, columns ) ) );
         }
         return typedContent;
     }
 
 
-    private List<RefineRow> rows() {
-        List<RefineRow> result = Lists.newArrayList();
-        List<Row> rows = originalRows();
-        for (Row row : rows) {
-            RefineRow resultRow = new RefineRow();
-            result.add( resultRow );
-            for (Cell cell : row.cells) {
-                resultRow.add( new RefineCell( cell ) );
-            }
+    /**
+     * Converts the given original row into a {@link RefineRow}. This is called
+     * lazily for every row while features are created, the result is not cached.
+     */
+    protected RefineRow typedRow( Row row, List<TypedColumn> columns ) {
+        RefineRow result = new RefineRow();
+        for (Cell cell : row.cells) {
+            result.add( new RefineCell( cell ) );
         }
         return result;
     }
@@ -363,45 +390,42 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
     }
 
 
+    /**
+     * Profiles all columns in one pass over the original rows, without creating
+     * any intermediate rows.
+     */
     private List<TypedColumn> columnsWithTypes() {
-        List<TypedColumn> columnsWithType = Lists.newArrayList();
+        List<ColumnProfile> profiles = Lists.newArrayList();
         for (Column column : originalColumns()) {
-            columnsWithType.add( new TypedColumn( column.getName() ) );
+            profiles.add( new ColumnProfile( column.getName() ) );
         }
-        // check all cells for its type and set the column type
-        // String is the default in all cases
-        for (RefineRow row : rows()) {
+        for (Row row : originalRows()) {
             int i = 0;
-            for (RefineCell cell : row.cells()) {
-                if (cell != null && cell.guessedValue() != null) {
-                    TypedColumn column = columnsWithType.get( i );
-                    Class currentType = cell.guessedValue().getClass();
-                    // if null, set it
-                    // if string dont change it
-                    // if current type = string, set it
-                    // if current double and assigned long, set it
-                    if (column.type() == null) {
-                        column.setType( currentType );
-                    }
-                    else {
-                        // if it was string before, it never gets overridden
-                        if (!(String.class.isAssignableFrom( column.type() ))) {
-                            if (Long.class.isAssignableFrom( currentType )
-                                    && !(Double.class.isAssignableFrom( column.type() ))) {
-                                // dont override double with long
-                                column.setType( currentType );
-                            }
-                            else {
-                                column.setType( currentType );
-                            }
-                        }
-                    }
-                }
-                i++;
+            for (Cell cell : row.cells) {
+                ColumnProfile profile = profiles.get( i++ );
+                profile.accept( profileValue( profile, cell ) );
             }
         }
-        columnsWithType.stream().filter( c -> c.type() == null ).forEach( c -> c.setType( String.class ) );
-        return columnsWithType;
+        List<TypedColumn> result = Lists.newArrayList();
+        for (ColumnProfile profile : profiles) {
+            log.debug( profile );
+            result.add( new TypedColumn( profile ) );
+        }
+        return result;
+    }
+
+
+    /**
+     * The value of the given cell to be added to the {@link ColumnProfile} of its
+     * column. The default implementation returns the value of the cell as is.
+     */
+    protected Object profileValue( ColumnProfile profile, Cell cell ) {
+        return cell != null ? cell.value : null;
+    }
+
+
+    protected synchronized void resetTypedContent() {
+        typedContent = null;
     }
 
 
@@ -524,16 +548,32 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
     protected String longitudeColumn() {
         if (longitudeColumn == null) {
             // try to find one
-            for (TypedColumn column : typedContent().columns()) {
-                String name = column.name();
-                Class type = column.type();
-                if (Number.class.isAssignableFrom( type ) && LONGITUDES.contains( name.toLowerCase() )) {
-                    longitudeColumn = name;
-                    break;
+            longitudeColumn = coordinateColumn( LONGITUDES, true );
+        }
+        return longitudeColumn;
+    }
+
+
+    /**
+     * Finds a number column with a name out of the given synonyms. Columns with
+     * values that are plausible WGS84 ordinates are preferred.
+     */
+    private String coordinateColumn( Set<String> synonyms, boolean longitude ) {
+        String result = null;
+        for (TypedColumn column : typedContent().columns()) {
+            String name = column.name();
+            if (Number.class.isAssignableFrom( column.type() ) && synonyms.contains( name.toLowerCase() )) {
+                ColumnProfile profile = column.profile();
+                if (profile == null
+                        || (longitude ? profile.isLongitudePlausible() : profile.isLatitudePlausible())) {
+                    return name;
+                }
+                else if (result == null) {
+                    result = name;
                 }
             }
         }
-        return longitudeColumn;
+        return result;
     }
 
 
@@ -548,14 +588,7 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
 
     protected String latitudeColumn() {
         if (latitudeColumn == null) {
-            for (TypedColumn column : typedContent().columns()) {
-                String name = column.name();
-                Class type = column.type();
-                if (Number.class.isAssignableFrom( type ) && LATITUDES.contains( name.toLowerCase() )) {
-                    latitudeColumn = name;
-                    break;
-                }
-            }
+            latitudeColumn = coordinateColumn( LATITUDES, false );
         }
         return latitudeColumn;
     }
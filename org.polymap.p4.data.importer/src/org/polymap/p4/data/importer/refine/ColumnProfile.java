@@ -0,0 +1,264 @@
+/*
+ * polymap.org Copyright (C) @year@ individual contributors as indicated by
+ * the @authors tag. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ */
+package org.polymap.p4.data.importer.refine;
+
+import java.util.Locale;
+
+/**
+ * Statistics of one column of a refine project, collected in one pass over all
+ * values via {@link #accept(Object)}.
+ * <p/>
+ * All accumulators are primitives: the inferred type is derived from flags, the
+ * number of distinct values is estimated by a small HyperLogLog sketch. The
+ * values itself are not kept.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class ColumnProfile {
+
+    /** Number of bits of the hash used to select the HyperLogLog register. */
+    private static final int    REGISTER_BITS = 8;
+
+    private static final int    REGISTERS = 1 << REGISTER_BITS;
+
+    private final String        name;
+
+    private long                count;
+
+    private long                nullCount;
+
+    private long                longCount;
+
+    private long                doubleCount;
+
+    private long                stringCount;
+
+    /** The type of values that are neither String nor Number, or null. */
+    private Class<?>            otherType;
+
+    private boolean             mixedOtherTypes;
+
+    private double              min = Double.POSITIVE_INFINITY;
+
+    private double              max = Double.NEGATIVE_INFINITY;
+
+    /** The locale all numbers were parsed with, or null if unknown or mixed. */
+    private Locale              locale;
+
+    private boolean             mixedLocales;
+
+    private final byte[]        registers = new byte[REGISTERS];
+
+
+    public ColumnProfile( String name ) {
+        this.name = name;
+    }
+
+
+    public String name() {
+        return name;
+    }
+
+
+    /**
+     * Adds the given value to the statistics.
+     *
+     * @param value The (parsed) value of a cell, or null for an empty cell.
+     */
+    public void accept( Object value ) {
+        count ++;
+        if (value == null) {
+            nullCount ++;
+            return;
+        }
+        if (value instanceof Long || value instanceof Integer) {
+            longCount ++;
+            minMax( ((Number)value).doubleValue() );
+        }
+        else if (value instanceof Number) {
+            doubleCount ++;
+            minMax( ((Number)value).doubleValue() );
+        }
+        else if (value instanceof String) {
+            stringCount ++;
+        }
+        else if (otherType == null) {
+            otherType = value.getClass();
+        }
+        else if (!otherType.equals( value.getClass() )) {
+            mixedOtherTypes = true;
+        }
+        hash( value.hashCode() );
+    }
+
+
+    /**
+     * Records the locale a number of this column was parsed with.
+     *
+     * @param numberLocale The locale, or null if the number is locale independent.
+     */
+    public void acceptLocale( Locale numberLocale ) {
+        if (numberLocale != null && !mixedLocales) {
+            if (locale == null) {
+                locale = numberLocale;
+            }
+            else if (!locale.equals( numberLocale )) {
+                locale = null;
+                mixedLocales = true;
+            }
+        }
+    }
+
+
+    protected void minMax( double value ) {
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+
+    protected void hash( int hashCode ) {
+        // murmur3 finalizer, spreads bad hashCode() implementations
+        int h = hashCode;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+
+        int index = h >>> (32 - REGISTER_BITS);
+        byte rank = (byte)(Integer.numberOfLeadingZeros( (h << REGISTER_BITS) | (1 << (REGISTER_BITS - 1)) ) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+
+    /**
+     * The type of the values of this column. Columns with just integral numbers are
+     * {@link Long}, with any decimal number {@link Double}; a String or mixed types
+     * result in {@link String}, which is also the default for empty columns.
+     */
+    public Class<?> type() {
+        boolean numbers = longCount + doubleCount > 0;
+        if (stringCount > 0 || mixedOtherTypes || (numbers && otherType != null)) {
+            return String.class;
+        }
+        else if (doubleCount > 0) {
+            return Double.class;
+        }
+        else if (longCount > 0) {
+            return Long.class;
+        }
+        else if (otherType != null) {
+            return otherType;
+        }
+        return String.class;
+    }
+
+
+    /** True if at least one String value was found. */
+    public boolean hasStrings() {
+        return stringCount > 0;
+    }
+
+
+    public boolean isNumber() {
+        return Number.class.isAssignableFrom( type() );
+    }
+
+
+    /**
+     * The locale all numbers of this column were parsed with, or null if numbers
+     * were parsed with different locales.
+     */
+    public Locale locale() {
+        return locale;
+    }
+
+
+    /** The number of all values, including nulls. */
+    public long count() {
+        return count;
+    }
+
+
+    public long nullCount() {
+        return nullCount;
+    }
+
+
+    /** The minimum of all numbers, or {@link Double#NaN} if no number was found. */
+    public double min() {
+        return longCount + doubleCount > 0 ? min : Double.NaN;
+    }
+
+
+    /** The maximum of all numbers, or {@link Double#NaN} if no number was found. */
+    public double max() {
+        return longCount + doubleCount > 0 ? max : Double.NaN;
+    }
+
+
+    /**
+     * Estimated number of distinct non-null values. The standard error is about
+     * 6.5%, small cardinalities are counted almost exact.
+     */
+    public long distinctEstimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1d / (1L << register);
+            if (register == 0) {
+                zeros ++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+        double estimate = alpha * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // linear counting for small cardinalities
+            estimate = REGISTERS * Math.log( (double)REGISTERS / zeros );
+        }
+        return Math.min( Math.round( estimate ), count - nullCount );
+    }
+
+
+    /**
+     * True if this is a number column and all values are in the range of a WGS84
+     * latitude.
+     */
+    public boolean isLatitudePlausible() {
+        return isNumber() && min() >= -90 && max() <= 90;
+    }
+
+
+    /**
+     * True if this is a number column and all values are in the range of a WGS84
+     * longitude.
+     */
+    public boolean isLongitudePlausible() {
+        return isNumber() && min() >= -180 && max() <= 180;
+    }
+
+
+    @Override
+    public String toString() {
+        return name + ": " + type().getSimpleName() + " (count=" + count + ", nulls=" + nullCount
+                + ", distinct~" + distinctEstimate() + ", min=" + min() + ", max=" + max() + ")";
+    }
+
+}
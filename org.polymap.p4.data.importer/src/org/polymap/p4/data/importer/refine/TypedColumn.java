@@ -8,12 +8,24 @@ public class TypedColumn {
 
     private Class  type;
 
+    private Locale locale;
+
+    private ColumnProfile profile;
+
 
     public TypedColumn( String name ) {
         this.name = name;
     }
 
 
+    public TypedColumn( ColumnProfile profile ) {
+        this.name = profile.name();
+        this.type = profile.type();
+        this.locale = profile.locale();
+        this.profile = profile;
+    }
+
+
     public String name() {
         return name;
     }
@@ -30,8 +42,23 @@ public class TypedColumn {
 
 
     public void addLocale( Locale guessedLocale ) {
-        // TODO Auto-generated method stub
-        
+        this.locale = guessedLocale;
+    }
+
+
+    /**
+     * The locale all numbers of this column can be parsed with, or null if unknown.
+     */
+    public Locale locale() {
+        return locale;
+    }
+
+
+    /**
+     * The statistics this column was created from, or null.
+     */
+    public ColumnProfile profile() {
+        return profile;
     }
 
     @Override
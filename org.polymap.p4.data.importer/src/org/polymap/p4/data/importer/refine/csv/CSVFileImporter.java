@@ -16,6 +16,7 @@ package org.polymap.p4.data.importer.refine.csv;
 import static org.polymap.rhei.batik.app.SvgImageRegistryHelper.NORMAL24;
 
 import java.util.List;
+import java.util.Locale;
 import java.util.regex.Pattern;
 
 import java.nio.charset.Charset;
@@ -29,7 +30,6 @@ import org.apache.commons.logging.LogFactory;
 
 import com.google.common.collect.Lists;
 import com.google.refine.model.Cell;
-import com.google.refine.model.Column;
 import com.google.refine.model.Row;
 
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -47,6 +47,7 @@ import org.polymap.p4.data.importer.prompts.CrsPrompt;
 import org.polymap.p4.data.importer.prompts.NumberfieldBasedPromptUiBuilder;
 import org.polymap.p4.data.importer.prompts.SchemaNamePrompt;
 import org.polymap.p4.data.importer.refine.AbstractRefineFileImporter;
+import org.polymap.p4.data.importer.refine.ColumnProfile;
 import org.polymap.p4.data.importer.refine.RefineCell;
 import org.polymap.p4.data.importer.refine.RefineRow;
 import org.polymap.p4.data.importer.refine.TypedColumn;
@@ -62,7 +63,7 @@ public class CSVFileImporter
 
     private static final Pattern   ASCIIONLY                 = Pattern.compile( "\\p{ASCII}*" );
 
-    private TypedContent           csvTypedContent;
+    private Locale                 defaultLocale;
 
     private List<String>           potentialEncodingProblems = null;
 
@@ -225,23 +226,15 @@ public class CSVFileImporter
     }
 
 
-    @Override
-    public void execute( IProgressMonitor monitor ) throws Exception {
-        csvTypedContent = null;
-        super.execute( monitor );
-    }
-
-
     @Override
     public void verify( IProgressMonitor monitor ) {
-        csvTypedContent = null;
+        resetTypedContent();
         super.verify( monitor );
     }
 
 
     @Override
     protected void updateOptions( IProgressMonitor monitor ) {
-        csvTypedContent = null;
         potentialEncodingProblems = null;
 
         super.updateOptions( monitor );
@@ -250,66 +243,69 @@ public class CSVFileImporter
 
     @Override
     protected synchronized TypedContent typedContent() {
-        if (csvTypedContent == null) {
-            List<TypedColumn> columnsWithType = Lists.newArrayList();
-            for (Column column : originalColumns()) {
-                columnsWithType.add( new TypedColumn( column.getName() ) );
+        // rows are converted later, maybe outside the session
+        if (defaultLocale == null) {
+            defaultLocale = Polymap.getSessionLocale();
+        }
+        return super.typedContent();
+    }
+
+
+    /**
+     * In CSV all cells are strings only, so type guess its value. String is the
+     * default in all cases.
+     */
+    @Override
+    protected Object profileValue( ColumnProfile profile, Cell cell ) {
+        if (cell == null || cell.value == null || cell.value.toString().trim().equals( "" )) {
+            return null;
+        }
+        else if (profile.hasStrings()) {
+            // a string was found in the same column earlier
+            return cell.value;
+        }
+        GuessedType guessedType = TypeGuesser.guess( cell.value.toString() );
+        if (guessedType.type().equals( Type.Decimal )) {
+            profile.acceptLocale( guessedType.locale() );
+            return parse( cell, guessedType.locale() );
+        }
+        else {
+            log.info( "Setting string in column " + profile.name() + " because of '" + cell.value + "'" );
+            return cell.value;
+        }
+    }
+
+
+    @Override
+    protected RefineRow typedRow( Row originalRow, List<TypedColumn> columns ) {
+        RefineRow row = new RefineRow();
+        int i = 0;
+        for (Cell cell : originalRow.cells) {
+            TypedColumn column = columns.get( i++ );
+            if (cell == null || cell.value == null || cell.value.toString().trim().equals( "" )
+                    || !Number.class.isAssignableFrom( column.type() )) {
+                row.add( new RefineCell( cell ) );
             }
-            // in CSV all cells are strings only, so type guess its value
-            // String is the default in all cases
-            List<RefineRow> rows = Lists.newArrayList();
-            for (Row originalRow : originalRows()) {
-                int i = 0;
-                RefineRow row = new RefineRow();
-                rows.add( row );
-                for (Cell cell : originalRow.cells) {
-                    TypedColumn column = columnsWithType.get( i );
-                    if (cell == null || cell.value == null || cell.value.toString().trim().equals( "" )
-                            || (column.type() != null && column.type().isAssignableFrom( String.class ))) {
-                        // seems to be empty or a string was found in the same column
-                        // earlier
-                        row.add( new RefineCell( cell ) );
-                    }
-                    else {
-                        // guess the type, fallback in any error case is String
-                        // log.info( "guessing " + cell.value.toString() );
-                        GuessedType guessedType = TypeGuesser.guess( cell.value.toString() );
-                        if (guessedType.type().equals( Type.Decimal )) {
-                            try {
-                                // convert to number
-                                NumberFormat formatter = DecimalFormat.getInstance(
-                                        guessedType.locale() != null ? guessedType.locale()
-                                                : Polymap.getSessionLocale() );
-                                Object guessedValue = formatter.parse( cell.value.toString().trim() );
-                                if (column.type() == null || !column.type().isAssignableFrom( Double.class )) {
-                                    // dont overwrite a double, with a long
-                                    column.setType( guessedValue.getClass() );
-                                }
-                                column.addLocale( guessedType.locale() );
-                                row.add( new RefineCell( cell, guessedValue ) );
-                            }
-                            catch (ParseException e) {
-                                // default to string
-                                column.setType( String.class );
-                                row.add( new RefineCell( cell ) );
-                                throw new RuntimeException( e );
-                            }
-                        }
-                        else {
-                            // defaults to string
-                            log.info( "Setting string in column " + column.name() + " because of '"
-                                    + cell.value.toString() + "'" );
-                            column.setType( String.class );
-                            row.add( new RefineCell( cell ) );
-                        }
-                    }
-                    i++;
-                }
+            else {
+                // all numbers of the column share one locale, no need to guess again
+                Locale locale = column.locale() != null 
+                        ? column.locale() : TypeGuesser.guess( cell.value.toString() ).locale();
+                row.add( new RefineCell( cell, parse( cell, locale ) ) );
             }
-            columnsWithType.stream().filter( c -> c.type() == null ).forEach( c -> c.setType( String.class ) );
-            csvTypedContent = new TypedContent( columnsWithType, rows );
         }
-        return csvTypedContent;
+        return row;
+    }
+
+
+    protected Object parse( Cell cell, Locale locale ) {
+        try {
+            // convert to number
+            NumberFormat formatter = DecimalFormat.getInstance( locale != null ? locale : defaultLocale );
+            return formatter.parse( cell.value.toString().trim() );
+        }
+        catch (ParseException e) {
+            throw new RuntimeException( e );
+        }
     }
 
 
@@ -325,6 +321,9 @@ public class CSVFileImporter
                         potentialEncodingProblems.add( cell.value.toString() );
                     }
                 }
+                if (potentialEncodingProblems.size() >= 20) {
+                    break;
+                }
             }
         }
         return potentialEncodingProblems;
@@ -355,6 +354,9 @@ public class CSVFileImporter
                         }
                     }
                 }
+                if (i >= maxChecks) {
+                    break;
+                }
             }
         }
         return guessedQuoteCharacter;
@@ -20,6 +20,7 @@ import static org.apache.commons.io.FilenameUtils.getExtension;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 import java.io.File;
 import java.io.IOException;
@@ -29,12 +30,10 @@ import java.nio.charset.Charset;
 import org.geotools.data.Query;
 import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.data.shapefile.ShapefileDataStoreFactory;
-import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.store.ContentFeatureCollection;
 import org.geotools.data.store.ContentFeatureSource;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.referencing.ReferencingFactoryFinder;
-import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CRSFactory;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -49,7 +48,6 @@ import org.eclipse.core.runtime.IProgressMonitor;
 
 import org.polymap.core.runtime.Streams;
 import org.polymap.core.runtime.Streams.ExceptionCollector;
-import org.polymap.core.runtime.SubMonitor;
 import org.polymap.core.runtime.i18n.IMessages;
 
 import org.polymap.rhei.batik.app.SvgImageRegistryHelper;
@@ -105,6 +103,14 @@ public class ShpImporter
 
     private SchemaNamePrompt                       schemaNamePrompt;
 
+    private ShpVerifier                            verifier;
+
+    /** The charset of the last successful {@link ShpVerifier#scanRecords(Charset)}. */
+    private Charset                                verifiedCharset;
+
+    /** The CRS {@link #ds} was created with. */
+    private CoordinateReferenceSystem              dsCrs;
+
 
     @Override
     public ImporterSite site() {
@@ -163,45 +169,57 @@ public class ShpImporter
     }
 
     
+    /**
+     * Verifies the shapefile via {@link ShpVerifier} without building features. The
+     * geometries are checked just once, the DBF rows are checked again only if the
+     * charset has changed. The data store is re-created only if the CRS has
+     * changed.
+     */
     @Override
     public void verify( IProgressMonitor monitor ) {
         try {
-            if (ds != null) {
-                ds.dispose();
-            }
-            monitor.beginTask( "Verifying Shapefile", 2 );
-            monitor.subTask( "open data store" );
-            Map<String,Serializable> params = new HashMap<String,Serializable>();
-            params.put( ShapefileDataStoreFactory.URLP.key, shp.toURI().toURL() );
-            params.put( ShapefileDataStoreFactory.CREATE_SPATIAL_INDEX.key, Boolean.TRUE );
-
-            ds = (ShapefileDataStore)dsFactory.createNewDataStore( params );
-            ds.setCharset( charsetPrompt.selection() );
-            ds.forceSchemaCRS( crsPrompt.selection() );
+            monitor.beginTask( "Verifying Shapefile", 3 );
             
-            fs = ds.getFeatureSource();
+            // geometries do not depend on any prompt
+            if (verifier == null) {
+                monitor.subTask( "checking geometries" );
+                verifier = new ShpVerifier( shp, files );
+                verifier.scanGeometries();
+            }
+            if (verifier.nullShapes() > 0) {
+                throw new RuntimeException( "Feature has no geometry: record " + verifier.firstNullShape() 
+                        + " (" + verifier.nullShapes() + " of " + verifier.records() + ")" );
+            }
             monitor.worked( 1 );
-            
-            // sanity check all features
-            ContentFeatureCollection results = fs.getFeatures();
-            SubMonitor submon = new SubMonitor( monitor, 1 );
-            submon.beginTask( "checking all features", results.size() );
-            try (
-                SimpleFeatureIterator it = results.features();
-            ){
-                SimpleFeatureType schema = fs.getSchema();
-                while (it.hasNext()) {
-                    SimpleFeature feature = it.next();
-                    // geometry
-                    if (schema.getGeometryDescriptor() != null
-                            && feature.getDefaultGeometry() == null) {
-                        throw new RuntimeException( "Feature has no geometry: " + feature.getIdentifier().getID() );
-                    }
-                    // other checks...?
-                    submon.worked( 1 );
+
+            // DBF rows depend on the charset
+            Charset charset = charsetPrompt.selection();
+            if (!charset.equals( verifiedCharset )) {
+                monitor.subTask( "checking records" );
+                verifiedCharset = null;
+                verifier.scanRecords( charset );
+                verifiedCharset = charset;
+            }
+            monitor.worked( 1 );
+
+            // the data store depends on the CRS; the charset is used for every new reader
+            CoordinateReferenceSystem crs = crsPrompt.selection();
+            if (ds == null || !Objects.equals( crs, dsCrs )) {
+                monitor.subTask( "open data store" );
+                if (ds != null) {
+                    ds.dispose();
                 }
+                Map<String,Serializable> params = new HashMap<String,Serializable>();
+                params.put( ShapefileDataStoreFactory.URLP.key, shp.toURI().toURL() );
+                params.put( ShapefileDataStoreFactory.CREATE_SPATIAL_INDEX.key, Boolean.FALSE );
+
+                ds = (ShapefileDataStore)dsFactory.createNewDataStore( params );
+                ds.forceSchemaCRS( crs );
+                dsCrs = crs;
+                fs = ds.getFeatureSource();
             }
-            submon.done();
+            ds.setCharset( charset );
+            monitor.done();
 
             site.ok.set( true );
             exception = null;
@@ -0,0 +1,302 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 3.0 of the License, or (at your option) any later
+ * version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ */
+package org.polymap.p4.data.importer.shapefile;
+
+import static org.apache.commons.io.FilenameUtils.getBaseName;
+import static org.apache.commons.io.FilenameUtils.getExtension;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.core.runtime.Timer;
+
+/**
+ * Verifies the files of a shapefile without building features. The record headers
+ * of the *.shp/*.shx files and the rows of the *.dbf file are read directly from
+ * memory mapped buffers, in parallel chunks of {@link #CHUNK_SIZE} records.
+ * <p/>
+ * {@link #scanGeometries()} does not depend on the charset and has to be done
+ * just once; {@link #scanRecords(Charset)} has to be repeated if the charset
+ * changes.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class ShpVerifier {
+
+    private static final Log log = LogFactory.getLog( ShpVerifier.class );
+
+    /** The number of records checked by one task. */
+    public static final int     CHUNK_SIZE = 50000;
+
+    private static final int    SHP_HEADER = 100;
+
+    private static final int    NULL_SHAPE = 0;
+
+    private File                shp;
+
+    private File                shx;
+
+    private File                dbf;
+
+    private int                 records = -1;
+
+    private int                 nullShapes;
+
+    private int                 firstNullShape = -1;
+
+    private int                 dbfRecords = -1;
+
+    private int                 undecodable;
+
+
+    /**
+     *
+     * @param shp The *.shp file.
+     * @param files All files, including the *.shx and *.dbf files of the given shapefile.
+     */
+    public ShpVerifier( File shp, List<File> files ) {
+        this.shp = shp;
+        this.shx = sibling( files, "shx" );
+        this.dbf = sibling( files, "dbf" );
+    }
+
+
+    protected File sibling( List<File> files, String ext ) {
+        return files.stream()
+                .filter( f -> getBaseName( f.getName() ).equals( getBaseName( shp.getName() ) ) )
+                .filter( f -> ext.equalsIgnoreCase( getExtension( f.getName() ) ) )
+                .findAny().orElse( null );
+    }
+
+
+    /** The number of records of the *.shp file. */
+    public int records() {
+        return records;
+    }
+
+
+    /** The number of records with a null shape. */
+    public int nullShapes() {
+        return nullShapes;
+    }
+
+
+    /** The number (0-based) of the first record with a null shape, or -1. */
+    public int firstNullShape() {
+        return firstNullShape;
+    }
+
+
+    /** The number of rows of the *.dbf file, or -1 if there is no *.dbf file. */
+    public int dbfRecords() {
+        return dbfRecords;
+    }
+
+
+    /** The number of rows that cannot be decoded with the charset of the last {@link #scanRecords(Charset)}. */
+    public int undecodable() {
+        return undecodable;
+    }
+
+
+    /**
+     * Counts the records of the *.shp file and finds null shapes. Uses the *.shx
+     * index file, if present, to check the records in parallel.
+     */
+    public void scanGeometries() throws IOException {
+        Timer timer = new Timer();
+        nullShapes = 0;
+        firstNullShape = -1;
+        ByteBuffer shpBuf = map( shp );
+        if (shx != null) {
+            ByteBuffer shxBuf = map( shx );
+            records = (shxBuf.limit() - SHP_HEADER) / 8;
+            List<int[]> results = chunks( records ).parallel()
+                    .mapToObj( chunk -> scanIndexChunk( shxBuf, shpBuf, chunk ) )
+                    .collect( ArrayList::new, ArrayList::add, ArrayList::addAll );
+            for (int[] result : results) {
+                nullShapes += result[0];
+                if (firstNullShape == -1 && result[1] != -1) {
+                    firstNullShape = result[1];
+                }
+            }
+        }
+        else {
+            scanShp( shpBuf );
+        }
+        log.info( "Geometries: " + records + " records, " + nullShapes + " null shapes (" + timer.elapsedTime() + "ms)" );
+    }
+
+
+    /**
+     * @return int[] {nullShapes, firstNullShape}
+     */
+    protected int[] scanIndexChunk( ByteBuffer shxBuf, ByteBuffer shpBuf, int chunk ) {
+        ByteBuffer index = shxBuf.duplicate().order( ByteOrder.BIG_ENDIAN );
+        ByteBuffer data = shpBuf.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+        int[] result = {0, -1};
+        int end = Math.min( records, (chunk + 1) * CHUNK_SIZE );
+        for (int i = chunk * CHUNK_SIZE; i < end; i++) {
+            long offset = index.getInt( SHP_HEADER + i * 8 ) * 2L;
+            int contentLength = index.getInt( SHP_HEADER + i * 8 + 4 ) * 2;
+            if (contentLength < 4 || offset + 12 > data.limit()
+                    || data.getInt( (int)offset + 8 ) == NULL_SHAPE) {
+                result[0] ++;
+                result[1] = result[1] == -1 ? i : result[1];
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Sequentially walks the records of the *.shp file, if there is no index file.
+     */
+    protected void scanShp( ByteBuffer shpBuf ) {
+        ByteBuffer data = shpBuf.duplicate();
+        records = 0;
+        long pos = SHP_HEADER;
+        while (pos + 8 <= data.limit()) {
+            int contentLength = data.order( ByteOrder.BIG_ENDIAN ).getInt( (int)pos + 4 ) * 2;
+            if (contentLength < 4 || pos + 12 > data.limit()
+                    || data.order( ByteOrder.LITTLE_ENDIAN ).getInt( (int)pos + 8 ) == NULL_SHAPE) {
+                nullShapes ++;
+                firstNullShape = firstNullShape == -1 ? records : firstNullShape;
+            }
+            records ++;
+            pos += 8 + Math.max( 0, contentLength );
+        }
+    }
+
+
+    /**
+     * Checks the structure of the *.dbf file and decodes all character fields with
+     * the given charset, in parallel.
+     *
+     * @throws IOException If the file is truncated or a row is corrupt.
+     */
+    public void scanRecords( Charset charset ) throws IOException {
+        if (dbf == null) {
+            dbfRecords = -1;
+            return;
+        }
+        Timer timer = new Timer();
+        ByteBuffer buf = map( dbf ).order( ByteOrder.LITTLE_ENDIAN );
+        dbfRecords = buf.getInt( 4 );
+        int headerLength = buf.getShort( 8 ) & 0xffff;
+        int recordLength = buf.getShort( 10 ) & 0xffff;
+        if (headerLength + (long)dbfRecords * recordLength > buf.limit()) {
+            throw new IOException( "DBF file is truncated: " + dbf.getName() );
+        }
+
+        // character fields: {offset in record, length}
+        List<int[]> fields = new ArrayList();
+        int fieldOffset = 1;
+        for (int pos = 32; pos + 32 <= headerLength && buf.get( pos ) != 0x0d; pos += 32) {
+            int length = buf.get( pos + 16 ) & 0xff;
+            if (buf.get( pos + 11 ) == 'C') {
+                fields.add( new int[] {fieldOffset, length} );
+            }
+            fieldOffset += length;
+        }
+
+        List<int[]> results = chunks( dbfRecords ).parallel()
+                .mapToObj( chunk -> scanRecordsChunk( buf, chunk, headerLength, recordLength, fields, charset ) )
+                .collect( ArrayList::new, ArrayList::add, ArrayList::addAll );
+        undecodable = 0;
+        for (int[] result : results) {
+            if (result[1] != -1) {
+                throw new IOException( "DBF record " + result[1] + " is corrupt: " + dbf.getName() );
+            }
+            undecodable += result[0];
+        }
+        if (records >= 0 && records != dbfRecords) {
+            log.warn( "Records: shp=" + records + ", dbf=" + dbfRecords );
+        }
+        if (undecodable > 0) {
+            log.warn( undecodable + " records cannot be decoded with charset " + charset );
+        }
+        log.info( "Records: " + dbfRecords + " (" + timer.elapsedTime() + "ms)" );
+    }
+
+
+    /**
+     * @return int[] {undecodable, firstCorrupt}
+     */
+    protected int[] scanRecordsChunk( ByteBuffer buf, int chunk, int headerLength, int recordLength,
+            List<int[]> fields, Charset charset ) {
+        ByteBuffer data = buf.duplicate();
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput( CodingErrorAction.REPORT )
+                .onUnmappableCharacter( CodingErrorAction.REPORT );
+        int[] result = {0, -1};
+        int end = Math.min( dbfRecords, (chunk + 1) * CHUNK_SIZE );
+        for (int i = chunk * CHUNK_SIZE; i < end; i++) {
+            int offset = headerLength + i * recordLength;
+            byte flag = data.get( offset );
+            if (flag != ' ' && flag != '*') {
+                result[1] = i;
+                break;
+            }
+            try {
+                for (int[] field : fields) {
+                    data.limit( offset + field[0] + field[1] ).position( offset + field[0] );
+                    decoder.reset().decode( data );
+                }
+            }
+            catch (CharacterCodingException e) {
+                result[0] ++;
+            }
+            finally {
+                data.clear();
+            }
+        }
+        return result;
+    }
+
+
+    protected IntStream chunks( int count ) {
+        return IntStream.range( 0, (count + CHUNK_SIZE - 1) / CHUNK_SIZE );
+    }
+
+
+    protected MappedByteBuffer map( File f ) throws IOException {
+        try (
+            FileChannel channel = FileChannel.open( f.toPath(), StandardOpenOption.READ );
+        ){
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException( "File exceeds 2GB: " + f.getName() );
+            }
+            return channel.map( MapMode.READ_ONLY, 0, channel.size() );
+        }
+    }
+
+}
@@ -0,0 +1,487 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 3.0 of the License, or (at your option) any later
+ * version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ */
+package org.polymap.p4.data.importer.wfs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.FeatureStore;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.factory.Hints;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.identity.FeatureId;
+import org.opengis.filter.sort.SortBy;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.config.Config2;
+import org.polymap.core.runtime.config.Configurable;
+import org.polymap.core.runtime.config.DefaultInt;
+import org.polymap.core.runtime.config.Mandatory;
+
+/**
+ * Copies all features of a (remote WFS) feature source into a local
+ * {@link FeatureStore}.
+ * <p/>
+ * The features are requested in pages of {@link #pageSize} features via
+ * startIndex/count in natural order, or, if the source does not support paging
+ * or does not know its size, in {@link #tiles} x {@link #tiles} bbox tiles of its
+ * bounds. Pages are fetched by {@link #connections} threads concurrently, and are
+ * written and committed one by one as soon as they are complete. Completed pages
+ * are recorded in the {@link #checkpoint} file, so that an interrupted harvest
+ * resumes with the missing pages. The checkpoint records the target type; a
+ * harvest that does not resume clears the target only if the checkpoint records
+ * it as the target of a previous harvest. Otherwise the target is expected to be
+ * a new, empty type created for this harvest, see {@link #target(File)}.
+ * <p/>
+ * The features keep the ids of the source. A page is marked in the checkpoint
+ * before its commit and again after, so that a page whose commit state is unknown
+ * after a crash replaces its features by id when it is written again.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class WfsHarvester
+        extends Configurable {
+
+    private static final Log log = LogFactory.getLog( WfsHarvester.class );
+
+    private static final FilterFactory2     ff = CommonFactoryFinder.getFilterFactory2();
+
+    private static final AtomicInteger      threadCount = new AtomicInteger();
+
+    /** The number of features requested by one page. */
+    @Mandatory
+    @DefaultInt( 1000 )
+    public Config2<WfsHarvester,Integer>    pageSize;
+
+    /** The max number of concurrent requests. */
+    @Mandatory
+    @DefaultInt( 4 )
+    public Config2<WfsHarvester,Integer>    connections;
+
+    /** The number of tiles per axis if paging is not supported. */
+    @Mandatory
+    @DefaultInt( 8 )
+    public Config2<WfsHarvester,Integer>    tiles;
+
+    /** The number of retries of a failed request. */
+    @Mandatory
+    @DefaultInt( 2 )
+    public Config2<WfsHarvester,Integer>    retries;
+
+    /** Request pages via startIndex/count. Defaults to the query capabilities of the source. */
+    public Config2<WfsHarvester,Boolean>    paging;
+
+    /** The file that records completed pages. No resume if not set. */
+    public Config2<WfsHarvester,File>       checkpoint;
+
+    private SimpleFeatureSource             source;
+
+    private FeatureStore                    target;
+
+    private int                             count;
+
+    private boolean                         usePaging;
+
+
+    public WfsHarvester( SimpleFeatureSource source, FeatureStore target ) {
+        this.source = source;
+        this.target = target;
+    }
+
+
+    /**
+     * The number of features written by the last {@link #harvest(IProgressMonitor)}.
+     */
+    public int count() {
+        return count;
+    }
+
+
+    /**
+     * A page of the source: a paged or a tiled query.
+     */
+    protected static class Page {
+
+        public int                  index;
+
+        public Query                query;
+
+        /** The tile of a tiled query, or null. */
+        public ReferencedEnvelope   tile;
+
+        /** The tile is the last one in x or y direction, so it includes its max edge. */
+        public boolean              lastX, lastY;
+
+        public List<SimpleFeature>  features;
+
+        /** The page might have been committed before, see {@link WfsHarvester}. */
+        public boolean              uncertain;
+    }
+
+
+    /**
+     * Fetches and writes all missing pages.
+     *
+     * @return False if the monitor was canceled. The checkpoint is kept, so that
+     *         another harvest resumes.
+     * @throws IOException If a page could not be fetched or written. The
+     *         checkpoint is kept.
+     */
+    public boolean harvest( IProgressMonitor monitor ) throws IOException {
+        Timer timer = new Timer();
+        List<Page> pages = pages();
+        String signature = signature( pages.size() );
+        Set<Integer> uncertain = new HashSet();
+        Set<Integer> completed = readCheckpoint( signature, uncertain );
+        if (completed.isEmpty() && checkpoint.isPresent()
+                && targetName().equals( target( checkpoint.get() ) )) {
+            // no resume: features of a previous, different harvest must not remain
+            clear();
+        }
+        log.info( source.getName().getLocalPart() + ": " + pages.size() + " pages, " + completed.size() + " completed" );
+        monitor.beginTask( "Harvesting " + source.getName().getLocalPart(), pages.size() );
+        if (!completed.isEmpty()) {
+            monitor.worked( completed.size() );
+        }
+
+        List<Page> missing = new ArrayList( pages.size() );
+        for (Page page : pages) {
+            if (!completed.contains( page.index )) {
+                page.uncertain = !completed.isEmpty() && uncertain.contains( page.index );
+                missing.add( page );
+            }
+        }
+
+        count = 0;
+        ExecutorService executor = Executors.newFixedThreadPool( connections.get(), r -> {
+            Thread thread = new Thread( r, WfsHarvester.class.getSimpleName() + "-" + threadCount.getAndIncrement() );
+            thread.setDaemon( true );
+            return thread;
+        });
+        try (
+            Writer out = checkpoint.isPresent() ? checkpointWriter( signature, completed.isEmpty() ) : null;
+        ){
+            CompletionService<Page> pending = new ExecutorCompletionService( executor );
+            int submitted = 0, done = 0;
+            while (done < missing.size()) {
+                // keep some pages ahead of the writer, but not all of them in memory
+                while (submitted < missing.size() && submitted - done < connections.get() * 2) {
+                    Page page = missing.get( submitted++ );
+                    pending.submit( () -> fetch( page ) );
+                }
+                if (monitor.isCanceled()) {
+                    log.info( "Canceled: " + count + " features written" );
+                    return false;
+                }
+                Page page = pending.take().get();
+                write( page, out );
+                done ++;
+                monitor.worked( 1 );
+                monitor.subTask( String.format( "%d features - %d/s", count, count * 1000L / Math.max( 1, timer.elapsedTime() ) ) );
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException( e.getCause() );
+        }
+        finally {
+            executor.shutdownNow();
+            monitor.done();
+        }
+        checkpoint.ifPresent( f -> f.delete() );
+        log.info( source.getName().getLocalPart() + ": " + count + " features in " + timer.elapsedTime() + "ms" );
+        return true;
+    }
+
+
+    /**
+     * Splits the source into pages.
+     */
+    protected List<Page> pages() throws IOException {
+        List<Page> result = new ArrayList();
+        int total = source.getCount( Query.ALL );
+        SortBy[] naturalOrder = {SortBy.NATURAL_ORDER};
+        usePaging = paging.isPresent()
+                ? paging.get()
+                : source.getQueryCapabilities().isOffsetSupported() 
+                        && source.getQueryCapabilities().supportsSorting( naturalOrder );
+
+        if (usePaging && total >= 0) {
+            for (int i = 0; i * pageSize.get() < total; i++) {
+                Page page = new Page();
+                page.index = i;
+                page.query = new Query( source.getSchema().getTypeName() );
+                // without a stable order pages might overlap or miss features
+                page.query.setSortBy( naturalOrder );
+                page.query.setStartIndex( i * pageSize.get() );
+                page.query.setMaxFeatures( pageSize.get() );
+                result.add( page );
+            }
+        }
+        else {
+            ReferencedEnvelope bounds = source.getBounds();
+            String geom = source.getSchema().getGeometryDescriptor().getLocalName();
+            int n = tiles.get();
+            double dx = bounds.getWidth() / n, dy = bounds.getHeight() / n;
+            for (int x = 0; x < n; x++) {
+                for (int y = 0; y < n; y++) {
+                    Page page = new Page();
+                    page.index = x * n + y;
+                    page.lastX = x == n - 1;
+                    page.lastY = y == n - 1;
+                    page.tile = new ReferencedEnvelope(
+                            bounds.getMinX() + x * dx, page.lastX ? bounds.getMaxX() : bounds.getMinX() + (x + 1) * dx,
+                            bounds.getMinY() + y * dy, page.lastY ? bounds.getMaxY() : bounds.getMinY() + (y + 1) * dy,
+                            bounds.getCoordinateReferenceSystem() );
+                    page.query = new Query( source.getSchema().getTypeName(), ff.bbox( ff.property( geom ), page.tile ) );
+                    result.add( page );
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Fetches the features of the given page, retrying {@link #retries} times.
+     * Called by the worker threads.
+     */
+    protected Page fetch( Page page ) throws IOException {
+        for (int retry = 0; ; retry++) {
+            List<SimpleFeature> features = new ArrayList( pageSize.get() );
+            try (
+                SimpleFeatureIterator it = source.getFeatures( page.query ).features();
+            ){
+                while (it.hasNext()) {
+                    SimpleFeature feature = it.next();
+                    if (page.tile == null || isOwner( page, feature )) {
+                        features.add( feature );
+                    }
+                }
+                page.features = features;
+                return page;
+            }
+            catch (Exception e) {
+                if (retry >= retries.get() || Thread.currentThread().isInterrupted()) {
+                    throw e instanceof IOException ? (IOException)e : new IOException( e );
+                }
+                log.warn( "Page " + page.index + " failed, retrying: " + e );
+            }
+        }
+    }
+
+
+    /**
+     * A feature whose bounds intersect several tiles is written by the tile that
+     * contains the lower left corner of its bounds only.
+     */
+    protected boolean isOwner( Page page, SimpleFeature feature ) {
+        Geometry geom = (Geometry)feature.getDefaultGeometry();
+        if (geom == null) {
+            return false;
+        }
+        double x = geom.getEnvelopeInternal().getMinX();
+        double y = geom.getEnvelopeInternal().getMinY();
+        return x >= page.tile.getMinX() && (x < page.tile.getMaxX() || page.lastX)
+                && y >= page.tile.getMinY() && (y < page.tile.getMaxY() || page.lastY);
+    }
+
+
+    /**
+     * Writes the features of the given page in one transaction and records the
+     * page in the checkpoint.
+     *
+     * @param out The checkpoint, or null.
+     */
+    protected void write( Page page, Writer out ) throws IOException {
+        if (!page.features.isEmpty()) {
+            SimpleFeatureType schema = (SimpleFeatureType)target.getSchema();
+            SimpleFeatureBuilder fb = new SimpleFeatureBuilder( schema );
+            List<SimpleFeature> features = new ArrayList( page.features.size() );
+            Set<FeatureId> ids = new HashSet();
+            for (SimpleFeature feature : page.features) {
+                SimpleFeature copy = schema.equals( source.getSchema() ) ? feature : SimpleFeatureBuilder.retype( feature, fb );
+                copy.getUserData().put( Hints.USE_PROVIDED_FID, true );
+                features.add( copy );
+                ids.add( copy.getIdentifier() );
+            }
+            if (out != null) {
+                out.write( "+" + page.index + "\n" );
+                out.flush();
+            }
+            Transaction tx = new DefaultTransaction( "harvest" );
+            target.setTransaction( tx );
+            try {
+                if (page.uncertain) {
+                    target.removeFeatures( ff.id( ids ) );
+                }
+                target.addFeatures( new ListFeatureCollection( schema, features ) );
+                tx.commit();
+                count += features.size();
+                page.features = null;
+            }
+            catch (IOException e) {
+                tx.rollback();
+                throw e;
+            }
+            finally {
+                target.setTransaction( Transaction.AUTO_COMMIT );
+                tx.close();
+            }
+        }
+        if (out != null) {
+            out.write( page.index + "\n" );
+            out.flush();
+        }
+    }
+
+
+    /**
+     * Removes all features from the target. Only called for a target that the
+     * checkpoint records as written by a previous harvest.
+     */
+    protected void clear() throws IOException {
+        if (target.getCount( Query.ALL ) == 0) {
+            return;
+        }
+        log.info( "Clearing target: " + target.getSchema().getName() );
+        Transaction tx = new DefaultTransaction( "harvest" );
+        target.setTransaction( tx );
+        try {
+            target.removeFeatures( Filter.INCLUDE );
+            tx.commit();
+        }
+        catch (IOException e) {
+            tx.rollback();
+            throw e;
+        }
+        finally {
+            target.setTransaction( Transaction.AUTO_COMMIT );
+            tx.close();
+        }
+    }
+
+
+    protected String targetName() {
+        return target.getSchema().getName().getLocalPart();
+    }
+
+
+    /**
+     * The signature of this harvest; its first field is the name of the target
+     * type, see {@link #target(File)}.
+     */
+    protected String signature( int pageCount ) {
+        return targetName() + "|" + source.getName() + "|" 
+                + (usePaging ? "paging|" + pageSize.get() : "tiles|" + tiles.get()) + "|" + pageCount;
+    }
+
+
+    /**
+     * The name of the target type recorded in the given checkpoint file.
+     *
+     * @return The type name, or null if the file does not exist or is empty.
+     */
+    public static String target( File checkpoint ) throws IOException {
+        if (!checkpoint.exists()) {
+            return null;
+        }
+        List<String> lines = Files.readAllLines( checkpoint.toPath(), UTF_8 );
+        return lines.isEmpty() || lines.get( 0 ).isEmpty() ? null : StringUtils.substringBefore( lines.get( 0 ), "|" );
+    }
+
+
+    /**
+     * The indexes of the completed pages, or an empty set if there is no
+     * checkpoint or it belongs to another harvest.
+     *
+     * @param uncertain Receives the indexes of the pages that were about to be
+     *        committed.
+     */
+    protected Set<Integer> readCheckpoint( String signature, Set<Integer> uncertain ) throws IOException {
+        Set<Integer> result = new HashSet();
+        if (checkpoint.isPresent() && checkpoint.get().exists()) {
+            List<String> lines = Files.readAllLines( checkpoint.get().toPath(), UTF_8 );
+            if (!lines.isEmpty() && lines.get( 0 ).equals( signature )) {
+                for (String line : lines.subList( 1, lines.size() )) {
+                    line = line.trim();
+                    if (line.startsWith( "+" )) {
+                        uncertain.add( Integer.valueOf( line.substring( 1 ) ) );
+                    }
+                    else if (!line.isEmpty()) {
+                        result.add( Integer.valueOf( line ) );
+                    }
+                }
+            }
+            else {
+                log.info( "Checkpoint does not match: " + checkpoint.get().getName() );
+            }
+        }
+        uncertain.removeAll( result );
+        return result;
+    }
+
+
+    protected Writer checkpointWriter( String signature, boolean create ) throws IOException {
+        if (create) {
+            checkpoint.get().getParentFile().mkdirs();
+            Writer out = Files.newBufferedWriter( checkpoint.get().toPath(), UTF_8 );
+            out.write( signature + "\n" );
+            out.flush();
+            return out;
+        }
+        else {
+            return Files.newBufferedWriter( checkpoint.get().toPath(), UTF_8, StandardOpenOption.APPEND );
+        }
+    }
+
+}
@@ -12,6 +12,7 @@
  */
 package org.polymap.p4.data.importer.wfs;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.polymap.core.ui.FormDataFactory.on;
 
 import java.util.HashMap;
@@ -19,9 +20,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 
+import java.io.File;
 import java.io.Serializable;
 import java.net.URL;
 
+import org.geotools.data.DataAccess;
+import org.geotools.data.FeatureStore;
 import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
@@ -30,6 +34,8 @@ import org.geotools.data.store.ContentFeatureSource;
 import org.geotools.data.wfs.WFSDataStore;
 import org.geotools.data.wfs.WFSDataStoreFactory;
 import org.geotools.data.wfs.WFSServiceInfo;
+import org.geotools.feature.NameImpl;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.Name;
 
@@ -38,6 +44,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.ModifyEvent;
@@ -51,6 +58,7 @@ import org.eclipse.swt.widgets.Text;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 
+import org.polymap.core.CorePlugin;
 import org.polymap.core.catalog.IUpdateableMetadataCatalog.Updater;
 import org.polymap.core.data.wfs.catalog.WfsServiceResolver;
 import org.polymap.core.runtime.UIThreadExecutor;
@@ -102,6 +110,9 @@ public class WfsImporter
 
     //private SimpleFeatureSource    fs;
 
+    /** The type to harvest into the local store, or null for just a catalog entry. */
+    private String                 harvestType;
+
     private IPanelToolkit          toolkit;
 
 
@@ -156,6 +167,44 @@ public class WfsImporter
                         urlPrompt.value.set( url );
                     }
                 });
+        
+        site.newPrompt( "harvest" )
+                .summary.put( i18n.get( "harvestSummary" ) )
+                .value.put( i18n.get( "harvestNone" ) )
+                .description.put( i18n.get( "harvestDescription" ) )
+                .severity.put( Severity.INFO )
+                .extendedUI.put( new PromptUIBuilder() {
+                    private String      selected = harvestType;
+                    
+                    @Override
+                    public void createContents( ImporterPrompt prompt, Composite parent, IPanelToolkit tk ) {
+                        parent.setLayout( FormLayoutFactory.defaults().spacing( 3 ).create() );
+                        Label desc = on( tk.createLabel( parent, prompt.description.get(), SWT.WRAP ) )
+                                .top( 0 ).left( 0 ).right( 100 ).width( DEFAULT_WIDTH ).control();
+                        Combo combo = on( tk.adapt( new Combo( parent, SWT.READ_ONLY ), false, false ) )
+                                .top( desc ).left( 0 ).right( 100 ).control();
+                        combo.add( i18n.get( "harvestNone" ) );
+                        if (ds != null) {
+                            for (Name name : (List<Name>)ds.getNames()) {
+                                combo.add( name.getLocalPart() );
+                            }
+                        }
+                        combo.select( Math.max( 0, combo.indexOf( harvestType != null ? harvestType : "" ) ) );
+                        combo.addSelectionListener( new SelectionAdapter() {
+                            @Override
+                            public void widgetSelected( SelectionEvent ev ) {
+                                selected = combo.getSelectionIndex() > 0 ? combo.getText() : null;
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void submit( ImporterPrompt prompt ) {
+                        harvestType = selected;
+                        prompt.ok.set( true );
+                        prompt.value.set( harvestType != null ? harvestType : i18n.get( "harvestNone" ) );
+                    }
+                });
     }
 
 
@@ -277,6 +326,11 @@ public class WfsImporter
     
     @Override
     public void execute( IProgressMonitor monitor ) throws Exception {
+        if (harvestType != null) {
+            harvest( monitor );
+            return;
+        }
+        
         // create catalog entry
         try (Updater update = P4Plugin.localCatalog().prepareUpdate()) {
             WFSServiceInfo serviceInfo = ds.getInfo();
@@ -315,6 +369,52 @@ public class WfsImporter
     }
 
 
+    /**
+     * Copies all features of {@link #harvestType} into a new type of the local
+     * store. A previous, interrupted harvest of the same URL and type is resumed
+     * into the type it has created.
+     */
+    protected void harvest( IProgressMonitor monitor ) throws Exception {
+        SimpleFeatureSource fs = ds.getFeatureSource( harvestType );
+
+        File checkpoint = new File( CorePlugin.getDataLocation( ImporterPlugin.instance() ), 
+                "harvest/" + Hashing.sha1().hashString( url + "|" + harvestType, UTF_8 ) + ".checkpoint" );
+        DataAccess local = P4Plugin.localCatalog().localFeaturesStore();
+        
+        // never harvest into (and clear) a type that was not created by the harvester
+        String typeName = WfsHarvester.target( checkpoint );
+        if (typeName == null || !local.getNames().contains( new NameImpl( typeName ) )) {
+            checkpoint.delete();
+            typeName = harvestType;
+            for (int i = 2; local.getNames().contains( new NameImpl( typeName ) ); i++) {
+                typeName = harvestType + "_" + i;
+            }
+            // RDataStore does not handle namespaces
+            SimpleFeatureTypeBuilder ftb = new SimpleFeatureTypeBuilder();
+            ftb.init( fs.getSchema() );
+            ftb.setNamespaceURI( (String)null );
+            ftb.setName( typeName );
+            local.createSchema( ftb.buildFeatureType() );
+        }
+        WfsHarvester harvester = new WfsHarvester( fs, (FeatureStore)local.getFeatureSource( new NameImpl( typeName ) ) )
+                .checkpoint.put( checkpoint );
+        if (harvester.harvest( monitor )) {
+            UIThreadExecutor.async( () -> {
+                SimpleDialog dialog = new SimpleDialog();
+                dialog.title.put( "Information" );
+                dialog.setContents( parent -> {
+                    toolkit.createFlowText( parent, i18n.get( "infoHarvested", harvester.count() ) );
+                });
+                dialog.addOkAction( () -> {
+                    dialog.close();
+                    return true;
+                });
+                dialog.open();
+            });
+        }
+    }
+
+
     protected String normalize( String s ) {
         return StringUtils.defaultIfBlank( s, null );
     }
@@ -0,0 +1,308 @@
+/*
+ * polymap.org Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 3.0 of the License, or (at your option) any later
+ * version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Encodes point, line and polygon features and decodes the resulting tile again.
+ * Bounds and extent are chosen so that world and tile coordinates are equal,
+ * except for the flipped y axis.
+ */
+public class VectorTileEncoderTest {
+
+    private static final int        EXTENT = 4096;
+
+    private VectorTileEncoder       encoder;
+
+    private WKTReader               wkt = new WKTReader( new GeometryFactory() );
+
+
+    @Before
+    public void setUp() {
+        encoder = new VectorTileEncoder( "test", new Envelope( 0, EXTENT, 0, EXTENT ), EXTENT, 256 );
+    }
+
+
+    @Test
+    public void point() throws Exception {
+        Map<String,Object> attributes = new LinkedHashMap();
+        attributes.put( "name", "first" );
+        attributes.put( "count", 42 );
+        assertTrue( encoder.add( 1L, wkt.read( "POINT (100 3996)" ), attributes ) );
+
+        Layer layer = decode( encoder.encode() );
+        assertEquals( 2, layer.version );
+        assertEquals( "test", layer.name );
+        assertEquals( EXTENT, layer.extent );
+        assertEquals( 1, layer.features.size() );
+
+        Feature feature = layer.features.get( 0 );
+        assertEquals( 1L, feature.id );
+        assertEquals( VectorTileEncoder.POINT, feature.type );
+        assertArrayEquals( new int[] {9, 200, 200}, feature.geometry );
+        assertEquals( "first", layer.attribute( feature, "name" ) );
+        assertEquals( 42L, layer.attribute( feature, "count" ) );
+    }
+
+
+    @Test
+    public void pointsThinned() throws Exception {
+        assertTrue( encoder.add( 1L, wkt.read( "POINT (100 100)" ), Collections.EMPTY_MAP ) );
+        assertFalse( encoder.add( 2L, wkt.read( "POINT (101 101)" ), Collections.EMPTY_MAP ) );
+        assertTrue( encoder.add( 3L, wkt.read( "POINT (200 100)" ), Collections.EMPTY_MAP ) );
+        assertEquals( 2, encoder.count() );
+        assertEquals( 2, decode( encoder.encode() ).features.size() );
+    }
+
+
+    @Test
+    public void line() throws Exception {
+        assertTrue( encoder.add( 2L, wkt.read( "LINESTRING (100 3996, 1000 3996, 1000 2996)" ), Collections.EMPTY_MAP ) );
+
+        Feature feature = decode( encoder.encode() ).features.get( 0 );
+        assertEquals( VectorTileEncoder.LINESTRING, feature.type );
+        // MoveTo(1) 100,100 LineTo(2) +900,0 +0,+1000
+        assertArrayEquals( new int[] {9, 200, 200, 18, 1800, 0, 0, 2000}, feature.geometry );
+    }
+
+
+    @Test
+    public void polygonWithHole() throws Exception {
+        // both rings counter-clockwise in world coordinates
+        assertTrue( encoder.add( 3L, wkt.read( "POLYGON ("
+                + "(100 100, 1100 100, 1100 1100, 100 1100, 100 100), "
+                + "(400 400, 600 400, 600 600, 400 600, 400 400))" ), Collections.EMPTY_MAP ) );
+
+        Feature feature = decode( encoder.encode() ).features.get( 0 );
+        assertEquals( VectorTileEncoder.POLYGON, feature.type );
+
+        List<List<int[]>> rings = rings( feature.geometry );
+        assertEquals( 2, rings.size() );
+        assertEquals( 4, rings.get( 0 ).size() );
+        assertEquals( 4, rings.get( 1 ).size() );
+        // spec: exterior positive area, interior negative area (tile coordinates)
+        assertTrue( area( rings.get( 0 ) ) > 0 );
+        assertTrue( area( rings.get( 1 ) ) < 0 );
+        assertEquals( 1000L * 1000, area( rings.get( 0 ) ) );
+        assertEquals( -200L * 200, area( rings.get( 1 ) ) );
+    }
+
+
+    @Test
+    public void outside() throws Exception {
+        assertFalse( encoder.add( 4L, wkt.read( "POINT (-1000 -1000)" ), Collections.EMPTY_MAP ) );
+        assertEquals( 0, encoder.count() );
+    }
+
+
+    // decoding *******************************************
+
+    /**
+     * Decodes the commands of a polygon into rings of absolute tile coordinates.
+     */
+    protected List<List<int[]>> rings( int[] geometry ) {
+        List<List<int[]>> result = new ArrayList();
+        List<int[]> ring = null;
+        int x = 0, y = 0;
+        for (int i = 0; i < geometry.length; ) {
+            int id = geometry[i] & 0x7, count = geometry[i++] >> 3;
+            if (id == VectorTileEncoder.MOVE_TO) {
+                ring = new ArrayList();
+                result.add( ring );
+            }
+            if (id == VectorTileEncoder.MOVE_TO || id == VectorTileEncoder.LINE_TO) {
+                for (int j = 0; j < count; j++) {
+                    x += unzigzag( geometry[i++] );
+                    y += unzigzag( geometry[i++] );
+                    ring.add( new int[] {x, y} );
+                }
+            }
+            else {
+                assertEquals( VectorTileEncoder.CLOSE_PATH, id );
+            }
+        }
+        return result;
+    }
+
+
+    protected long area( List<int[]> ring ) {
+        long area = 0;
+        for (int i = 0; i < ring.size(); i++) {
+            int[] p1 = ring.get( i ), p2 = ring.get( (i + 1) % ring.size() );
+            area += (long)p1[0] * p2[1] - (long)p2[0] * p1[1];
+        }
+        return area / 2;
+    }
+
+
+    protected static int unzigzag( int n ) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+
+    protected Layer decode( byte[] tile ) {
+        Input in = new Input( tile );
+        Layer result = null;
+        while (in.hasMore()) {
+            int tag = (int)in.varint();
+            assertEquals( "tile contains layers only", 3, tag >>> 3 );
+            result = decodeLayer( in.bytes() );
+        }
+        return result;
+    }
+
+
+    protected Layer decodeLayer( byte[] bytes ) {
+        Layer layer = new Layer();
+        Input in = new Input( bytes );
+        while (in.hasMore()) {
+            int tag = (int)in.varint();
+            switch (tag >>> 3) {
+                case 15: layer.version = (int)in.varint(); break;
+                case 1: layer.name = new String( in.bytes(), StandardCharsets.UTF_8 ); break;
+                case 2: layer.features.add( decodeFeature( in.bytes() ) ); break;
+                case 3: layer.keys.add( new String( in.bytes(), StandardCharsets.UTF_8 ) ); break;
+                case 4: layer.values.add( decodeValue( in.bytes() ) ); break;
+                case 5: layer.extent = (int)in.varint(); break;
+                default: throw new AssertionError( "Unknown layer field: " + (tag >>> 3) );
+            }
+        }
+        return layer;
+    }
+
+
+    protected Feature decodeFeature( byte[] bytes ) {
+        Feature feature = new Feature();
+        Input in = new Input( bytes );
+        while (in.hasMore()) {
+            int tag = (int)in.varint();
+            switch (tag >>> 3) {
+                case 1: feature.id = in.varint(); break;
+                case 2: feature.tags = new Input( in.bytes() ).packed(); break;
+                case 3: feature.type = (int)in.varint(); break;
+                case 4: feature.geometry = new Input( in.bytes() ).packed(); break;
+                default: throw new AssertionError( "Unknown feature field: " + (tag >>> 3) );
+            }
+        }
+        return feature;
+    }
+
+
+    protected Object decodeValue( byte[] bytes ) {
+        Input in = new Input( bytes );
+        int tag = (int)in.varint();
+        switch (tag >>> 3) {
+            case 1: return new String( in.bytes(), StandardCharsets.UTF_8 );
+            case 6: long l = in.varint(); return (l >>> 1) ^ -(l & 1);
+            case 7: return in.varint() != 0;
+            default: throw new AssertionError( "Value type not checked here: " + (tag >>> 3) );
+        }
+    }
+
+
+    /**
+     *
+     */
+    static class Layer {
+        int             version;
+        String          name;
+        int             extent;
+        List<Feature>   features = new ArrayList();
+        List<String>    keys = new ArrayList();
+        List<Object>    values = new ArrayList();
+
+        public Object attribute( Feature feature, String key ) {
+            for (int i = 0; i < feature.tags.length; i += 2) {
+                if (keys.get( feature.tags[i] ).equals( key )) {
+                    return values.get( feature.tags[i + 1] );
+                }
+            }
+            return null;
+        }
+    }
+
+
+    /**
+     *
+     */
+    static class Feature {
+        long            id;
+        int             type;
+        int[]           tags = new int[0];
+        int[]           geometry;
+    }
+
+
+    /**
+     * Minimal protobuf reader of varints and length delimited fields.
+     */
+    static class Input {
+        private byte[]  buf;
+        private int     pos;
+
+        public Input( byte[] buf ) {
+            this.buf = buf;
+        }
+
+        public boolean hasMore() {
+            return pos < buf.length;
+        }
+
+        public long varint() {
+            long result = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf[pos++];
+                result |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+        }
+
+        public byte[] bytes() {
+            int length = (int)varint();
+            byte[] result = new byte[length];
+            System.arraycopy( buf, pos, result, 0, length );
+            pos += length;
+            return result;
+        }
+
+        public int[] packed() {
+            List<Integer> result = new ArrayList();
+            while (hasMore()) {
+                result.add( (int)varint() );
+            }
+            return result.stream().mapToInt( Integer::intValue ).toArray();
+        }
+    }
+
+}
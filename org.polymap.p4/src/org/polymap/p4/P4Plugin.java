@@ -51,6 +51,7 @@ import org.polymap.rhei.batik.toolkit.BatikDialogStatusAdapter;
 import org.polymap.p4.catalog.LocalCatalog;
 import org.polymap.p4.catalog.AllResolver;
 import org.polymap.p4.layer.NewLayerContribution;
+import org.polymap.p4.map.TileCache;
 import org.polymap.p4.style.LayerStyleContrib;
 import org.polymap.p4.style.P4UIService;
 
@@ -112,6 +113,10 @@ public class P4Plugin
     public static StyleRepository styleRepo() {
         return instance().styleRepo;
     }
+
+    public static TileCache tileCache() {
+        return instance().tileCache;
+    }
     
     // instance *******************************************
 
@@ -127,6 +132,8 @@ public class P4Plugin
     
     private StyleRepository         styleRepo;
 
+    private TileCache               tileCache;
+
     private ServiceRegistration<UIService> styleUIRegistration;
 
     private ServiceTracker          httpServiceTracker;
@@ -175,6 +182,9 @@ public class P4Plugin
         styleRepo = new StyleRepository( styleDataDir );
         styleUIRegistration = context.registerService( UIService.class, new P4UIService(), null );
 
+        // rendered tiles
+        tileCache = new TileCache( new File( CorePlugin.getDataLocation( instance() ), "tiles" ) );
+
         // find httpService
         httpServiceTracker = new ServiceTracker( context, HttpService.class.getName(), null ) {
             @Override
@@ -191,6 +201,7 @@ public class P4Plugin
         httpServiceTracker.close();
         localCatalog.close();
         styleRepo.close();
+        tileCache.close();
         styleUIRegistration.unregister();
 
         instance = null;
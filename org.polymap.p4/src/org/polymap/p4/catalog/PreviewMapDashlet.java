@@ -16,9 +16,16 @@ package org.polymap.p4.catalog;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.geotools.data.DataAccess;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.wms.WebMapServer;
@@ -61,6 +68,7 @@ import org.polymap.rhei.batik.toolkit.MinWidthConstraint;
 import org.polymap.p4.P4Panel;
 import org.polymap.p4.P4Plugin;
 import org.polymap.p4.data.P4PipelineIncubator;
+import org.polymap.p4.data.PipelinePool;
 import org.polymap.rap.openlayers.base.OlFeature;
 import org.polymap.rap.openlayers.control.MousePositionControl;
 import org.polymap.rap.openlayers.control.ScaleLineControl;
@@ -140,6 +148,7 @@ public class PreviewMapDashlet
     public void dispose() {
         if (featureWmsAlias != null) {
             P4Plugin.instance().httpService().unregister( featureWmsAlias );
+            PipelinePool.instance().invalidate( PipelinePool.PROP_OWNER, featureWmsAlias );
             featureWmsAlias = null;
         }
     }
@@ -285,16 +294,30 @@ public class PreviewMapDashlet
             @Override
             protected Pipeline createPipeline( String layerName ) {
                 try {
-                    DataSourceDescription dsd = new DataSourceDescription().service.put( ds ).resourceName.put( layerName );
-                    Pipeline pipeline = new P4PipelineIncubator().newPipeline( EncodedImageProducer.class, dsd, null );
-                    assert pipeline != null && pipeline.length() > 0 : "Unable to build pipeline for: " + dsd;
-                    return pipeline;
+                    PipelinePool.Key key = new PipelinePool.Key( featureWmsAlias + "/" + layerName, 
+                            EncodedImageProducer.class, Collections.singletonMap( PipelinePool.PROP_OWNER, featureWmsAlias ) );
+                    return PipelinePool.instance().borrow( key, () -> {
+                        DataSourceDescription dsd = new DataSourceDescription().service.put( ds ).resourceName.put( layerName );
+                        Pipeline pipeline = new P4PipelineIncubator().newPipeline( EncodedImageProducer.class, dsd, null );
+                        assert pipeline != null && pipeline.length() > 0 : "Unable to build pipeline for: " + dsd;
+                        return pipeline;
+                    });
                 }
                 catch (Exception e) {
                     log.warn( "", e );
                     return null;
                 }
             }
+            @Override
+            protected void service( HttpServletRequest req, HttpServletResponse resp ) 
+                    throws ServletException, IOException {
+                try {
+                    super.service( req, resp );
+                }
+                finally {
+                    PipelinePool.instance().releaseThread();
+                }
+            }
         };
         featureWmsAlias = "/preview" + hashCode();
         P4Plugin.instance().httpService().registerServlet( featureWmsAlias, wms, null, null );
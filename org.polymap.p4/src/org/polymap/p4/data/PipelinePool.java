@@ -0,0 +1,260 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.core.data.pipeline.Pipeline;
+import org.polymap.core.data.pipeline.PipelineProcessor;
+import org.polymap.core.project.ProjectNode.ProjectNodeCommittedEvent;
+import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.event.Event;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
+import org.polymap.core.style.model.FeatureStyleCommitedEvent;
+
+/**
+ * Pools {@link Pipeline} instances, so that pipelines are not incubated for every
+ * request of a WMS servlet.
+ * <p/>
+ * A pipeline is confined to the thread that has borrowed it via
+ * {@link #borrow(Key, Callable)} until this thread calls {@link #releaseThread()},
+ * usually at the end of the request. Pooled pipelines of a layer are dropped on
+ * {@link ProjectNodeCommittedEvent} of this layer, and of all layers with a style on
+ * {@link FeatureStyleCommitedEvent} of this style.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class PipelinePool {
+
+    private static final Log log = LogFactory.getLog( PipelinePool.class );
+
+    /** The max number of idle pipelines per {@link Key}. */
+    public static final int         MAX_IDLE = Integer.getInteger( "org.polymap.p4.pipelinePool.maxIdle",
+            Runtime.getRuntime().availableProcessors() * 2 );
+
+    /** The {@link Key#props} entry of the style identifier. */
+    public static final String      PROP_STYLE = "styleId";
+
+    /** The {@link Key#props} entry of the owner of the pipeline, a servlet for example. */
+    public static final String      PROP_OWNER = "owner";
+
+    private static final PipelinePool instance = new PipelinePool();
+
+    public static PipelinePool instance() {
+        return instance;
+    }
+
+
+    /**
+     * The key of interchangeable pipelines: the id of the layer (or other owner),
+     * the type of the producer and the properties that the pipeline depends on.
+     */
+    public static class Key {
+
+        private String              id;
+
+        private Class<? extends PipelineProcessor> producer;
+
+        private Map<String,Object>  props;
+
+        public Key( String id, Class<? extends PipelineProcessor> producer, Map<String,Object> props ) {
+            this.id = id;
+            this.producer = producer;
+            this.props = props != null ? props : Collections.EMPTY_MAP;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash( id, producer, props );
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if (this == obj) {
+                return true;
+            }
+            else if (obj instanceof Key) {
+                Key rhs = (Key)obj;
+                return id.equals( rhs.id ) && producer.equals( rhs.producer ) && props.equals( rhs.props );
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "Key[" + id + ", " + producer.getSimpleName() + ", " + props + "]";
+        }
+    }
+
+
+    /**
+     * A borrowed pipeline together with the pool it came from.
+     */
+    private static class Lease {
+
+        Key                 key;
+
+        Deque<Pipeline>     pool;
+
+        Pipeline            pipeline;
+
+        Lease( Key key, Deque<Pipeline> pool, Pipeline pipeline ) {
+            this.key = key;
+            this.pool = pool;
+            this.pipeline = pipeline;
+        }
+    }
+
+
+    // instance *******************************************
+
+    private ConcurrentMap<Key,Deque<Pipeline>> idle = new ConcurrentHashMap( 64 );
+
+    private ThreadLocal<List<Lease>> leases = ThreadLocal.withInitial( () -> new ArrayList() );
+
+    private AtomicLong              built = new AtomicLong();
+
+    private AtomicLong              reused = new AtomicLong();
+
+    private AtomicLong              buildMillis = new AtomicLong();
+
+    private ProjectListener         projectListener = new ProjectListener();
+
+    private StyleListener           styleListener = new StyleListener();
+
+
+    protected PipelinePool() {
+        EventManager.instance().subscribe( projectListener, ifType( ProjectNodeCommittedEvent.class, ev ->
+                ev.getEntityId() != null ) );
+        EventManager.instance().subscribe( styleListener, ifType( FeatureStyleCommitedEvent.class, ev -> true ) );
+    }
+
+
+    /**
+     * Returns an idle pipeline for the given key, or creates a new one via the
+     * given factory. The pipeline must not be used after the calling thread has
+     * called {@link #releaseThread()}.
+     */
+    public Pipeline borrow( Key key, Callable<Pipeline> factory ) throws Exception {
+        Deque<Pipeline> pool = idle.computeIfAbsent( key, k -> new ConcurrentLinkedDeque() );
+        Pipeline pipeline = pool.pollFirst();
+        if (pipeline != null) {
+            reused.incrementAndGet();
+        }
+        else {
+            Timer timer = new Timer();
+            pipeline = factory.call();
+            if (pipeline == null) {
+                return null;
+            }
+            buildMillis.addAndGet( timer.elapsedTime() );
+            if (built.incrementAndGet() % 100 == 0) {
+                log.info( statistics() );
+            }
+            log.debug( "Built: " + key + " (" + timer.elapsedTime() + "ms)" );
+        }
+        leases.get().add( new Lease( key, pool, pipeline ) );
+        return pipeline;
+    }
+
+
+    /**
+     * Returns all pipelines borrowed by the calling thread to the pool.
+     */
+    public void releaseThread() {
+        List<Lease> borrowed = leases.get();
+        for (Lease lease : borrowed) {
+            // pool not invalidated meanwhile?
+            if (idle.get( lease.key ) == lease.pool && lease.pool.size() < MAX_IDLE) {
+                lease.pool.offerFirst( lease.pipeline );
+            }
+        }
+        borrowed.clear();
+    }
+
+
+    /**
+     * Drops all pooled pipelines with the given id.
+     */
+    public void invalidate( String id ) {
+        idle.keySet().removeIf( key -> key.id.equals( id ) );
+    }
+
+
+    /**
+     * Drops all pooled pipelines with the given {@link Key#props} entry, for
+     * example {@link #PROP_STYLE} or {@link #PROP_OWNER}.
+     */
+    public void invalidate( String prop, Object value ) {
+        idle.keySet().removeIf( key -> Objects.equals( value, key.props.get( prop ) ) );
+    }
+
+
+    public long built() {
+        return built.get();
+    }
+
+
+    public long reused() {
+        return reused.get();
+    }
+
+
+    public String statistics() {
+        long b = built.get(), r = reused.get();
+        return "Pipelines: built=" + b + ", reused=" + r
+                + ", avg build=" + (b > 0 ? buildMillis.get() / b : 0) + "ms"
+                + ", keys=" + idle.size();
+    }
+
+
+    /**
+     * Drops the pipelines of a layer that has been changed.
+     */
+    class ProjectListener {
+        @EventHandler( scope=Event.Scope.JVM )
+        protected void onCommit( ProjectNodeCommittedEvent ev ) {
+            invalidate( ev.getEntityId().toString() );
+        }
+    }
+
+
+    /**
+     * Drops the pipelines of a style that has been changed.
+     */
+    class StyleListener {
+        @EventHandler( scope=Event.Scope.JVM )
+        protected void onCommit( FeatureStyleCommitedEvent ev ) {
+            invalidate( PROP_STYLE, String.valueOf( ev.getSource().id() ) );
+        }
+    }
+
+}
@@ -18,16 +18,11 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.lang3.time.DateFormatUtils;
 import org.apache.commons.lang3.time.FastDateFormat;
 import org.apache.commons.logging.Log;
@@ -122,45 +117,10 @@ public class CsvContentProvider
             extends DefaultContentNode
             implements IContentFile, IEntityStateListener {
 
-        /** GZipped bytes. */
-        private byte[]              content;
-        
-        /** Size of the unzipped content. */
-        private long                contentLength;
-        
-        private IOException         lastException;
-        
-        private Date                modified;
-        
         
         public CsvFile( IPath parentPath, IContentProvider provider, ILayer layer ) {
             super( layer.getLabel() + ".csv", parentPath, provider, layer );
 
-            // init content
-            lastException = null;
-            try {
-                ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                CountingOutputStream cout = new CountingOutputStream( new GZIPOutputStream( bout ) );
-
-                PipelineFeatureSource fs = PipelineFeatureSource.forLayer( getLayer(), false );
-                
-                CsvExporter exporter = new CsvExporter();
-                exporter.setLocale( getSite().getLocale() );
-                exporter.write( fs.getFeatures(), cout, new NullProgressMonitor() );
-                
-                content = bout.toByteArray();
-                contentLength = cout.getByteCount();
-                modified = new Date();
-            }
-            catch (IOException e) {
-                log.warn( "", e);
-                lastException = e;
-            }
-            catch (Exception e) {
-                log.warn( "", e);
-                lastException = new IOException( e );
-            }
-
             // add model listener
             EntityStateTracker.instance().addListener( this );
         }
@@ -187,23 +147,26 @@ public class CsvContentProvider
         }
 
 
-        public int getSizeInMemory() {
-            return (content != null ? content.length : 0) + super.getSizeInMemory();
+        public ILayer getLayer() {
+            return (ILayer)getSource();
         }
 
 
-        public ILayer getLayer() {
-            return (ILayer)getSource();
+        /**
+         * The export depends on the locale of the session, so the locale is part
+         * of the key of the cached file.
+         */
+        protected String suffix() {
+            return getSite().getLocale() + ".csv";
         }
 
 
+        /**
+         * The length of the exported file, or null if it was not generated yet.
+         * Listing a folder does not generate the file.
+         */
         public Long getContentLength() {
-            if (lastException != null) {
-                throw new RuntimeException( lastException );
-            }
-            else {
-                return contentLength;
-            }
+            return ExportCache.instance().length( getLayer(), suffix() );
         }
 
 
@@ -218,23 +181,24 @@ public class CsvContentProvider
 
 
         public Date getModifiedDate() {
-            if (lastException != null) {
-                throw new RuntimeException( lastException );
-            }
-            else {
-                return modified;
-            }
+            return new Date( ExportCache.instance().version( getLayer() ) );
         }
 
 
         public void sendContent( final OutputStream out, Range range, Map<String, String> params, String contentType )
         throws IOException, BadRequestException {
-            if (lastException != null) {
-                log.warn( "", lastException );
-                throw lastException;
+            try {
+                File f = ExportCache.instance().get( getLayer(), suffix(), fout -> {
+                    PipelineFeatureSource fs = PipelineFeatureSource.forLayer( getLayer(), false );
+                    CsvExporter exporter = new CsvExporter();
+                    exporter.setLocale( getSite().getLocale() );
+                    exporter.write( fs.getFeatures(), fout, new NullProgressMonitor() );
+                });
+                ExportCache.send( f, range, out );
             }
-            else {
-                IOUtils.copy( new GZIPInputStream( new ByteArrayInputStream( content ) ), out );
+            catch (IOException e) {
+                log.warn( "", e );
+                throw e;
             }
         }
         
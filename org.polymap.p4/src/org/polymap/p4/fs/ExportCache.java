@@ -0,0 +1,277 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.fs;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.util.concurrent.Striped;
+
+import org.polymap.core.data.FeatureStateListener;
+import org.polymap.core.data.FeatureStateTracker;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.entity.EntityStateEvent;
+import org.polymap.core.runtime.entity.EntityStateEvent.EventType;
+
+import org.polymap.service.fs.FsPlugin;
+import org.polymap.service.fs.spi.Range;
+
+/**
+ * Disk cache of exported layer data, shared by all sessions. An export file is
+ * generated on first access to its content, streamed to disk and then served
+ * from the file via {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+ * <p/>
+ * Files are keyed by layer id and the version of the layer data. The version is the
+ * time of the last commit of the features of the layer seen by this JVM (or the
+ * time the layer was first exported), so files of older versions are never served
+ * and are deleted when a new version is committed. An export that is outdated by a
+ * commit while it is generated is deleted and generated again.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+class ExportCache
+        implements FeatureStateListener {
+
+    private static Log log = LogFactory.getLog( ExportCache.class );
+
+    private static ExportCache      instance;
+
+    public static synchronized ExportCache instance() {
+        if (instance == null) {
+            instance = new ExportCache( new File( FsPlugin.getDefault().getCacheDir(), "exports" ) );
+        }
+        return instance;
+    }
+
+
+    /**
+     * Writes the export of a layer.
+     */
+    @FunctionalInterface
+    public interface Exporter {
+        public void write( OutputStream out ) throws Exception;
+    }
+
+
+    /**
+     * Writes the export of a layer into a file and possibly sibling files with
+     * the same basename, a shapefile for example.
+     */
+    @FunctionalInterface
+    public interface FileExporter {
+        public void write( File f ) throws Exception;
+    }
+
+
+    // instance *******************************************
+
+    private File                        dir;
+
+    /** Layer id -> version of the layer data. */
+    private ConcurrentMap<String,Long>  versions = new ConcurrentHashMap( 64 );
+
+    /** Concurrent requests of the same file wait for one generation. */
+    private Striped<Lock>               locks = Striped.lock( 32 );
+
+
+    protected ExportCache( File dir ) {
+        this.dir = dir;
+        // files of a previous run might be outdated
+        FileUtils.deleteQuietly( dir );
+        dir.mkdirs();
+        FeatureStateTracker.instance().addFeatureListener( this );
+    }
+
+
+    @Override
+    public void featureChanged( EntityStateEvent ev ) {
+        if (ev.getEventType() == EventType.COMMIT && ev.getSource() instanceof ILayer) {
+            String layerId = (String)((ILayer)ev.getSource()).id();
+            Long previous = versions.put( layerId, System.currentTimeMillis() );
+            if (previous != null) {
+                deleteVersion( layerId, previous );
+            }
+        }
+    }
+
+
+    /**
+     * Deletes the files of the given version of a layer. Temp dirs of exports
+     * that are running are left alone; the export deletes its result itself, see
+     * {@link #getFiles(ILayer, String, FileExporter)}.
+     */
+    protected void deleteVersion( String layerId, long version ) {
+        log.debug( "Outdated: " + layerId + " (version: " + version + ")" );
+        String prefix = layerId + "@" + version + ".";
+        for (File f : dir.listFiles( (d, name) -> name.startsWith( prefix ) && !name.endsWith( ".tmp" ) )) {
+            FileUtils.deleteQuietly( f );
+        }
+    }
+
+
+    /**
+     * The current version of the data of the given layer.
+     */
+    public long version( ILayer layer ) {
+        return versions.computeIfAbsent( (String)layer.id(), id -> System.currentTimeMillis() );
+    }
+
+
+    /**
+     * The cache file of the current version of the given layer, which might not
+     * exist yet.
+     *
+     * @param suffix The file extension, specifying the format of the export.
+     */
+    public File file( ILayer layer, String suffix ) {
+        return file( layer, version( layer ), suffix );
+    }
+
+
+    protected File file( ILayer layer, long version, String suffix ) {
+        return new File( dir, layer.id() + "@" + version + "." + suffix );
+    }
+
+
+    /**
+     * The length of the cached file, without generating it.
+     *
+     * @return The length, or null if the file is not generated yet.
+     */
+    public Long length( ILayer layer, String suffix ) {
+        File f = file( layer, suffix );
+        return f.exists() ? f.length() : null;
+    }
+
+
+    /**
+     * Returns the cache file of the current version of the given layer. Generates
+     * the file via the given exporter if it does not exist yet. Concurrent calls
+     * for the same file wait for one generation.
+     */
+    public File get( ILayer layer, String suffix, Exporter exporter ) throws IOException {
+        return getFiles( layer, suffix, f -> {
+            try (OutputStream out = new BufferedOutputStream( new FileOutputStream( f ), 64 * 1024 )) {
+                exporter.write( out );
+            }
+        });
+    }
+
+
+    /**
+     * Returns the cache file of the current version of the given layer. Generates
+     * the file and its siblings via the given exporter if it does not exist yet.
+     * The siblings are available when the returned file exists. Concurrent calls
+     * for the same file wait for one generation. If a commit outdates the file while
+     * it is generated, then it is deleted and the new version is generated.
+     */
+    public File getFiles( ILayer layer, String suffix, FileExporter exporter ) throws IOException {
+        while (true) {
+            long version = version( layer );
+            File f = file( layer, version, suffix );
+            if (f.exists()) {
+                return f;
+            }
+            generate( f, exporter );
+            if (version == version( layer )) {
+                return f;
+            }
+            // featureChanged() did not see the file, it was not there yet
+            log.info( "Outdated while exporting: " + f.getName() );
+            deleteVersion( (String)layer.id(), version );
+        }
+    }
+
+
+    /**
+     * Generates the given file, if it does not exist yet.
+     */
+    protected void generate( File f, FileExporter exporter ) throws IOException {
+        Lock lock = locks.get( f.getName() );
+        lock.lock();
+        try {
+            if (!f.exists()) {
+                Timer timer = new Timer();
+                File tmpDir = new File( dir, f.getName() + ".tmp" );
+                FileUtils.deleteQuietly( tmpDir );
+                tmpDir.mkdirs();
+                try {
+                    File tmp = new File( tmpDir, f.getName() );
+                    exporter.write( tmp );
+                    // the requested file last, it signals that all files are there
+                    for (File sibling : tmpDir.listFiles()) {
+                        if (!sibling.equals( tmp )) {
+                            Files.move( sibling.toPath(), new File( dir, sibling.getName() ).toPath(), REPLACE_EXISTING );
+                        }
+                    }
+                    Files.move( tmp.toPath(), f.toPath(), REPLACE_EXISTING );
+                }
+                catch (IOException e) {
+                    throw e;
+                }
+                catch (Exception e) {
+                    throw new IOException( e );
+                }
+                finally {
+                    FileUtils.deleteQuietly( tmpDir );
+                }
+                log.info( "Exported: " + f.getName() + " (" + f.length() + " bytes, " + timer.elapsedTime() + "ms)" );
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Sends the given file, or the given {@link Range} of it, to the given
+     * stream.
+     */
+    public static void send( File f, Range range, OutputStream out ) throws IOException {
+        try (FileChannel in = FileChannel.open( f.toPath(), StandardOpenOption.READ )) {
+            long start = 0, end = in.size();
+            if (range != null) {
+                // open ended ranges (bytes=N-) have no finish
+                start = range.getStart() != null ? Math.min( range.getStart(), end ) : 0;
+                end = range.getFinish() != null ? Math.min( range.getFinish() + 1, end ) : end;
+            }
+            WritableByteChannel channel = Channels.newChannel( out );
+            while (start < end) {
+                start += in.transferTo( start, end - start, channel );
+            }
+        }
+    }
+
+}
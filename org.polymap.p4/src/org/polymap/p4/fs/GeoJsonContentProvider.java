@@ -14,15 +14,20 @@
  */
 package org.polymap.p4.fs;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+
 import org.geotools.geojson.feature.FeatureJSON;
+
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -59,8 +64,10 @@ public class GeoJsonContentProvider
         
         // file
         if (parent instanceof GeoJsonFolder) {
-            return Collections.singletonList( 
-                    new GeoJsonFile( path, this, (ILayer)parent.getSource() ) );
+            ILayer layer = (ILayer)parent.getSource();
+            return Arrays.asList( 
+                    new GeoJsonFile( path, this, layer, false ),
+                    new GeoJsonFile( path, this, layer, true ) );
         }
         // folder
         else if (parent instanceof ProjectContentProvider.LayerFolder) {
@@ -92,47 +99,25 @@ public class GeoJsonContentProvider
     }
 
 
-    /*
-     * 
+    /**
+     * The GeoJSON encoded features of a layer, or the gzipped variant of it. The
+     * file is generated on first access to its content and shared by all sessions
+     * via the {@link ExportCache}.
      */
     public static class GeoJsonFile
             extends DefaultContentNode
             implements IContentFile {
 
-        private byte[]              content;
-        
-        private Exception           lastException;
-        
-        private Date                modified;
-        
-        
-        public GeoJsonFile( IPath parentPath, IContentProvider provider, ILayer layer ) {
-            super( layer.getLabel() + ".json", parentPath, provider, layer );
-            try {
-                lastException = null;
-                PipelineFeatureSource fs = PipelineFeatureSource.forLayer( getLayer(), false );
-
-                FeatureJSON encoder = new FeatureJSON();
-                encoder.setEncodeFeatureBounds( false );
-                encoder.setEncodeFeatureCollectionBounds( false );
-                encoder.setEncodeFeatureCollectionCRS( false );
-                encoder.setEncodeFeatureCRS( false );
-
-                ByteArrayOutputStream out = new ByteArrayOutputStream( 128*1024 );
-                encoder.writeFeatureCollection( fs.getFeatures(), out );
-                
-                content = out.toByteArray();
-                modified = new Date();
-            }
-            catch (Exception e) {
-                log.warn( "", e );
-                lastException = e;
-            }
-        }
+        public static final String  SUFFIX = "json";
 
+        public static final String  GZ_SUFFIX = "json.gz";
 
-        public int getSizeInMemory() {
-            return (content != null ? content.length : 0) + super.getSizeInMemory();
+        private boolean             gzipped;
+        
+        
+        public GeoJsonFile( IPath parentPath, IContentProvider provider, ILayer layer, boolean gzipped ) {
+            super( layer.getLabel() + "." + (gzipped ? GZ_SUFFIX : SUFFIX), parentPath, provider, layer );
+            this.gzipped = gzipped;
         }
 
 
@@ -141,19 +126,16 @@ public class GeoJsonContentProvider
         }
 
 
+        /**
+         * The length of the exported file, or null if it was not generated yet.
+         */
         public Long getContentLength() {
-            if (lastException != null) {
-                log.warn( "", lastException );
-                return null;
-            }
-            else {
-                return (long)content.length;
-            }
+            return ExportCache.instance().length( getLayer(), gzipped ? GZ_SUFFIX : SUFFIX );
         }
 
 
         public String getContentType( String accepts ) {
-            return "application/json";
+            return gzipped ? "application/gzip" : "application/json";
         }
 
 
@@ -163,19 +145,37 @@ public class GeoJsonContentProvider
 
 
         public Date getModifiedDate() {
-            return modified;
+            return new Date( ExportCache.instance().version( getLayer() ) );
         }
 
 
         public void sendContent( final OutputStream out, Range range, Map<String, String> params, String contentType )
         throws IOException, BadRequestException {
             log.debug( "range: " + range + ", params: " + params + ", contentType: " + contentType );
-            
-            if (lastException != null) {
-                log.warn( "", lastException );
+            try {
+                ExportCache cache = ExportCache.instance();
+                File json = cache.get( getLayer(), SUFFIX, fout -> {
+                    PipelineFeatureSource fs = PipelineFeatureSource.forLayer( getLayer(), false );
+
+                    FeatureJSON encoder = new FeatureJSON();
+                    encoder.setEncodeFeatureBounds( false );
+                    encoder.setEncodeFeatureCollectionBounds( false );
+                    encoder.setEncodeFeatureCollectionCRS( false );
+                    encoder.setEncodeFeatureCRS( false );
+                    // writes one feature after the other
+                    encoder.writeFeatureCollection( fs.getFeatures(), fout );
+                });
+                // not inside the generation of the json file, which would nest the locks
+                File f = !gzipped ? json : cache.get( getLayer(), GZ_SUFFIX, fout -> {
+                    try (GZIPOutputStream gzout = new GZIPOutputStream( fout, 64 * 1024 )) {
+                        FileUtils.copyFile( json, gzout );
+                    }
+                });
+                ExportCache.send( f, range, out );
             }
-            else {
-                out.write( content );
+            catch (IOException e) {
+                log.warn( "", e );
+                throw e;
             }
         }
 
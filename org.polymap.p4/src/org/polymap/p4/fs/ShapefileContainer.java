@@ -22,7 +22,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import java.io.File;
@@ -32,6 +33,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.ParseException;
 
@@ -43,9 +45,9 @@ import org.geotools.data.shapefile.ShapefileDataStoreFactory;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureCollections;
+import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.opengis.feature.Feature;
-import org.opengis.feature.FeatureVisitor;
 import org.opengis.feature.Property;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -53,15 +55,19 @@ import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.feature.type.Name;
 import org.opengis.filter.FilterFactory;
-import org.opengis.filter.Id;
 import org.opengis.filter.identity.Identifier;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.Path;
@@ -71,6 +77,7 @@ import org.polymap.core.data.FeatureStateTracker;
 import org.polymap.core.data.FeatureStateListener;
 import org.polymap.core.data.PipelineFeatureSource;
 import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.Timer;
 import org.polymap.core.runtime.UIJob;
 import org.polymap.core.runtime.entity.EntityStateEvent;
 import org.polymap.core.runtime.entity.EntityStateTracker;
@@ -95,8 +102,15 @@ class ShapefileContainer
     
     public static final long        UPDATE_JOB_DELAY = 5000;
     
+    /** The running {@link IndexJob}s of the shared exports. */
+    private static final ConcurrentMap<File,IndexJob> indexJobs = new ConcurrentHashMap();
+    
+    /** The shared export of the layer, or the private copy if {@link #privateCopy}. */
     File                            file;
     
+    /** True if {@link #file} is the copy of the user that writes the shapefile. */
+    boolean                         privateCopy;
+    
     /** The exception from last shapefile creation, or null if ok. */
     Exception                       exception;
     
@@ -146,11 +160,15 @@ class ShapefileContainer
             lock.writeLock().lock();
 
             if (file != null) {
-                for (String fileSuffix : ShapefileGenerator.FILE_SUFFIXES) {
-                    File f = resolveFile( fileSuffix );
-                    FileUtils.deleteQuietly( f );
+                // the shared export is outdated by the commit of the layer
+                if (privateCopy) {
+                    for (String fileSuffix : ShapefileGenerator.FILE_SUFFIXES) {
+                        File f = resolveFile( fileSuffix );
+                        FileUtils.deleteQuietly( f );
+                    }
                 }
                 file = null;
+                privateCopy = false;
                 exception = null;
                 lastModified = new Date();
             }
@@ -164,8 +182,8 @@ class ShapefileContainer
     public OutputStream getOutputStream( String fileSuffix )
     throws IOException {
         // FIXME locking?
-        File f = Path.fromOSString( file.getAbsolutePath() )
-                .removeFileExtension().addFileExtension( fileSuffix ).toFile();
+        copyOnWrite();
+        File f = resolveFile( fileSuffix );
         
         // check updateJob
         if (updateJob != null) {
@@ -193,9 +211,7 @@ class ShapefileContainer
         getFileSize( fileSuffix );
         
         if (exception == null) {
-            File f = Path.fromOSString( file.getAbsolutePath() )
-                    .removeFileExtension().addFileExtension( fileSuffix ).toFile();
-            return new FileInputStream( f );
+            return new FileInputStream( resolveFile( fileSuffix ) );
         }
         else {
             throw (IOException)exception;
@@ -203,14 +219,29 @@ class ShapefileContainer
     }
     
 
+    /**
+     * Returns the size of the given file of the shapefile. Generates the shared
+     * export of the layer, if it does not exist yet. The spatial index is created
+     * in background; the size of the index files is returned when the index is
+     * done.
+     */
     public synchronized Long getFileSize( String fileSuffix ) {
-        if (file == null) {
+        // shared export outdated by a commit of another session
+        if (file == null || !privateCopy && !file.exists()) {
             try {
                 exception = null;
 
-                ShapefileGenerator generator = new ShapefileGenerator( layer, site );
-                file = generator.writeShapefile( layerFs.getFeatures() );
-
+                file = ExportCache.instance().getFiles( layer, "shp", f -> {
+                    new ShapefileGenerator( f ).writeShapefile( layerFs.getFeatures(), false );
+                });
+                privateCopy = false;
+                if (!resolveFile( "qix" ).exists()) {
+                    indexJobs.computeIfAbsent( file, f -> {
+                        IndexJob job = new IndexJob( f );
+                        job.schedule();
+                        return job;
+                    });
+                }
                 lastModified = new Date();
             }
             catch (Exception e) {
@@ -219,12 +250,57 @@ class ShapefileContainer
             }
         }
         if (exception == null) {
+            if (fileSuffix.equals( "qix" ) || fileSuffix.equals( "fix" )) {
+                awaitIndex();
+            }
             return resolveFile( fileSuffix ).length();
         }
         else {
             return null;
         }
     }
+
+
+    /**
+     * Waits for the {@link IndexJob} of the current {@link #file}, if any.
+     */
+    protected void awaitIndex() {
+        Job job = indexJobs.get( file );
+        if (job != null) {
+            try {
+                job.join();
+            }
+            catch (InterruptedException e) {
+                log.warn( "Interrupted while waiting for spatial index: " + file );
+            }
+        }
+    }
+
+
+    /**
+     * Copies the shared export into the directory of the user before the user
+     * writes the shapefile, so that the export of other users is not touched.
+     */
+    protected synchronized void copyOnWrite() throws IOException {
+        getFileSize( "shp" );
+        if (exception != null) {
+            throw exception instanceof IOException ? (IOException)exception : new IOException( exception );
+        }
+        if (!privateCopy) {
+            awaitIndex();
+            File copy = ShapefileGenerator.privateFile( layer, site );
+            log.info( "copy on write: " + copy );
+            for (String fileSuffix : ShapefileGenerator.FILE_SUFFIXES) {
+                File src = resolveFile( fileSuffix );
+                if (src.exists()) {
+                    FileUtils.copyFile( src, Path.fromOSString( copy.getAbsolutePath() )
+                            .removeFileExtension().addFileExtension( fileSuffix ).toFile() );
+                }
+            }
+            file = copy;
+            privateCopy = true;
+        }
+    }
     
 
     protected File resolveFile( String fileSuffix ) {
@@ -233,6 +309,35 @@ class ShapefileContainer
     }
     
     
+    /**
+     * Creates the spatial index of a shared export, so that .shp and .dbf can be
+     * served while the index is created.
+     */
+    static class IndexJob
+            extends UIJob {
+
+        private File        shapefile;
+
+        public IndexJob( File shapefile ) {
+            super( "ShapefileContainer.IndexJob" );
+            this.shapefile = shapefile;
+            setSystem( true );
+        }
+
+        @Override
+        protected void runWithException( IProgressMonitor monitor ) throws Exception {
+            try {
+                Timer timer = new Timer();
+                ShapefileGenerator.createSpatialIndex( shapefile );
+                log.info( "IndexJob: " + shapefile.getName() + " (" + timer.elapsedTime() + "ms)" );
+            }
+            finally {
+                indexJobs.remove( shapefile );
+            }
+        }
+    }
+
+
     /**
      * Do the update on the underlying layer data store.
      * <ol>
@@ -248,6 +353,11 @@ class ShapefileContainer
         
         private DateFormat  timestampFormat = ShapefileGenerator.timestampFormat();
 
+        private WKBWriter   wkbWriter = new WKBWriter();
+
+        /** The index of {@link ShapefileGenerator#TIMESTAMP_FIELD}, not part of the content hash. */
+        private int         timestampIndex = -1;
+
 
         public UpdateJob() 
         throws IOException {
@@ -295,97 +405,86 @@ class ShapefileContainer
 
                 ShapefileDataStore origDs = shapeFactory.createDataStore( params );
                 final FeatureSource<SimpleFeatureType, SimpleFeature> origFs = origDs.getFeatureSource( typeName );
+                timestampIndex = origFs.getSchema().indexOf( ShapefileGenerator.TIMESTAMP_FIELD );
 
                 // modifications
                 final List<SimpleFeature> added = new ArrayList();
                 final List<SimpleFeature[]> modified = new ArrayList();
-                final List<SimpleFeature> removed = new ArrayList();
+                final Set<Identifier> removed = new HashSet();
 
-                // find added, modified
-                final AtomicInteger newSize = new AtomicInteger( 0 );
+                // hashes of the original features
                 updateException = null;
-                modifiedFs.getFeatures().accepts( new FeatureVisitor() {
-                    public void visit( Feature candidate ) {
-                        if (updateException != null) {
-                            return;
+                Timer timer = new Timer();
+                final Map<String,Long> origHashes = new HashMap( 1024 );
+                try (FeatureIterator<SimpleFeature> it = origFs.getFeatures().features()) {
+                    while (it.hasNext()) {
+                        SimpleFeature orig = it.next();
+                        String id = origFid( orig );
+                        if (id != null) {
+                            origHashes.put( id, contentHash( orig ) );
                         }
-                        newSize.incrementAndGet();
-                        
+                    }
+                }
+                int origSize = origHashes.size();
+
+                // find added, modified
+                final Map<String,SimpleFeature> candidates = new HashMap();
+                SimpleFeatureType schema = origFs.getSchema();
+                try (FeatureIterator<SimpleFeature> it = modifiedFs.getFeatures().features()) {
+                    while (it.hasNext()) {
                         // normalize attribute names
-                        SimpleFeatureType schema = origFs.getSchema();
-                        candidate = normalizeAttributeNames( candidate, schema );
-                        
-                        try {
-                            Id fid = ff.id( Collections.singleton( candidate.getIdentifier() ) );
-                            Object[] orig = origFs.getFeatures( fid ).toArray();
-                            
-                            if (orig.length == 0) {
-                                log.info( "   Feature has been added: " + candidate.getIdentifier() );
-                                added.add( (SimpleFeature)candidate );
-                            }
-                            else if (orig.length == 1
-                                    && isFeatureModified( (SimpleFeature)candidate, (SimpleFeature)orig[0] )) {
-                                log.info( "   Feature has been modified: " + candidate.getIdentifier() );
-                                
-                                // FIXME check timestamps; this was done to find out if the features received from client
-                                // are based on the last created shapefile, otherwise we cannot figure what properties
-                                // the client has actually changed; however, see ShapefileGenerator for correct
-                                // creation of timestamps
-//                                if (!isSameTimestamp( (SimpleFeature)candidate, (SimpleFeature)orig[0] )) {
-//                                    throw new IllegalStateException( "Timestamps of features do not match." );
-//                                }
-                                
-                                // update feature timestamp (check concurrent modifications within this JVM)
-                                //EntityHandle key = FeatureStateTracker.featureHandle( (Feature)orig[0] );
-                                String id = (String)((SimpleFeature)candidate).getAttribute( ShapefileGenerator.ORIG_FID_FIELD );
-                                String type = FeatureStateTracker.MODEL_TYPE_PREFIX + layerFs.getSchema().getName().getLocalPart();
-                                EntityHandle key = EntityHandle.instance( id, type );
-
-                                Long timestamp = timestamp( (SimpleFeature)candidate );
-                                updater.checkSet( key, timestamp, null );
-                                
-                                modified.add( new SimpleFeature[] { (SimpleFeature)candidate, (SimpleFeature)orig[0] } );
-                            }
-                        }
-                        catch (IOException e) {
-                            log.warn( "", e );
+                        SimpleFeature candidate = (SimpleFeature)normalizeAttributeNames( it.next(), schema );
+                        String id = origFid( candidate );
+                        Long origHash = id != null ? origHashes.remove( id ) : null;
+                        if (origHash == null) {
+                            log.info( "   Feature has been added: " + candidate.getIdentifier() );
+                            added.add( candidate );
                         }
-                        catch (Exception e) {
-                            updateException = e;
-                            log.warn( updateException.getLocalizedMessage(), updateException );
+                        else if (origHash.longValue() != contentHash( candidate )) {
+                            log.info( "   Feature has been modified: " + candidate.getIdentifier() );
+                            
+                            // FIXME check timestamps; this was done to find out if the features received from client
+                            // are based on the last created shapefile, otherwise we cannot figure what properties
+                            // the client has actually changed; however, see ShapefileGenerator for correct
+                            // creation of timestamps
+//                            if (!isSameTimestamp( candidate, orig )) {
+//                                throw new IllegalStateException( "Timestamps of features do not match." );
+//                            }
+                            
+                            // update feature timestamp (check concurrent modifications within this JVM)
+                            String type = FeatureStateTracker.MODEL_TYPE_PREFIX + layerFs.getSchema().getName().getLocalPart();
+                            EntityHandle key = EntityHandle.instance( id, type );
+                            updater.checkSet( key, timestamp( candidate ), null );
+                            
+                            candidates.put( id, candidate );
                         }
                     }
-                }, null );
+                }
 
-                // throw exception from FeatureVisitor
-                if (updateException != null) {
-                    throw updateException;
+                // find removed: original features not seen in the modified shapefile
+                for (String id : origHashes.keySet()) {
+                    log.info( "   Feature has been removed: " + id );
+                    removed.add( ff.featureId( id ) );
                 }
-                
-                // find removed
-                FeatureCollection origFeatures = origFs.getFeatures();
-                // check only if necessary
-                if (newSize.get() != (origFeatures.size() - added.size())) {
-                    origFeatures.accepts( new FeatureVisitor() {
-                        public void visit( Feature candidate ) {
-                            try {
-                                Id fid = ff.id( Collections.singleton( candidate.getIdentifier() ) );
-                                Object[] found = modifiedFs.getFeatures( fid ).toArray();
-
-                                if (found.length == 0) {
-                                    log.info( "   Feature has been removed: " + candidate.getIdentifier() );
-                                    removed.add( (SimpleFeature)candidate );
-                                }
-                            }
-                            catch (IOException e) {
-                                log.warn( "", e );
+
+                // original of the modified features; needed to find the modified properties
+                if (!candidates.isEmpty()) {
+                    try (FeatureIterator<SimpleFeature> it = origFs.getFeatures().features()) {
+                        while (it.hasNext()) {
+                            SimpleFeature orig = it.next();
+                            SimpleFeature candidate = candidates.get( origFid( orig ) );
+                            if (candidate != null) {
+                                modified.add( new SimpleFeature[] { candidate, orig } );
                             }
                         }
-                    }, null );
+                    }
                 }
+                log.info( "UpdateJob: " + origSize + " features, added: " + added.size() + ", modified: " + modified.size() 
+                        + ", removed: " + removed.size() + " (" + timer.elapsedTime() + "ms)" );
                 
                 // write own modifications
                 Transaction tx = new DefaultTransaction( layer.getLabel() + "-write-back" );
+                layerFs.setTransaction( tx );
                 try {
                     // added
                     if (!added.isEmpty()) {
@@ -396,11 +495,7 @@ class ShapefileContainer
                 
                     // removed
                     if (!removed.isEmpty()) {
-                        Set<Identifier> removeIds = new HashSet();
-                        for (SimpleFeature feature : removed) {
-                            removeIds.add( feature.getIdentifier() );
-                        }
-                        layerFs.removeFeatures( ff.id( removeIds ) );
+                        layerFs.removeFeatures( ff.id( removed ) );
                     }
 
                     // modified
@@ -444,10 +539,12 @@ class ShapefileContainer
                 }
                 catch (Exception e) {
                     log.warn( "    Transaction rolled back!" );
+                    updateException = e;
                     tx.rollback();
                     throw e;
                 }
                 finally {
+                    layerFs.setTransaction( Transaction.AUTO_COMMIT );
                     tx.close();
                 }
                 
@@ -479,20 +576,39 @@ class ShapefileContainer
         }
         
 
-        private boolean isFeatureModified( SimpleFeature feature, SimpleFeature original ) 
-        throws IOException {
-            //SimpleFeatureType schema = original.getType(); 
-            for (int i=0; i<original.getAttributeCount(); i++) {
-                
-                // asuming that order has not changed (but names may have)
-                Object value1 = feature.getAttribute( i );
-                Object value2 = original.getAttribute( i );
-                
-                if (isPropertyModified( value1, value2 )) {
-                    return true;
+        /**
+         * The id of the feature in the layer, or null if the feature was added by
+         * the client.
+         */
+        private String origFid( SimpleFeature feature ) {
+            return StringUtils.trimToNull( (String)feature.getAttribute( ShapefileGenerator.ORIG_FID_FIELD ) );
+        }
+
+
+        /**
+         * Hash of the attribute values of the given feature, except the timestamp.
+         * Geometries are hashed as WKB, so that equal hashes signal
+         * {@link Geometry#equalsExact(Geometry)} geometries.
+         */
+        private long contentHash( SimpleFeature feature ) {
+            Hasher hasher = Hashing.murmur3_128().newHasher();
+            // asuming that order has not changed (but names may have)
+            for (int i=0; i<feature.getAttributeCount(); i++) {
+                if (i == timestampIndex) {
+                    continue;
+                }
+                Object value = feature.getAttribute( i );
+                if (value == null) {
+                    hasher.putByte( (byte)0 );
+                }
+                else if (value instanceof Geometry) {
+                    hasher.putByte( (byte)1 ).putBytes( wkbWriter.write( (Geometry)value ) );
+                }
+                else {
+                    hasher.putByte( (byte)2 ).putString( value.toString(), StandardCharsets.UTF_8 );
                 }
             }
-            return false;
+            return hasher.hash().asLong();
         }
 
         
@@ -90,9 +90,11 @@ class ShapefileGenerator {
 
 
     /**
-     * Create a temporary file in {@link FsPlugin#getCacheDir()} to store the new shapefile in.
+     * The shapefile of the given layer in a directory of the user of the given
+     * site, in {@link FsPlugin#getCacheDir()}. Used for the copy of a user that
+     * writes the shapefile.
      */
-    public ShapefileGenerator( ILayer layer, IContentSite site ) {
+    public static File privateFile( ILayer layer, IContentSite site ) {
         File tmpDir = FsPlugin.getDefault().getCacheDir();
         String basename = FilenameUtils.normalize( layer.getLabel() );
         String projectname = FilenameUtils.normalize( layer.getMap().getLabel() );
@@ -101,11 +103,41 @@ class ShapefileGenerator {
         File basedir = new File( tmpDir, username + "@" + projectname + "@" + basename );
         basedir.mkdirs();
         
-        this.newFile = new File( basedir, basename + ".shp" );
+        return new File( basedir, basename + ".shp" );
+    }
+
+
+    /**
+     * Creates the spatial index (.qix) of the given shapefile.
+     */
+    public static void createSpatialIndex( File shapefile ) throws IOException {
+        Map<String,Serializable> params = new HashMap<String,Serializable>();
+        params.put( "url", shapefile.toURI().toURL() );
+        params.put( "create spatial index", Boolean.TRUE );
+
+        ShapefileDataStore shapeDs = (ShapefileDataStore)new ShapefileDataStoreFactory().createDataStore( params );
+        try {
+            shapeDs.createSpatialIndex( true );
+        }
+        finally {
+            shapeDs.dispose();
+        }
     }
 
 
     public File writeShapefile( FeatureCollection<SimpleFeatureType,SimpleFeature> src )
+    throws IOException {
+        return writeShapefile( src, true );
+    }
+
+
+    /**
+     * Writes the given features into the shapefile.
+     *
+     * @param spatialIndex False specifies that the spatial index is not created
+     *        while writing; see {@link #createSpatialIndex(File)}.
+     */
+    public File writeShapefile( FeatureCollection<SimpleFeatureType,SimpleFeature> src, boolean spatialIndex )
     throws IOException {
         SimpleFeatureType srcSchema = src.getSchema();
         
@@ -140,7 +172,7 @@ class ShapefileGenerator {
 
         Map<String,Serializable> params = new HashMap<String,Serializable>();
         params.put( "url", newFile.toURI().toURL() );
-        params.put( "create spatial index", Boolean.TRUE );
+        params.put( "create spatial index", spatialIndex );
 
         ShapefileDataStore shapeDs = (ShapefileDataStore)shapeFactory.createNewDataStore( params );
         shapeDs.createSchema( shapeSchema );
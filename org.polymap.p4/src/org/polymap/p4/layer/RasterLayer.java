@@ -20,9 +20,19 @@ import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import java.io.IOException;
+
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.coverage.grid.io.OverviewPolicy;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.coverage.grid.GridCoverage;
+import org.opengis.coverage.grid.GridEnvelope;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -41,6 +51,12 @@ import org.polymap.p4.catalog.AllResolver;
 /**
  * Connection to the data source of layers connected to {@link GridCoverage} (raster data).
  * There is one instance per layer per session, retrieved via {@link #of(ILayer)}.
+ * <p/>
+ * The coverage is never read as a whole. {@link #gridCoverage()} reads an overview
+ * via the overviews and tiles of the reader, which is cached in the JVM wide
+ * {@link RasterOverviewCache}, so sessions styling the same raster share the decoded
+ * data. Rendering does not go through this class but reads via
+ * {@link #gridCoverageReader()}.
  *
  * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
  */
@@ -48,6 +64,9 @@ public class RasterLayer {
     
     private static final Log log = LogFactory.getLog( RasterLayer.class );
 
+    /** The max width/height of the grid returned by {@link #gridCoverage()}. */
+    public static final int         OVERVIEW_SIZE = 1024;
+
     /**
      * Waits for the {@link RasterLayer} of the given {@link ILayer}.
      * <p/>
@@ -111,7 +130,7 @@ public class RasterLayer {
     
     private GridCoverage2DReader        gridCoverageReader;
 
-    private GridCoverage2D              gridCoverage;
+    private String                      resourceName;
     
     
     protected RasterLayer( ILayer layer ) {
@@ -129,7 +148,10 @@ public class RasterLayer {
 
         if (dsd.service.get() instanceof GridCoverage2DReader) { 
             gridCoverageReader = (GridCoverage2DReader)dsd.service.get();
-            gridCoverage = gridCoverageReader.read( dsd.resourceName.get(), null );
+            resourceName = dsd.resourceName.get();
+            
+            // warm the cache, callers of of() get the overview without I/O
+            gridCoverage();
         
 //            // XXX create pipeline for it
 //            Pipeline pipeline = P4PipelineIncubator.forLayer( layer )
@@ -147,8 +169,55 @@ public class RasterLayer {
     }
 
 
-    public GridCoverage2D gridCoverage() {
-        return gridCoverage;
+    /**
+     * An overview of the entire coverage, at most {@link #OVERVIEW_SIZE} pixels
+     * wide or high. Sufficient to compute statistics and styles from.
+     * <p/>
+     * Might perform I/O if the overview was evicted from the cache. Do not call
+     * from the display thread.
+     *
+     * @throws IOException
+     */
+    public GridCoverage2D gridCoverage() throws IOException {
+        ReferencedEnvelope envelope = new ReferencedEnvelope( gridCoverageReader.getOriginalEnvelope( resourceName ) );
+        GridEnvelope range = gridCoverageReader.getOriginalGridRange( resourceName );
+        int width = range.getSpan( 0 ), height = range.getSpan( 1 );
+        double scale = Math.min( 1d, (double)OVERVIEW_SIZE / Math.max( width, height ) );
+        return read( envelope, 
+                Math.max( 1, (int)Math.round( width * scale ) ), 
+                Math.max( 1, (int)Math.round( height * scale ) ) );
+    }
+
+
+    /**
+     * Reads the overview of the given region into a grid of the given size. The
+     * reader chooses the best matching overview and decodes just the tiles
+     * covering the region. The pixels are decoded immediately, so that the cache
+     * holds what it is weighted by. The result is shared with other sessions via
+     * {@link RasterOverviewCache}.
+     *
+     * @param envelope The region to read, in the CRS of the coverage.
+     * @param width The width of the target grid.
+     * @param height The height of the target grid.
+     * @throws IOException
+     */
+    protected GridCoverage2D read( ReferencedEnvelope envelope, int width, int height ) throws IOException {
+        assert isValid();
+        RasterOverviewCache.Key key = new RasterOverviewCache.Key( 
+                (String)layer.id(), layer.resourceIdentifier.get(), envelope, width, height );
+        return RasterOverviewCache.instance().get( key, () -> {
+            log.info( "read(): " + resourceName + ", " + width + "x" + height + ", " + envelope );
+            ParameterValue<GridGeometry2D> gridGeometry = AbstractGridFormat.READ_GRIDGEOMETRY2D.createValue();
+            gridGeometry.setValue( new GridGeometry2D( new GridEnvelope2D( 0, 0, width, height ), envelope ) );
+            ParameterValue<OverviewPolicy> overviewPolicy = AbstractGridFormat.OVERVIEW_POLICY.createValue();
+            overviewPolicy.setValue( OverviewPolicy.QUALITY );
+            // no deferred read: a cached RenderedOp would decode again on every access
+            ParameterValue<Boolean> imageRead = AbstractGridFormat.USE_JAI_IMAGEREAD.createValue();
+            imageRead.setValue( false );
+
+            return gridCoverageReader.read( resourceName, 
+                    new GeneralParameterValue[] {gridGeometry, overviewPolicy, imageRead} );
+        });
     }
 
 
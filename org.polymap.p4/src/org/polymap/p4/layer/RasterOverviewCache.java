@@ -0,0 +1,179 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
+
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.opengis.geometry.Envelope;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.polymap.core.project.ProjectNode.ProjectNodeCommittedEvent;
+import org.polymap.core.runtime.event.Event;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
+
+/**
+ * JVM wide cache of the overviews read by {@link RasterLayer#gridCoverage()},
+ * shared by all sessions. This is not a tile cache: there is one overview per
+ * layer, which is used to compute statistics and styles; rendering reads the
+ * coverage directly. The cache is bounded by the size of the decoded pixels, the
+ * least recently used overviews are evicted first. The overview of a layer is
+ * dropped on {@link ProjectNodeCommittedEvent} of the layer, which might have
+ * changed its resource.
+ * <p/>
+ * The max size in MB is set via system property
+ * <code>org.polymap.p4.rasterCacheSize</code>, defaults to 1/8 of the max heap.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class RasterOverviewCache {
+
+    private static final Log log = LogFactory.getLog( RasterOverviewCache.class );
+
+    public static final long        MAX_BYTES = Long.getLong( "org.polymap.p4.rasterCacheSize",
+            Runtime.getRuntime().maxMemory() / 8 / 1024 / 1024 ) * 1024 * 1024;
+
+    private static final RasterOverviewCache instance = new RasterOverviewCache();
+
+    public static RasterOverviewCache instance() {
+        return instance;
+    }
+
+
+    /**
+     * The key of an overview: the layer, its resource, the envelope and the size of
+     * the target grid.
+     */
+    public static class Key {
+
+        private String      layer;
+
+        private String      resource;
+
+        private Envelope    envelope;
+
+        private int         width, height;
+
+        public Key( String layer, String resource, Envelope envelope, int width, int height ) {
+            this.layer = layer;
+            this.resource = resource;
+            this.envelope = envelope;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash( layer, resource, envelope, width, height );
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if (this == obj) {
+                return true;
+            }
+            else if (obj instanceof Key) {
+                Key rhs = (Key)obj;
+                return layer.equals( rhs.layer ) && resource.equals( rhs.resource ) 
+                        && Objects.equals( envelope, rhs.envelope )
+                        && width == rhs.width && height == rhs.height;
+            }
+            return false;
+        }
+    }
+
+
+    // instance *******************************************
+
+    private Cache<Key,GridCoverage2D>   cache;
+
+    private ProjectListener             projectListener = new ProjectListener();
+
+
+    protected RasterOverviewCache() {
+        log.info( "Max size: " + MAX_BYTES / 1024 / 1024 + "MB" );
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight( MAX_BYTES )
+                .weigher( (Key key, GridCoverage2D coverage) -> weight( coverage ) )
+                .concurrencyLevel( 8 )
+                .build();
+        EventManager.instance().subscribe( projectListener, ifType( ProjectNodeCommittedEvent.class, ev ->
+                ev.getEntityId() != null ) );
+    }
+
+
+    /**
+     * Returns the cached overview for the given key, or reads it via the given
+     * loader. Concurrent requests of the same key wait for one read.
+     */
+    public GridCoverage2D get( Key key, Callable<GridCoverage2D> loader ) throws IOException {
+        try {
+            return cache.get( key, loader );
+        }
+        catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf( e.getCause(), IOException.class );
+            throw Throwables.propagate( e.getCause() );
+        }
+    }
+
+
+    /**
+     * Removes the overview of the given layer.
+     */
+    public void invalidate( String layer ) {
+        cache.asMap().keySet().removeIf( key -> key.layer.equals( layer ) );
+    }
+
+
+    /**
+     * The size of the decoded pixels of the given coverage, in bytes (saturated
+     * to int).
+     */
+    protected static int weight( GridCoverage2D coverage ) {
+        RenderedImage image = coverage.getRenderedImage();
+        SampleModel sm = image.getSampleModel();
+        long bytes = (long)image.getWidth() * image.getHeight() * sm.getNumBands()
+                * DataBuffer.getDataTypeSize( sm.getDataType() ) / 8;
+        return (int)Math.min( Integer.MAX_VALUE, bytes );
+    }
+
+
+    /**
+     * Drops the overview of a layer that has been changed.
+     */
+    class ProjectListener {
+        @EventHandler( scope=Event.Scope.JVM )
+        protected void onCommit( ProjectNodeCommittedEvent ev ) {
+            invalidate( ev.getEntityId().toString() );
+        }
+    }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import javax.imageio.ImageIO;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.util.concurrent.Striped;
+
+import org.polymap.core.runtime.Timer;
+
+import org.polymap.p4.map.TileCache.TileKey;
+
+/**
+ * Renders a block of {@link #SIZE} x {@link #SIZE} tiles with one GetMap request,
+ * slices the result and stores all tiles in the {@link TileCache}. This needs just
+ * one feature query and one render pass for the entire block and labels are
+ * placed consistently inside the block.
+ * <p/>
+ * The tile grid is supposed to be aligned to coordinate 0/0 (as the grids of
+ * OpenLayers are) and the y axis is supposed to point upwards (WMS 1.1.1). Tiles
+ * of other grids are not metatiled but rendered one by one by the caller. The
+ * size of the block is set via system property
+ * <code>org.polymap.p4.metatileSize</code>, defaults to 4.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class MetaTiler {
+
+    private static final Log log = LogFactory.getLog( MetaTiler.class );
+
+    public static final int         SIZE = Integer.getInteger( "org.polymap.p4.metatileSize", 4 );
+
+    /** Concurrent requests of tiles of the same block wait for one render. */
+    private static final Striped<Lock> locks = Striped.lock( 64 );
+
+
+    /**
+     * Renders a GetMap request, usually <code>super.service()</code> of the WMS
+     * servlet.
+     */
+    @FunctionalInterface
+    public interface Renderer {
+        public void render( HttpServletRequest req, HttpServletResponse resp ) throws ServletException, IOException;
+    }
+
+
+    /**
+     * Renders the block containing the requested tile, if not yet done by
+     * another thread, and stores all of its tiles in the cache.
+     *
+     * @return The requested tile, or {@link Optional#empty()} if the tile is not
+     *         aligned to the 0/0 grid or the block could not be rendered or sliced;
+     *         the caller should render the tile itself then.
+     */
+    public static Optional<byte[]> render( HttpServletRequest req, HttpServletResponse resp, TileKey key, 
+            TileCache cache, Renderer renderer ) throws ServletException, IOException {
+        double w = key.bbox[2] - key.bbox[0];
+        double h = key.bbox[3] - key.bbox[1];
+        long ix = Math.round( key.bbox[0] / w );
+        long iy = Math.round( key.bbox[1] / h );
+        // the slices must match the tiles requested by the client to 1/100 pixel
+        double tolerance = Math.min( w / key.width, h / key.height ) / 100;
+        if (Math.abs( key.bbox[0] - ix * w ) > tolerance || Math.abs( key.bbox[1] - iy * h ) > tolerance) {
+            log.debug( "Tile not aligned to 0/0 grid: " + key.path() );
+            return Optional.empty();
+        }
+        long mx = Math.floorDiv( ix, SIZE ) * SIZE;
+        long my = Math.floorDiv( iy, SIZE ) * SIZE;
+
+        Lock lock = locks.get( key.layerId + key.styleId + key.srs + key.width + key.format + mx + "/" + my + "/" + w );
+        lock.lock();
+        try {
+            Optional<byte[]> cached = cache.get( key );
+            if (cached.isPresent()) {
+                return cached;
+            }
+            Timer timer = new Timer();
+            // same layer and style for all tiles of the block
+            long stamp = cache.stamp( key );
+            double[] bbox = {mx * w, my * h, (mx + SIZE) * w, (my + SIZE) * h};
+            BufferedResponse buffer = new BufferedResponse( resp );
+            renderer.render( new MetaTileRequest( req, bbox, key.width * SIZE, key.height * SIZE ), buffer );
+            BufferedImage image = buffer.image();
+            if (image == null || image.getWidth() != key.width * SIZE || image.getHeight() != key.height * SIZE) {
+                log.warn( "Metatile not rendered: " + key.path() );
+                return Optional.empty();
+            }
+
+            String formatName = key.format.split( "[/;]" )[1].trim();
+            byte[] result = null;
+            for (int i = 0; i < SIZE; i++) {
+                for (int j = 0; j < SIZE; j++) {
+                    // image rows start at the top, y coordinates at the bottom
+                    BufferedImage tile = image.getSubimage( i * key.width, (SIZE - 1 - j) * key.height, key.width, key.height );
+                    ByteArrayOutputStream out = new ByteArrayOutputStream( 32 * 1024 );
+                    if (!ImageIO.write( tile, formatName, out )) {
+                        log.warn( "No image writer for: " + key.format );
+                        return Optional.empty();
+                    }
+                    double[] tileBbox = {(mx + i) * w, (my + j) * h, (mx + i + 1) * w, (my + j + 1) * h};
+                    cache.put( new TileKey( key.layerId, key.styleId, key.srs, tileBbox, key.width, key.height, key.format ), out.toByteArray(), stamp );
+                    if (mx + i == ix && my + j == iy) {
+                        result = out.toByteArray();
+                    }
+                }
+            }
+            log.debug( "Metatile: " + SIZE + "x" + SIZE + " (" + timer.elapsedTime() + "ms)" );
+            return Optional.ofNullable( result );
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Replaces BBOX, WIDTH and HEIGHT of a GetMap request.
+     */
+    protected static class MetaTileRequest
+            extends HttpServletRequestWrapper {
+
+        private Map<String,String[]>    params = new HashMap();
+
+        public MetaTileRequest( HttpServletRequest request, double[] bbox, int width, int height ) {
+            super( request );
+            for (Map.Entry<String,String[]> entry : request.getParameterMap().entrySet()) {
+                String name = entry.getKey();
+                if (name.equalsIgnoreCase( "BBOX" )) {
+                    params.put( name, new String[] {bbox[0] + "," + bbox[1] + "," + bbox[2] + "," + bbox[3]} );
+                }
+                else if (name.equalsIgnoreCase( "WIDTH" )) {
+                    params.put( name, new String[] {String.valueOf( width )} );
+                }
+                else if (name.equalsIgnoreCase( "HEIGHT" )) {
+                    params.put( name, new String[] {String.valueOf( height )} );
+                }
+                else {
+                    params.put( name, entry.getValue() );
+                }
+            }
+        }
+
+        @Override
+        public String getParameter( String name ) {
+            String[] values = params.get( name );
+            return values != null && values.length > 0 ? values[0] : null;
+        }
+
+        @Override
+        public String[] getParameterValues( String name ) {
+            return params.get( name );
+        }
+
+        @Override
+        public Map<String,String[]> getParameterMap() {
+            return Collections.unmodifiableMap( params );
+        }
+
+        @Override
+        public Enumeration<String> getParameterNames() {
+            return Collections.enumeration( params.keySet() );
+        }
+    }
+
+
+    /**
+     * Keeps the content and headers of the metatile response instead of sending
+     * them to the client.
+     */
+    protected static class BufferedResponse
+            extends HttpServletResponseWrapper {
+
+        private ByteArrayOutputStream   buffer = new ByteArrayOutputStream( 256 * 1024 );
+
+        private int                     status = SC_OK;
+
+        private String                  contentType;
+
+        public BufferedResponse( HttpServletResponse response ) {
+            super( response );
+        }
+
+        /**
+         * The rendered image, or null if the response is not an image.
+         */
+        public BufferedImage image() throws IOException {
+            return status == SC_OK && contentType != null && contentType.startsWith( "image/" )
+                    ? ImageIO.read( new ByteArrayInputStream( buffer.toByteArray() ) ) : null;
+        }
+
+        @Override
+        public void setStatus( int sc ) {
+            status = sc;
+        }
+
+        @Override
+        public void sendError( int sc ) {
+            status = sc;
+        }
+
+        @Override
+        public void sendError( int sc, String msg ) {
+            status = sc;
+            log.warn( "Metatile: " + sc + " " + msg );
+        }
+
+        @Override
+        public void setContentType( String type ) {
+            contentType = type;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public void setContentLength( int len ) {
+        }
+
+        @Override
+        public void setContentLengthLong( long len ) {
+        }
+
+        @Override
+        public void setIntHeader( String name, int value ) {
+        }
+
+        @Override
+        public void addIntHeader( String name, int value ) {
+        }
+
+        @Override
+        public void flushBuffer() {
+        }
+
+        @Override
+        public void reset() {
+            buffer.reset();
+        }
+
+        @Override
+        public void resetBuffer() {
+            buffer.reset();
+        }
+
+        @Override
+        public void setHeader( String name, String value ) {
+        }
+
+        @Override
+        public void addHeader( String name, String value ) {
+        }
+
+        @Override
+        public void setDateHeader( String name, long date ) {
+        }
+
+        @Override
+        public void addDateHeader( String name, long date ) {
+        }
+
+        @Override
+        public void setCharacterEncoding( String charset ) {
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return false;
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            status = SC_INTERNAL_SERVER_ERROR;
+            return new PrintWriter( new StringWriter() );
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return new ServletOutputStream() {
+                @Override
+                public void write( int b ) {
+                    buffer.write( b );
+                }
+                @Override
+                public void write( byte[] b, int off, int len ) {
+                    buffer.write( b, off, len );
+                }
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+                @Override
+                public void setWriteListener( WriteListener listener ) {
+                    // always ready: writing is possible right away
+                    try {
+                        listener.onWritePossible();
+                    }
+                    catch (IOException e) {
+                        listener.onError( e );
+                    }
+                }
+            };
+        }
+    }
+
+}
@@ -14,11 +14,25 @@
  */
 package org.polymap.p4.map;
 
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
 import org.geotools.styling.Style;
+import org.opengis.filter.Filter;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -38,6 +52,9 @@ import org.polymap.core.project.ILayer;
 import org.polymap.p4.P4Plugin;
 import org.polymap.p4.catalog.AllResolver;
 import org.polymap.p4.data.P4PipelineIncubator;
+import org.polymap.p4.data.PipelinePool;
+import org.polymap.p4.layer.FeatureLayer;
+import org.polymap.p4.map.TileCache.TileKey;
 import org.polymap.rap.openlayers.layer.ImageLayer;
 import org.polymap.rap.openlayers.layer.Layer;
 import org.polymap.rap.openlayers.layer.TileLayer;
@@ -48,6 +65,14 @@ import org.polymap.rap.openlayers.source.WMSRequestParams;
 /**
  * Builds OpenLayers layer objects for the {@link MapViewer} of the {@link ProjectMapPanel}
  * out of {@link ILayer} instances.
+ * <p/>
+ * GetMap requests of the WMS servlet are answered from the {@link TileCache} if
+ * possible. Just tiles not yet rendered (or invalidated since) create a pipeline
+ * and hit the data source. Missing tiles are rendered in blocks by the
+ * {@link MetaTiler}. Pipelines are borrowed from the {@link PipelinePool}.
+ * <p/>
+ * The features of the layers are also served as vector tiles by a
+ * {@link VectorTileServer}, see {@link #vectorTileUrl()}.
  *
  * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
  */
@@ -57,6 +82,9 @@ public class ProjectLayerProvider
     private static final Log log = LogFactory.getLog( ProjectLayerProvider.class );
 
     protected String                    alias;
+
+    /** The alias of the {@link VectorTileServer}. */
+    protected String                    mvtAlias;
     
     protected Map<String,ILayer>        layers = new ConcurrentHashMap();
     
@@ -74,7 +102,40 @@ public class ProjectLayerProvider
                 protected Pipeline createPipeline( String layerName ) {
                     return ProjectLayerProvider.this.createPipeline( layerName );
                 }
+                @Override
+                protected void service( HttpServletRequest req, HttpServletResponse resp ) 
+                        throws ServletException, IOException {
+                    Optional<TileKey> key = tileKey( req );
+                    Optional<byte[]> cached = key.flatMap( k -> P4Plugin.tileCache().get( k ) );
+                    try {
+                        if (!cached.isPresent() && key.isPresent() && isMetaTiled( req )) {
+                            cached = MetaTiler.render( req, resp, key.get(), P4Plugin.tileCache(), 
+                                    (mreq, mresp) -> super.service( mreq, mresp ) );
+                        }
+                        if (cached.isPresent()) {
+                            resp.setContentType( key.get().format );
+                            resp.setContentLength( cached.get().length );
+                            resp.getOutputStream().write( cached.get() );
+                        }
+                        else if (key.isPresent()) {
+                            long stamp = P4Plugin.tileCache().stamp( key.get() );
+                            TeeResponse tee = new TeeResponse( resp );
+                            super.service( req, tee );
+                            tee.cached().ifPresent( data -> P4Plugin.tileCache().put( key.get(), data, stamp ) );
+                        }
+                        else {
+                            super.service( req, resp );
+                        }
+                    }
+                    finally {
+                        PipelinePool.instance().releaseThread();
+                    }
+                }
             }, null, null );
+
+            // register vector tile servlet
+            mvtAlias = alias + "/mvt";
+            P4Plugin.instance().httpService().registerServlet( mvtAlias, new VectorTileServer( this ), null, null );
         }
         catch (Exception e) {
             throw new RuntimeException( e );
@@ -82,29 +143,19 @@ public class ProjectLayerProvider
     }
 
     
+    /**
+     * Borrows a pipeline for the given layer from the {@link PipelinePool}. The
+     * pipeline is returned to the pool at the end of the request.
+     */
     protected Pipeline createPipeline( String layerName ) {
         try {
             ILayer layer = layers.get( layerName );
-            
-            // resolve service
-            IProgressMonitor monitor = new NullProgressMonitor();  //.monitorOfThread();
-            DataSourceDescription dsd = AllResolver.instance().connectLayer( layer, monitor )
-                    .orElseThrow( () -> new RuntimeException( "No data source for layer: " + layer ) );
-
-            // feature style
-            Supplier<Style> styleSupplier = () -> {
-                String styleId = layer.styleIdentifier.get();
-                return styleId != null
-                    ? P4Plugin.styleRepo().serializedFeatureStyle( styleId, Style.class ).get()
-                    : DefaultStyles.createAllStyle();
-            };
-
-            // create pipeline for it
-            Pipeline pipeline = P4PipelineIncubator.forLayer( layer )
-                    .addProperty( FeatureRenderProcessor2.STYLE_SUPPLIER, styleSupplier )
-                    .newPipeline( EncodedImageProducer.class, dsd, null );
-            assert pipeline != null && pipeline.length() > 0 : "Unable to build pipeline for: " + dsd;
-            return pipeline;
+            Map<String,Object> props = new HashMap();
+            props.put( PipelinePool.PROP_OWNER, alias );
+            props.put( PipelinePool.PROP_STYLE, layer.styleIdentifier.get() );
+            props.put( "resource", layer.resourceIdentifier.get() );
+            PipelinePool.Key key = new PipelinePool.Key( (String)layer.id(), EncodedImageProducer.class, props );
+            return PipelinePool.instance().borrow( key, () -> buildPipeline( layerName ) );
         }
         catch (Exception e) {
             log.warn( "", e );
@@ -113,6 +164,117 @@ public class ProjectLayerProvider
     }
 
 
+    /**
+     * Creates a new pipeline for the given layer.
+     */
+    protected Pipeline buildPipeline( String layerName ) throws Exception {
+        ILayer layer = layers.get( layerName );
+
+        // resolve service
+        IProgressMonitor monitor = new NullProgressMonitor();  //.monitorOfThread();
+        DataSourceDescription dsd = AllResolver.instance().connectLayer( layer, monitor )
+                .orElseThrow( () -> new RuntimeException( "No data source for layer: " + layer ) );
+        P4Plugin.tileCache().mapResource( (String)layer.id(), dsd.resourceName.get() );
+
+        // feature style
+        Supplier<Style> styleSupplier = () -> {
+            String styleId = layer.styleIdentifier.get();
+            return styleId != null
+                ? P4Plugin.styleRepo().serializedFeatureStyle( styleId, Style.class ).get()
+                : DefaultStyles.createAllStyle();
+        };
+
+        // create pipeline for it
+        Pipeline pipeline = P4PipelineIncubator.forLayer( layer )
+                .addProperty( FeatureRenderProcessor2.STYLE_SUPPLIER, styleSupplier )
+                .newPipeline( EncodedImageProducer.class, dsd, null );
+        assert pipeline != null && pipeline.length() > 0 : "Unable to build pipeline for: " + dsd;
+        return pipeline;
+    }
+
+
+    /**
+     * The key of the tile requested by the given GetMap request.
+     *
+     * @return {@link Optional#empty()} if this is not a GetMap request of a known
+     *         layer.
+     */
+    protected Optional<TileKey> tileKey( HttpServletRequest req ) {
+        if (!"GetMap".equalsIgnoreCase( param( req, "REQUEST" ) )) {
+            return Optional.empty();
+        }
+        ILayer layer = layers.get( String.valueOf( param( req, "LAYERS" ) ) );
+        if (layer == null || !isCacheable( layer )) {
+            return Optional.empty();
+        }
+        String srs = param( req, "SRS" ) != null ? param( req, "SRS" ) : param( req, "CRS" );
+        String bbox = param( req, "BBOX" );
+        String format = param( req, "FORMAT" );
+        if (srs == null || bbox == null || format == null) {
+            return Optional.empty();
+        }
+        try {
+            String[] coords = bbox.split( "," );
+            double[] envelope = new double[4];
+            for (int i = 0; i < 4; i++) {
+                envelope[i] = Double.parseDouble( coords[i] );
+            }
+            return Optional.of( new TileKey( (String)layer.id(), layer.styleIdentifier.get(), srs, envelope,
+                    Integer.parseInt( param( req, "WIDTH" ) ), Integer.parseInt( param( req, "HEIGHT" ) ), format ) );
+        }
+        catch (Exception e) {
+            log.debug( "Invalid GetMap request: " + e );
+            return Optional.empty();
+        }
+    }
+
+
+    /**
+     * True if the tiles of the given layer depend on nothing but the layer, its
+     * style and its data, so that they can be cached and shared by all sessions.
+     * Sub-classes rendering session specific content should override.
+     */
+    protected boolean isCacheable( ILayer layer ) {
+        return true;
+    }
+
+
+    /**
+     * True if the requested tile should be rendered as part of a metatile. Just
+     * WMS 1.1.1 requests have the axis order {@link MetaTiler} expects.
+     */
+    protected boolean isMetaTiled( HttpServletRequest req ) {
+        return MetaTiler.SIZE > 1 && !"1.3.0".equals( param( req, "VERSION" ) );
+    }
+
+
+    /**
+     * The filter of the features served as vector tiles by the
+     * {@link VectorTileServer}.
+     */
+    protected Filter vectorTileFilter( FeatureLayer fl ) throws Exception {
+        return fl.filter();
+    }
+
+
+    /**
+     * The URL of the {@link VectorTileServer}, relative to the URL of the
+     * application. Takes the parameters of a WMS GetMap request.
+     */
+    public String vectorTileUrl() {
+        return "." + mvtAlias;
+    }
+
+
+    /**
+     * WMS parameter names are case insensitive.
+     */
+    protected static String param( HttpServletRequest req, String name ) {
+        String result = req.getParameter( name );
+        return result != null ? result : req.getParameter( name.toLowerCase() );
+    }
+
+
     @Override
     public Layer getLayer( ILayer elm ) {
         String layerName = elm.label.get();
@@ -155,8 +317,13 @@ public class ProjectLayerProvider
 
     @Override
     public void close() {
+        if (mvtAlias != null) {
+            P4Plugin.instance().httpService().unregister( mvtAlias );
+            mvtAlias = null;
+        }
         if (alias != null) {
             P4Plugin.instance().httpService().unregister( alias );
+            PipelinePool.instance().invalidate( PipelinePool.PROP_OWNER, alias );
             alias = null;
         }
     }
@@ -167,4 +334,92 @@ public class ProjectLayerProvider
         close();
     }
 
+
+    /**
+     * Passes the response through and keeps a copy of the content if it is an
+     * image.
+     */
+    protected static class TeeResponse
+            extends HttpServletResponseWrapper {
+
+        private ByteArrayOutputStream   copy = new ByteArrayOutputStream( 32 * 1024 );
+
+        private ServletOutputStream     out;
+
+        private int                     status = SC_OK;
+
+        private boolean                 cacheable = true;
+
+        public TeeResponse( HttpServletResponse response ) {
+            super( response );
+        }
+
+        /**
+         * The content of the response, or {@link Optional#empty()} if it is not
+         * a successfully rendered image.
+         */
+        public Optional<byte[]> cached() {
+            String contentType = getContentType();
+            return cacheable && status == SC_OK && copy.size() > 0 
+                    && contentType != null && contentType.startsWith( "image/" )
+                    ? Optional.of( copy.toByteArray() ) : Optional.empty();
+        }
+
+        @Override
+        public void setStatus( int sc ) {
+            status = sc;
+            super.setStatus( sc );
+        }
+
+        @Override
+        public void sendError( int sc ) throws IOException {
+            status = sc;
+            super.sendError( sc );
+        }
+
+        @Override
+        public void sendError( int sc, String msg ) throws IOException {
+            status = sc;
+            super.sendError( sc, msg );
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            cacheable = false;
+            return super.getWriter();
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                ServletOutputStream delegate = super.getOutputStream();
+                out = new ServletOutputStream() {
+                    @Override
+                    public void write( int b ) throws IOException {
+                        delegate.write( b );
+                        copy.write( b );
+                    }
+                    @Override
+                    public void write( byte[] b, int off, int len ) throws IOException {
+                        delegate.write( b, off, len );
+                        copy.write( b, off, len );
+                    }
+                    @Override
+                    public void flush() throws IOException {
+                        delegate.flush();
+                    }
+                    @Override
+                    public boolean isReady() {
+                        return delegate.isReady();
+                    }
+                    @Override
+                    public void setWriteListener( WriteListener listener ) {
+                        delegate.setWriteListener( listener );
+                    }
+                };
+            }
+            return out;
+        }
+    }
+
 }
@@ -0,0 +1,477 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.geotools.data.FeatureEvent;
+import org.geotools.data.FeatureEvent.Type;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.polymap.core.project.ProjectNode.ProjectNodeCommittedEvent;
+import org.polymap.core.runtime.event.Event;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
+import org.polymap.core.style.model.FeatureStyleCommitedEvent;
+
+/**
+ * Persistent cache of the encoded tiles rendered for the layers of the map. There
+ * is one instance per JVM, see {@link org.polymap.p4.P4Plugin#tileCache()}.
+ * <p/>
+ * The tiles are stored on disk in
+ * <code>&lt;layerId&gt;/&lt;styleId&gt;/&lt;srs&gt;/&lt;width&gt;x&lt;height&gt;/&lt;bbox&gt;.&lt;format&gt;</code>,
+ * the most recently used tiles are also kept in memory. Tiles are removed:
+ * <ul>
+ * <li>if they intersect the bounds of a {@link FeatureEvent} of type
+ * {@link Type#COMMIT} of the feature type of the layer,</li>
+ * <li>all tiles of a layer on {@link ProjectNodeCommittedEvent} of the layer,</li>
+ * <li>all tiles of a style on {@link FeatureStyleCommitedEvent}.</li>
+ * </ul>
+ * Removing the files is done by a background thread, so that committing threads
+ * are not blocked. While tiles of a layer are being removed, no tiles of this
+ * layer are returned by {@link #get(TileKey)}.
+ * <p/>
+ * A tile rendered while its layer or style was invalidated must not be stored.
+ * So every invalidation advances the {@link #stamp(TileKey)} of the tiles, which
+ * the renderer obtains before rendering and passes to
+ * {@link #put(TileKey, byte[], long)}.
+ * <p/>
+ * The memory size is set via system property
+ * <code>org.polymap.p4.tileCacheMemory</code> in MB, defaults to 32MB.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class TileCache {
+
+    private static final Log log = LogFactory.getLog( TileCache.class );
+
+    public static final long        MEMORY_SIZE = Long.getLong( "org.polymap.p4.tileCacheMemory", 32 ) * 1024 * 1024;
+
+    public static final String      NO_STYLE = "_default_";
+
+    private static final String     RESOURCES = "resources.properties";
+
+    private static final String     TRASH = ".trash";
+
+    private static final AtomicInteger trashCount = new AtomicInteger();
+
+    private File                    dir;
+
+    /** The tiles in memory, keyed by their path relative to {@link #dir}. */
+    private Cache<String,byte[]>    memory;
+
+    /** Maps layer id into the name of the feature type it renders. */
+    private Properties              resources = new Properties();
+
+    private FeatureListener         featureListener = new FeatureListener();
+
+    private ProjectListener         projectListener = new ProjectListener();
+
+    private StyleListener           styleListener = new StyleListener();
+
+    /** Invalidations per layer id, see {@link #stamp(TileKey)}. */
+    private ConcurrentMap<String,AtomicLong> layerGenerations = new ConcurrentHashMap( 64 );
+
+    /** Invalidations per style id, see {@link #stamp(TileKey)}. */
+    private ConcurrentMap<String,AtomicLong> styleGenerations = new ConcurrentHashMap( 64 );
+
+    /** The number of pending background invalidations per layer id. */
+    private ConcurrentMap<String,AtomicInteger> pending = new ConcurrentHashMap( 64 );
+
+    /** Removes files in the background, one job after the other. */
+    private ExecutorService         remover = Executors.newSingleThreadExecutor( r -> {
+        Thread thread = new Thread( r, TileCache.class.getSimpleName() + "-remover" );
+        thread.setDaemon( true );
+        return thread;
+    });
+
+
+    public TileCache( File dir ) throws IOException {
+        this.dir = dir;
+        dir.mkdirs();
+        File f = new File( dir, RESOURCES );
+        if (f.exists()) {
+            try (InputStream in = new FileInputStream( f )) {
+                resources.load( in );
+            }
+        }
+        // trash of a previous run
+        for (File trash : dir.listFiles( (d, name) -> name.startsWith( TRASH ) )) {
+            remover.submit( () -> FileUtils.deleteQuietly( trash ) );
+        }
+        memory = CacheBuilder.newBuilder()
+                .maximumWeight( MEMORY_SIZE )
+                .weigher( (String key, byte[] data) -> data.length )
+                .build();
+
+        EventManager.instance().subscribe( featureListener, ifType( FeatureEvent.class, ev ->
+                ev.getType() == Type.COMMIT ) );
+        EventManager.instance().subscribe( projectListener, ifType( ProjectNodeCommittedEvent.class, ev ->
+                ev.getEntityId() != null && new File( dir, TileKey.safe( ev.getEntityId().toString() ) ).exists() ) );
+        EventManager.instance().subscribe( styleListener, ifType( FeatureStyleCommitedEvent.class, ev -> true ) );
+    }
+
+
+    public void close() {
+        EventManager.instance().unsubscribe( featureListener );
+        EventManager.instance().unsubscribe( projectListener );
+        EventManager.instance().unsubscribe( styleListener );
+        remover.shutdown();
+        memory.invalidateAll();
+    }
+
+
+    /**
+     * The key of a tile.
+     */
+    public static class TileKey {
+
+        public String               layerId;
+
+        public String               styleId;
+
+        public String               srs;
+
+        public double[]             bbox;
+
+        public int                  width, height;
+
+        public String               format;
+
+        public TileKey( String layerId, String styleId, String srs, double[] bbox, int width, int height, String format ) {
+            assert bbox.length == 4;
+            this.layerId = layerId;
+            this.styleId = styleId != null ? styleId : NO_STYLE;
+            this.srs = srs;
+            this.bbox = bbox;
+            this.width = width;
+            this.height = height;
+            this.format = format;
+        }
+
+        /**
+         * The path of the tile relative to the cache directory. The coordinates
+         * are rounded to 1/100 pixel, so that a bbox calculated on the server
+         * (metatiles) matches the bbox requested by the client.
+         */
+        public String path() {
+            double pixel = Math.min( (bbox[2] - bbox[0]) / width, (bbox[3] - bbox[1]) / height );
+            int decimals = pixel > 0 ? Math.min( 12, Math.max( 0, (int)Math.ceil( -Math.log10( pixel / 100 ) ) ) ) : 12;
+            String coords = Arrays.stream( bbox )
+                    .mapToObj( c -> String.format( Locale.ROOT, "%." + decimals + "f", c ) )
+                    .collect( Collectors.joining( "_" ) );
+            return String.join( File.separator, safe( layerId ), safe( styleId ), safe( srs ), width + "x" + height,
+                    coords + "." + safe( format ).replace( '.', '_' ) );
+        }
+
+        protected static String safe( String s ) {
+            return s.replaceAll( "[^a-zA-Z0-9\\-\\.]", "_" );
+        }
+    }
+
+
+    /**
+     * Returns the encoded tile for the given key, or {@link Optional#empty()} if
+     * it was not rendered yet or has been invalidated since.
+     */
+    public Optional<byte[]> get( TileKey key ) {
+        if (isPending( key.layerId )) {
+            return Optional.empty();
+        }
+        String path = key.path();
+        byte[] result = memory.getIfPresent( path );
+        if (result == null) {
+            File f = new File( dir, path );
+            try {
+                if (f.exists()) {
+                    result = FileUtils.readFileToByteArray( f );
+                    memory.put( path, result );
+                }
+            }
+            catch (IOException e) {
+                log.warn( "Unable to read tile: " + f, e );
+            }
+        }
+        return Optional.ofNullable( result );
+    }
+
+
+    /**
+     * The current state of the layer and style of the given key. Changes whenever
+     * tiles of the layer or style are invalidated. Must be obtained before
+     * rendering the tile.
+     */
+    public long stamp( TileKey key ) {
+        return generation( layerGenerations, key.layerId ).get() + generation( styleGenerations, key.styleId ).get();
+    }
+
+
+    /**
+     * Stores the encoded tile for the given key, unless the layer or style of the
+     * tile has been invalidated since the given stamp was obtained.
+     *
+     * @param stamp The {@link #stamp(TileKey)} obtained before rendering.
+     */
+    public void put( TileKey key, byte[] data, long stamp ) {
+        if (stamp( key ) != stamp) {
+            log.debug( "Invalidated while rendering, not stored: " + key.path() );
+            return;
+        }
+        String path = key.path();
+        File f = new File( dir, path );
+        try {
+            f.getParentFile().mkdirs();
+            File tmp = new File( f.getParentFile(), f.getName() + ".tmp" + Thread.currentThread().getId() );
+            FileUtils.writeByteArrayToFile( tmp, data );
+            Files.move( tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            memory.put( path, data );
+            // invalidated while writing: the invalidation might have missed the file
+            if (stamp( key ) != stamp) {
+                memory.invalidate( path );
+                Files.deleteIfExists( f.toPath() );
+            }
+        }
+        catch (IOException e) {
+            log.warn( "Unable to write tile: " + f, e );
+        }
+    }
+
+
+    protected AtomicLong generation( ConcurrentMap<String,AtomicLong> generations, String id ) {
+        return generations.computeIfAbsent( id, key -> new AtomicLong() );
+    }
+
+
+    protected boolean isPending( String layerId ) {
+        AtomicInteger count = pending.get( layerId );
+        return count != null && count.get() > 0;
+    }
+
+
+    /**
+     * Registers the name of the feature type rendered by the given layer, so that
+     * {@link FeatureEvent}s of this type invalidate the tiles of the layer.
+     */
+    public synchronized void mapResource( String layerId, String typeName ) {
+        if (!typeName.equals( resources.getProperty( layerId ) )) {
+            resources.setProperty( layerId, typeName );
+            try (OutputStream out = new FileOutputStream( new File( dir, RESOURCES ) )) {
+                resources.store( out, TileCache.class.getSimpleName() );
+            }
+            catch (IOException e) {
+                log.warn( "", e );
+            }
+        }
+    }
+
+
+    /**
+     * Removes all tiles of the given layer.
+     */
+    public void invalidateLayer( String layerId ) {
+        log.info( "Invalidating layer: " + layerId );
+        generation( layerGenerations, layerId ).incrementAndGet();
+        remove( new File( dir, TileKey.safe( layerId ) ) );
+    }
+
+
+    /**
+     * Removes all tiles rendered with the given style.
+     */
+    public void invalidateStyle( String styleId ) {
+        log.info( "Invalidating style: " + styleId );
+        generation( styleGenerations, styleId ).incrementAndGet();
+        File[] layerDirs = dir.listFiles( f -> f.isDirectory() && !f.getName().startsWith( TRASH ) );
+        for (File layerDir : layerDirs != null ? layerDirs : new File[0]) {
+            remove( new File( layerDir, TileKey.safe( styleId ) ) );
+        }
+    }
+
+
+    /**
+     * Removes the tiles of the given layer that intersect the given bounds. The
+     * files are removed in the background; meanwhile {@link #get(TileKey)} does
+     * not return tiles of this layer.
+     */
+    public void invalidate( String layerId, ReferencedEnvelope bounds ) {
+        if (bounds == null || bounds.isNull() || bounds.getCoordinateReferenceSystem() == null) {
+            invalidateLayer( layerId );
+            return;
+        }
+        Path layerDir = new File( dir, TileKey.safe( layerId ) ).toPath();
+        if (!Files.exists( layerDir )) {
+            return;
+        }
+        AtomicInteger count = pending.computeIfAbsent( layerId, key -> new AtomicInteger() );
+        count.incrementAndGet();
+        generation( layerGenerations, layerId ).incrementAndGet();
+        remover.submit( () -> {
+            try {
+                removeIntersecting( layerId, layerDir, bounds );
+            }
+            finally {
+                count.decrementAndGet();
+            }
+        });
+    }
+
+
+    protected void removeIntersecting( String layerId, Path layerDir, ReferencedEnvelope bounds ) {
+        Map<String,Optional<ReferencedEnvelope>> transformed = new HashMap();
+        List<Path> removed = new ArrayList( 256 );
+        try (Stream<Path> tiles = Files.walk( layerDir )) {
+            for (Path tile : tiles.filter( Files::isRegularFile ).collect( Collectors.toList() )) {
+                // <style>/<srs>/<size>/<bbox>.<format>
+                Path relative = layerDir.relativize( tile );
+                if (relative.getNameCount() != 4) {
+                    continue;
+                }
+                String srs = relative.getName( 1 ).toString();
+                Optional<ReferencedEnvelope> target = transformed.computeIfAbsent( srs, code -> {
+                    try {
+                        CoordinateReferenceSystem crs = CRS.decode( code.replace( '_', ':' ) );
+                        return Optional.of( bounds.transform( crs, true ) );
+                    }
+                    catch (Exception e) {
+                        log.warn( "Unable to transform bounds into: " + code + " (" + e + ")" );
+                        return Optional.empty();
+                    }
+                });
+                if (!target.isPresent() || tileBounds( tile ).map( b -> b.intersects( target.get() ) ).orElse( true )) {
+                    Files.deleteIfExists( tile );
+                    removed.add( tile );
+                }
+            }
+        }
+        catch (IOException e) {
+            log.warn( "", e );
+            invalidateLayer( layerId );
+            return;
+        }
+        for (Path tile : removed) {
+            memory.invalidate( dir.toPath().relativize( tile ).toString() );
+        }
+        log.info( "Invalidated layer: " + layerId + ", tiles: " + removed.size() );
+    }
+
+
+    protected Optional<Envelope> tileBounds( Path tile ) {
+        String name = tile.getFileName().toString();
+        String[] coords = name.substring( 0, name.lastIndexOf( '.' ) ).split( "_" );
+        try {
+            return Optional.of( new Envelope(
+                    Double.parseDouble( coords[0] ), Double.parseDouble( coords[2] ),
+                    Double.parseDouble( coords[1] ), Double.parseDouble( coords[3] ) ) );
+        }
+        catch (Exception e) {
+            return Optional.empty();
+        }
+    }
+
+
+    /**
+     * Moves the given file or directory out of the way and deletes it in the
+     * background.
+     */
+    protected void remove( File f ) {
+        if (f.exists()) {
+            String prefix = dir.toPath().relativize( f.toPath() ).toString() + File.separator;
+            File trash = new File( dir, TRASH + trashCount.getAndIncrement() + "-" + System.currentTimeMillis() );
+            if (!f.renameTo( trash )) {
+                trash = f;
+            }
+            memory.asMap().keySet().removeIf( path -> path.startsWith( prefix ) );
+            File removed = trash;
+            remover.submit( () -> FileUtils.deleteQuietly( removed ) );
+        }
+    }
+
+
+    /**
+     * Invalidates the tiles touched by commits of features.
+     */
+    class FeatureListener {
+        @EventHandler( scope=Event.Scope.JVM )
+        protected void onCommit( FeatureEvent ev ) {
+            String typeName = ev.getFeatureSource().getSchema().getName().getLocalPart();
+            for (Map.Entry<Object,Object> entry : new ArrayList<>( resources.entrySet() )) {
+                if (typeName.equals( entry.getValue() )) {
+                    invalidate( (String)entry.getKey(), ev.getBounds() );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Invalidates all tiles of a layer that has been changed.
+     */
+    class ProjectListener {
+        @EventHandler( scope=Event.Scope.JVM )
+        protected void onCommit( ProjectNodeCommittedEvent ev ) {
+            invalidateLayer( ev.getEntityId().toString() );
+        }
+    }
+
+
+    /**
+     * Invalidates all tiles of a style that has been changed.
+     */
+    class StyleListener {
+        @EventHandler( scope=Event.Scope.JVM )
+        protected void onCommit( FeatureStyleCommitedEvent ev ) {
+            invalidateStyle( String.valueOf( ev.getSource().id() ) );
+        }
+    }
+
+}
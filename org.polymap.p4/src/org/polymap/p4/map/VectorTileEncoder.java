@@ -0,0 +1,410 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Lineal;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.Polygonal;
+import com.vividsolutions.jts.geom.Puntal;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+/**
+ * Encodes features into a <a href="https://github.com/mapbox/vector-tile-spec">Mapbox
+ * Vector Tile</a> (version 2). One encoder builds one layer of one tile.
+ * <p/>
+ * Geometries are given in the CRS of the tile. They are clipped to the tile plus
+ * {@link #BUFFER}, simplified to the resolution of the tile and quantised to the
+ * {@link #extent} grid. Single points are thinned to one point per screen pixel.
+ * Attribute keys and values are collected in the dictionaries of the layer.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class VectorTileEncoder {
+
+    public static final int         DEFAULT_EXTENT = 4096;
+
+    /** The buffer around the tile, in {@link #extent} units. */
+    public static final int         BUFFER = 64;
+
+    protected static final int      MOVE_TO = 1, LINE_TO = 2, CLOSE_PATH = 7;
+
+    protected static final int      POINT = 1, LINESTRING = 2, POLYGON = 3;
+
+    private String                  name;
+
+    private Envelope                bounds;
+
+    private int                     extent;
+
+    private Geometry                clip;
+
+    private double                  tolerance;
+
+    private int                     pixels;
+
+    /** The screen pixels already occupied by a single point. */
+    private Set<Long>               occupied = new HashSet();
+
+    private Map<String,Integer>     keys = new LinkedHashMap();
+
+    private Map<Object,Integer>     values = new LinkedHashMap();
+
+    private ByteArrayOutputStream   features = new ByteArrayOutputStream( 64 * 1024 );
+
+    private int                     count;
+
+    /** The cursor of the geometry commands; relative to the previous point. */
+    private int                     cx, cy;
+
+
+    /**
+     * @param name The name of the layer in the tile.
+     * @param bounds The bounds of the tile.
+     * @param extent The size of the coordinate grid of the tile.
+     * @param pixels The size of the tile on screen, used to simplify geometries.
+     */
+    public VectorTileEncoder( String name, Envelope bounds, int extent, int pixels ) {
+        this.name = name;
+        this.bounds = bounds;
+        this.extent = extent;
+        double buffer = bounds.getWidth() * BUFFER / extent;
+        Envelope clipBounds = new Envelope( bounds );
+        clipBounds.expandBy( buffer );
+        this.clip = new GeometryFactory().toGeometry( clipBounds );
+        this.tolerance = bounds.getWidth() / pixels / 2;
+        this.pixels = pixels;
+    }
+
+
+    public int count() {
+        return count;
+    }
+
+
+    /**
+     * Adds a feature to the layer.
+     *
+     * @param id The id of the feature, or null.
+     * @param geom The geometry in the CRS of the tile.
+     * @param attributes The attributes of the feature, null values are skipped.
+     * @return False if the geometry is outside the tile or collapsed, or if it is
+     *         a point on a screen pixel that is occupied by another point already.
+     */
+    public boolean add( Long id, Geometry geom, Map<String,Object> attributes ) throws IOException {
+        if (geom == null || geom.isEmpty() || !clip.getEnvelopeInternal().intersects( geom.getEnvelopeInternal() )) {
+            return false;
+        }
+        if (geom instanceof Point) {
+            Coordinate c = geom.getCoordinate();
+            long px = (long)Math.floor( (c.x - bounds.getMinX()) * pixels / bounds.getWidth() );
+            long py = (long)Math.floor( (c.y - bounds.getMinY()) * pixels / bounds.getHeight() );
+            if (!occupied.add( (px << 32) ^ (py & 0xFFFFFFFFL) )) {
+                return false;
+            }
+        }
+        int type;
+        List<Integer> commands = new ArrayList( 64 );
+        cx = cy = 0;
+        if (geom instanceof Puntal) {
+            type = POINT;
+            encodePoints( geom, commands );
+        }
+        else {
+            if (!clip.getEnvelopeInternal().contains( geom.getEnvelopeInternal() )) {
+                try {
+                    geom = clip.intersection( geom );
+                }
+                catch (Exception e) {
+                    // invalid geometry; the client clips it anyway
+                }
+            }
+            if (geom.getDimension() > 0) {
+                geom = TopologyPreservingSimplifier.simplify( geom, tolerance );
+            }
+            if (geom instanceof Lineal) {
+                type = LINESTRING;
+                for (int i = 0; i < geom.getNumGeometries(); i++) {
+                    encodeLine( ((LineString)geom.getGeometryN( i )).getCoordinates(), commands, false, false );
+                }
+            }
+            else if (geom instanceof Polygonal) {
+                type = POLYGON;
+                for (int i = 0; i < geom.getNumGeometries(); i++) {
+                    Polygon polygon = (Polygon)geom.getGeometryN( i );
+                    if (encodeLine( polygon.getExteriorRing().getCoordinates(), commands, true, true )) {
+                        for (int j = 0; j < polygon.getNumInteriorRing(); j++) {
+                            encodeLine( polygon.getInteriorRingN( j ).getCoordinates(), commands, true, false );
+                        }
+                    }
+                }
+            }
+            else {
+                // clipped to a point or to a mixed collection
+                return false;
+            }
+        }
+        if (commands.isEmpty()) {
+            return false;
+        }
+
+        ByteArrayOutputStream feature = new ByteArrayOutputStream( commands.size() * 2 + 32 );
+        if (id != null) {
+            writeVarint( feature, tag( 1, 0 ) );
+            writeVarint( feature, id );
+        }
+        List<Integer> tags = new ArrayList( attributes.size() * 2 );
+        for (Map.Entry<String,Object> entry : attributes.entrySet()) {
+            Object value = value( entry.getValue() );
+            if (value != null) {
+                tags.add( keys.computeIfAbsent( entry.getKey(), k -> keys.size() ) );
+                tags.add( values.computeIfAbsent( value, v -> values.size() ) );
+            }
+        }
+        writePacked( feature, 2, tags );
+        writeVarint( feature, tag( 3, 0 ) );
+        writeVarint( feature, type );
+        writePacked( feature, 4, commands );
+
+        writeBytes( features, 2, feature.toByteArray() );
+        count ++;
+        return true;
+    }
+
+
+    /**
+     * Returns the encoded tile containing this layer. Tiles with several layers
+     * are the concatenation of the results of several encoders.
+     */
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream layer = new ByteArrayOutputStream( features.size() + 1024 );
+        writeVarint( layer, tag( 15, 0 ) );
+        writeVarint( layer, 2 );
+        writeBytes( layer, 1, name.getBytes( StandardCharsets.UTF_8 ) );
+        features.writeTo( layer );
+        for (String key : keys.keySet()) {
+            writeBytes( layer, 3, key.getBytes( StandardCharsets.UTF_8 ) );
+        }
+        for (Object value : values.keySet()) {
+            writeBytes( layer, 4, encodeValue( value ) );
+        }
+        writeVarint( layer, tag( 5, 0 ) );
+        writeVarint( layer, extent );
+
+        ByteArrayOutputStream tile = new ByteArrayOutputStream( layer.size() + 8 );
+        writeBytes( tile, 3, layer.toByteArray() );
+        return tile.toByteArray();
+    }
+
+
+    // geometry *******************************************
+
+    protected void encodePoints( Geometry geom, List<Integer> commands ) {
+        List<int[]> points = new ArrayList( geom.getNumGeometries() );
+        for (int i = 0; i < geom.getNumGeometries(); i++) {
+            Coordinate c = ((Point)geom.getGeometryN( i )).getCoordinate();
+            if (clip.getEnvelopeInternal().contains( c )) {
+                points.add( new int[] {x( c ), y( c )} );
+            }
+        }
+        if (!points.isEmpty()) {
+            commands.add( command( MOVE_TO, points.size() ) );
+            for (int[] p : points) {
+                moveCursor( p[0], p[1], commands );
+            }
+        }
+    }
+
+
+    /**
+     * Encodes a line or a ring. Consecutive points that are quantised to the same
+     * grid position are dropped. Exterior rings have to be clockwise in tile
+     * coordinates (y down), interior rings counter-clockwise.
+     *
+     * @return False if the line or ring collapsed.
+     */
+    protected boolean encodeLine( Coordinate[] coords, List<Integer> commands, boolean ring, boolean exterior ) {
+        List<int[]> points = new ArrayList( coords.length );
+        for (int i = 0; i < (ring ? coords.length - 1 : coords.length); i++) {
+            int[] p = {x( coords[i] ), y( coords[i] )};
+            int[] last = points.isEmpty() ? null : points.get( points.size() - 1 );
+            if (last == null || last[0] != p[0] || last[1] != p[1]) {
+                points.add( p );
+            }
+        }
+        if (ring) {
+            long area = 0;
+            for (int i = 0; i < points.size(); i++) {
+                int[] p1 = points.get( i ), p2 = points.get( (i + 1) % points.size() );
+                area += (long)p1[0] * p2[1] - (long)p2[0] * p1[1];
+            }
+            if (points.size() < 3 || area == 0) {
+                return false;
+            }
+            // spec: exterior rings have positive area (clockwise, y down)
+            if ((area > 0) != exterior) {
+                Collections.reverse( points );
+            }
+        }
+        else if (points.size() < 2) {
+            return false;
+        }
+        commands.add( command( MOVE_TO, 1 ) );
+        moveCursor( points.get( 0 )[0], points.get( 0 )[1], commands );
+        commands.add( command( LINE_TO, points.size() - 1 ) );
+        for (int[] p : points.subList( 1, points.size() )) {
+            moveCursor( p[0], p[1], commands );
+        }
+        if (ring) {
+            commands.add( command( CLOSE_PATH, 1 ) );
+        }
+        return true;
+    }
+
+
+    protected void moveCursor( int x, int y, List<Integer> commands ) {
+        commands.add( zigzag( x - cx ) );
+        commands.add( zigzag( y - cy ) );
+        cx = x;
+        cy = y;
+    }
+
+
+    protected int x( Coordinate c ) {
+        return (int)Math.round( (c.x - bounds.getMinX()) * extent / bounds.getWidth() );
+    }
+
+
+    protected int y( Coordinate c ) {
+        return (int)Math.round( (bounds.getMaxY() - c.y) * extent / bounds.getHeight() );
+    }
+
+
+    // protobuf *******************************************
+
+    /**
+     * Normalizes attribute values into the types of the tile value dictionary:
+     * String, Boolean, Long, Float and Double.
+     */
+    protected static Object value( Object value ) {
+        if (value == null || value instanceof Geometry) {
+            return null;
+        }
+        else if (value instanceof String || value instanceof Boolean || value instanceof Double || value instanceof Float) {
+            return value;
+        }
+        else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number)value).longValue();
+        }
+        else if (value instanceof Number) {
+            return ((Number)value).doubleValue();
+        }
+        else {
+            return value.toString();
+        }
+    }
+
+
+    protected static byte[] encodeValue( Object value ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( 16 );
+        if (value instanceof String) {
+            writeBytes( out, 1, ((String)value).getBytes( StandardCharsets.UTF_8 ) );
+        }
+        else if (value instanceof Float) {
+            writeVarint( out, tag( 2, 5 ) );
+            int bits = Float.floatToIntBits( (Float)value );
+            for (int i = 0; i < 4; i++) {
+                out.write( bits >>> (i * 8) );
+            }
+        }
+        else if (value instanceof Double) {
+            writeVarint( out, tag( 3, 1 ) );
+            long bits = Double.doubleToLongBits( (Double)value );
+            for (int i = 0; i < 8; i++) {
+                out.write( (int)(bits >>> (i * 8)) );
+            }
+        }
+        else if (value instanceof Long) {
+            long l = (Long)value;
+            writeVarint( out, tag( 6, 0 ) );
+            writeVarint( out, (l << 1) ^ (l >> 63) );
+        }
+        else if (value instanceof Boolean) {
+            writeVarint( out, tag( 7, 0 ) );
+            writeVarint( out, (Boolean)value ? 1 : 0 );
+        }
+        return out.toByteArray();
+    }
+
+
+    protected static int command( int id, int count ) {
+        return (id & 0x7) | (count << 3);
+    }
+
+
+    protected static int zigzag( int n ) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+
+    protected static int tag( int field, int wireType ) {
+        return (field << 3) | wireType;
+    }
+
+
+    protected static void writeVarint( ByteArrayOutputStream out, long value ) {
+        while ((value & ~0x7FL) != 0) {
+            out.write( (int)((value & 0x7F) | 0x80) );
+            value >>>= 7;
+        }
+        out.write( (int)value );
+    }
+
+
+    protected static void writeBytes( ByteArrayOutputStream out, int field, byte[] bytes ) throws IOException {
+        writeVarint( out, tag( field, 2 ) );
+        writeVarint( out, bytes.length );
+        out.write( bytes );
+    }
+
+
+    protected static void writePacked( ByteArrayOutputStream out, int field, List<Integer> ints ) throws IOException {
+        if (!ints.isEmpty()) {
+            ByteArrayOutputStream packed = new ByteArrayOutputStream( ints.size() * 2 );
+            for (int i : ints) {
+                writeVarint( packed, i & 0xFFFFFFFFL );
+            }
+            writeBytes( out, field, packed.toByteArray() );
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static org.polymap.p4.layer.FeatureLayer.ff;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.Feature;
+import org.opengis.feature.GeometryAttribute;
+import org.opengis.feature.Property;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+
+import org.polymap.core.data.PipelineFeatureSource;
+import org.polymap.core.data.pipeline.DataSourceDescription;
+import org.polymap.core.data.util.Geometries;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.Timer;
+
+import org.polymap.p4.P4Plugin;
+import org.polymap.p4.catalog.AllResolver;
+import org.polymap.p4.layer.FeatureLayer;
+import org.polymap.p4.map.TileCache.TileKey;
+
+/**
+ * Serves the features of the layers of a {@link ProjectLayerProvider} as
+ * <a href="https://github.com/mapbox/vector-tile-spec">Mapbox Vector Tiles</a>.
+ * The request parameters are the same as of a WMS GetMap request: LAYERS, SRS,
+ * BBOX and WIDTH (the size of the tile on screen, defaults to 256), so that the
+ * same tile grid and the same {@link TileCache} keys can be used.
+ * <p/>
+ * The features are read from the {@link PipelineFeatureSource} of the
+ * {@link FeatureLayer}, honouring its {@link FeatureLayer#filter()}. Tiles are
+ * cached if {@link ProjectLayerProvider#isCacheable(ILayer)} and the layer is not
+ * filtered. The resource of a cached layer is registered via
+ * {@link TileCache#mapResource(String, String)}, so that changes of its features
+ * invalidate the tiles even if no WMS pipeline was built for the layer.
+ * <p/>
+ * A tile contains at most {@link #MAX_FEATURES} features, set via system property
+ * <code>org.polymap.p4.vectorTileMaxFeatures</code>, defaults to 20000. Tiles
+ * cut off at this limit are not cached. Points are thinned to one per screen
+ * pixel by the {@link VectorTileEncoder}.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class VectorTileServer
+        extends HttpServlet {
+
+    private static final Log log = LogFactory.getLog( VectorTileServer.class );
+
+    public static final String      MIME_TYPE = "application/vnd.mapbox-vector-tile";
+
+    public static final int         MAX_FEATURES = Integer.getInteger( "org.polymap.p4.vectorTileMaxFeatures", 20000 );
+
+    private ProjectLayerProvider    provider;
+
+    /** The resource identifiers of the layers mapped in the {@link TileCache}. */
+    private ConcurrentMap<String,String> mapped = new ConcurrentHashMap();
+
+
+    public VectorTileServer( ProjectLayerProvider provider ) {
+        this.provider = provider;
+    }
+
+
+    @Override
+    protected void doGet( HttpServletRequest req, HttpServletResponse resp ) throws ServletException, IOException {
+        try {
+            String layerName = ProjectLayerProvider.param( req, "LAYERS" );
+            ILayer layer = provider.layers.get( String.valueOf( layerName ) );
+            String srs = ProjectLayerProvider.param( req, "SRS" );
+            String bbox = ProjectLayerProvider.param( req, "BBOX" );
+            if (layer == null || srs == null || bbox == null) {
+                resp.sendError( HttpServletResponse.SC_BAD_REQUEST, "LAYERS, SRS and BBOX are required." );
+                return;
+            }
+            String[] coords = StringUtils.split( bbox, ',' );
+            double[] envelope = new double[4];
+            for (int i = 0; i < 4; i++) {
+                envelope[i] = Double.parseDouble( coords[i] );
+            }
+            String width = ProjectLayerProvider.param( req, "WIDTH" );
+            int pixels = width != null ? Integer.parseInt( width ) : 256;
+
+            FeatureLayer fl = FeatureLayer.of( layer ).get( 30, TimeUnit.SECONDS )
+                    .orElseThrow( () -> new IllegalArgumentException( "Not a feature layer: " + layerName ) );
+            Filter filter = provider.vectorTileFilter( fl );
+            boolean cacheable = filter == Filter.INCLUDE && provider.isCacheable( layer );
+
+            if (cacheable) {
+                mapResource( layer );
+            }
+
+            TileKey key = new TileKey( (String)layer.id(), null, srs, envelope, pixels, pixels, MIME_TYPE );
+            Optional<byte[]> tile = cacheable ? P4Plugin.tileCache().get( key ) : Optional.empty();
+            if (!tile.isPresent()) {
+                long stamp = P4Plugin.tileCache().stamp( key );
+                Tile encoded = encode( fl, filter, layerName, Geometries.crs( srs ), envelope, pixels );
+                tile = Optional.of( encoded.data );
+                if (cacheable && encoded.complete) {
+                    P4Plugin.tileCache().put( key, tile.get(), stamp );
+                }
+            }
+            resp.setContentType( MIME_TYPE );
+            resp.setContentLength( tile.get().length );
+            resp.getOutputStream().write( tile.get() );
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            log.warn( "", e );
+            resp.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage() );
+        }
+    }
+
+
+    /**
+     * Registers the resource of the given layer in the {@link TileCache}, once per
+     * resource of the layer.
+     */
+    protected void mapResource( ILayer layer ) throws Exception {
+        String layerId = (String)layer.id();
+        String resource = layer.resourceIdentifier.get();
+        if (!Objects.equals( resource, mapped.get( layerId ) )) {
+            DataSourceDescription dsd = AllResolver.instance().connectLayer( layer, new NullProgressMonitor() )
+                    .orElseThrow( () -> new RuntimeException( "No data source for layer: " + layer ) );
+            P4Plugin.tileCache().mapResource( layerId, dsd.resourceName.get() );
+            mapped.put( layerId, resource );
+        }
+    }
+
+
+    /**
+     * An encoded tile.
+     */
+    protected static class Tile {
+
+        public byte[]       data;
+
+        /** False if features were skipped because of {@link #MAX_FEATURES}. */
+        public boolean      complete = true;
+    }
+
+
+    protected Tile encode( FeatureLayer fl, Filter filter, String layerName, CoordinateReferenceSystem crs,
+            double[] envelope, int pixels ) throws Exception {
+        Timer timer = new Timer();
+        PipelineFeatureSource fs = fl.featureSource();
+        FeatureType schema = fs.getSchema();
+        CoordinateReferenceSystem dataCrs = schema.getCoordinateReferenceSystem();
+
+        // query the buffered tile in the CRS of the data
+        Envelope bounds = new Envelope( envelope[0], envelope[2], envelope[1], envelope[3] );
+        ReferencedEnvelope queryBounds = new ReferencedEnvelope( bounds, crs );
+        queryBounds.expandBy( bounds.getWidth() * VectorTileEncoder.BUFFER / VectorTileEncoder.DEFAULT_EXTENT );
+        if (dataCrs != null && !CRS.equalsIgnoreMetadata( crs, dataCrs )) {
+            queryBounds = queryBounds.transform( dataCrs, true );
+        }
+        Query query = new Query( schema.getName().getLocalPart(), ff.and( 
+                ff.bbox( ff.property( "" ), queryBounds ), filter ) );
+
+        MathTransform transform = dataCrs != null ? CRS.findMathTransform( dataCrs, crs, true ) : null;
+        VectorTileEncoder encoder = new VectorTileEncoder( layerName, bounds, VectorTileEncoder.DEFAULT_EXTENT, pixels );
+        Map<String,Object> attributes = new LinkedHashMap();
+        Tile result = new Tile();
+        try (FeatureIterator it = fs.getFeatures( query ).features()) {
+            while (it.hasNext()) {
+                if (encoder.count() >= MAX_FEATURES) {
+                    log.warn( layerName + ": more than " + MAX_FEATURES + " features in tile, skipping the rest" );
+                    result.complete = false;
+                    break;
+                }
+                Feature feature = it.next();
+                GeometryAttribute geomProp = feature.getDefaultGeometryProperty();
+                Geometry geom = geomProp != null ? (Geometry)geomProp.getValue() : null;
+                if (geom != null && transform != null && !transform.isIdentity()) {
+                    geom = JTS.transform( geom, transform );
+                }
+                attributes.clear();
+                for (Property prop : feature.getProperties()) {
+                    if (!(prop instanceof GeometryAttribute)) {
+                        attributes.put( prop.getName().getLocalPart(), prop.getValue() );
+                    }
+                }
+                encoder.add( numericId( feature.getIdentifier().getID() ), geom, attributes );
+            }
+        }
+        result.data = encoder.encode();
+        log.debug( layerName + ": " + encoder.count() + " features, " + result.data.length + " bytes (" + timer.elapsedTime() + "ms)" );
+        return result;
+    }
+
+
+    /**
+     * MVT ids are numbers; feature ids are usually "type.number".
+     */
+    protected static Long numericId( String fid ) {
+        try {
+            long id = Long.parseLong( StringUtils.substringAfterLast( fid, "." ) );
+            return id >= 0 ? id : null;
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+}
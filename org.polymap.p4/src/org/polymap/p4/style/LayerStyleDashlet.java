@@ -14,6 +14,12 @@
  */
 package org.polymap.p4.style;
 
+import java.util.concurrent.CompletionException;
+
+import java.io.IOException;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -138,6 +144,8 @@ public class LayerStyleDashlet
         
         // RasterLayer?
         RasterLayer.of( layer.get() ).thenAccept( rl -> {
+            // read outside the display thread
+            GridCoverage2D overview = rl.isPresent() ? overview( rl.get() ) : null;
             UIThreadExecutor.async( () -> {
                 if (rl.isPresent()) {
                     UIUtils.disposeChildren( parent );
@@ -145,7 +153,7 @@ public class LayerStyleDashlet
                         RasterStyleEditorInput editorInput = new RasterStyleEditorInput();
                         editorInput.styleIdentifier.set( layer.get().styleIdentifier.get() ); 
                         editorInput.gridCoverageReader.set( rl.get().gridCoverageReader() );
-                        editorInput.gridCoverage.set( rl.get().gridCoverage() );
+                        editorInput.gridCoverage.set( overview );
                         
                         editor = new RasterStyleEditor( editorInput ) {
                             @Override
@@ -172,5 +180,15 @@ public class LayerStyleDashlet
         });
 
     }
+
+
+    protected GridCoverage2D overview( RasterLayer rl ) {
+        try {
+            return rl.gridCoverage();
+        }
+        catch (IOException e) {
+            throw new CompletionException( e );
+        }
+    }
     
 }